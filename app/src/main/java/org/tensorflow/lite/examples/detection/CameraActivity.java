@@ -72,6 +72,9 @@ import com.google.android.material.bottomsheet.BottomSheetBehavior;
 import java.nio.ByteBuffer;
 import org.tensorflow.lite.examples.detection.env.ImageUtils;
 import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.env.YuvFrame;
+import org.tensorflow.lite.examples.detection.env.YuvScaler;
+import org.tensorflow.lite.examples.detection.env.YuvToTensor;
 import org.tensorflow.lite.examples.detection.tflite.ProcessorType;
 
 public abstract class CameraActivity extends AppCompatActivity
@@ -94,6 +97,10 @@ public abstract class CameraActivity extends AppCompatActivity
   private byte[][] yuvBytes = new byte[3][];
   private int[] rgbBytes = null;
   private int yRowStride;
+  // Chroma layout of the current frame; a pixel stride of YuvFrame.NV21 or YuvFrame.YUYV marks a
+  // frame held whole in yuvBytes[0].
+  private int uvRowStride;
+  private int uvPixelStride;
   private Runnable postInferenceCallback;
   private Runnable imageConverter;
 
@@ -325,7 +332,8 @@ public abstract class CameraActivity extends AppCompatActivity
                     LOGGER.w(e, "Failed to set preview size");
                   }
 
-                                    // Register frame callback to receive raw NV21 frames and feed into existing pipeline
+                  // Take the frames as YUYV, as decoded natively from MJPEG for the preview, instead
+                  // of having libuvc convert each one to NV21 first.
                   mUVCCamera.setFrameCallback(
                       new com.jiangdg.uvc.IFrameCallback() {
                         @Override
@@ -349,14 +357,16 @@ public abstract class CameraActivity extends AppCompatActivity
                             }
                             frame.get(yuvBytes[0]);
 
-                            // row stride for NV21 should be image width
-                            yRowStride = previewWidth;
+                            // Packed YUYV: two bytes per pixel, no row padding.
+                            yRowStride = previewWidth * 2;
+                            uvPixelStride = YuvFrame.YUYV;
 
                             imageConverter =
                                 new Runnable() {
                                   @Override
                                   public void run() {
-                                    ImageUtils.convertYUV420SPToARGB8888(yuvBytes[0], previewWidth, previewHeight, rgbBytes);
+                                    ImageUtils.convertYUYVToARGB8888Parallel(
+                                        yuvBytes[0], previewWidth, previewHeight, yRowStride, rgbBytes);
                                   }
                                 };
 
@@ -376,7 +386,7 @@ public abstract class CameraActivity extends AppCompatActivity
                           }
                         }
                       },
-                      UVCCamera.PIXEL_FORMAT_NV21);
+                      UVCCamera.PIXEL_FORMAT_YUV);
 
                   // Attach preview to the TextureView so user sees camera feed on screen
                   runOnUiThread(
@@ -480,15 +490,60 @@ public abstract class CameraActivity extends AppCompatActivity
     }
   }
 
+  /**
+   * Converts the whole current frame to ARGB, in parallel stripes, for code that needs the full
+   * preview as a Bitmap. The detection path does not call this: it samples model input straight
+   * from the YUV frame through {@link #fillInputBuffer} and {@link #scaleFrame}.
+   */
   protected int[] getRgbBytes() {
     imageConverter.run();
     return rgbBytes;
   }
 
+  /**
+   * Converts the current frame straight into a model input buffer, without going through ARGB
+   * and Bitmaps. Only valid until {@link #readyForNextImage()} releases the frame.
+   */
+  protected void fillInputBuffer(final YuvToTensor converter, final ByteBuffer out) {
+    if (uvPixelStride == YuvFrame.NV21) {
+      converter.convertNv21(yuvBytes[0], out);
+    } else if (uvPixelStride == YuvFrame.YUYV) {
+      converter.convertYuyv(yuvBytes[0], yRowStride, out);
+    } else {
+      converter.convertYuv420(
+          yuvBytes[0], yuvBytes[1], yuvBytes[2], yRowStride, uvRowStride, uvPixelStride, out);
+    }
+  }
+
+  /**
+   * Converts the current frame straight into a scaled ARGB image, computing only the output
+   * pixels. Only valid until {@link #readyForNextImage()} releases the frame.
+   */
+  protected void scaleFrame(final YuvScaler scaler, final int[] out) {
+    if (uvPixelStride == YuvFrame.NV21) {
+      scaler.convertNv21(yuvBytes[0], out);
+    } else if (uvPixelStride == YuvFrame.YUYV) {
+      scaler.convertYuyv(yuvBytes[0], yRowStride, out);
+    } else {
+      scaler.convertYuv420(
+          yuvBytes[0], yuvBytes[1], yuvBytes[2], yRowStride, uvRowStride, uvPixelStride, out);
+    }
+  }
+
+  /** Copies the current frame, for work that needs it after {@link #readyForNextImage()}. */
+  protected void copyFrame(final YuvFrame out) {
+    out.copyFrom(yuvBytes, yRowStride, uvRowStride, uvPixelStride);
+  }
+
   protected int getLuminanceStride() {
     return yRowStride;
   }
 
+  /** Bytes between horizontally adjacent luma samples: 2 in a packed YUYV frame, 1 otherwise. */
+  protected int getLuminancePixelStride() {
+    return uvPixelStride == YuvFrame.YUYV ? 2 : 1;
+  }
+
   protected byte[] getLuminance() {
     return yuvBytes[0];
   }
@@ -518,12 +573,13 @@ public abstract class CameraActivity extends AppCompatActivity
     isProcessingFrame = true;
     yuvBytes[0] = bytes;
     yRowStride = previewWidth;
+    uvPixelStride = YuvFrame.NV21;
 
     imageConverter =
         new Runnable() {
           @Override
           public void run() {
-            ImageUtils.convertYUV420SPToARGB8888(bytes, previewWidth, previewHeight, rgbBytes);
+            ImageUtils.convertYUV420SPToARGB8888Parallel(bytes, previewWidth, previewHeight, rgbBytes);
           }
         };
 
@@ -564,14 +620,14 @@ public abstract class CameraActivity extends AppCompatActivity
       final Plane[] planes = image.getPlanes();
       fillBytes(planes, yuvBytes);
       yRowStride = planes[0].getRowStride();
-      final int uvRowStride = planes[1].getRowStride();
-      final int uvPixelStride = planes[1].getPixelStride();
+      uvRowStride = planes[1].getRowStride();
+      uvPixelStride = planes[1].getPixelStride();
 
       imageConverter =
           new Runnable() {
             @Override
             public void run() {
-              ImageUtils.convertYUV420ToARGB8888(
+              ImageUtils.convertYUV420ToARGB8888Parallel(
                   yuvBytes[0],
                   yuvBytes[1],
                   yuvBytes[2],
@@ -886,6 +942,25 @@ public abstract class CameraActivity extends AppCompatActivity
     setNumThreads(numThreads);
   }
 
+  /**
+   * Hiển thị cấu hình processor/threads được áp dụng từ code (vd. kết quả auto-tune)
+   */
+  protected void showProcessorConfiguration(final ProcessorType processorType, final int numThreads) {
+    runOnUiThread(
+        () -> {
+          for (TextView view : new TextView[] {threadsTextView, threadsTextViewRight}) {
+            if (view != null) {
+              view.setText(String.valueOf(numThreads));
+            }
+          }
+          for (Spinner spinner : new Spinner[] {processorSpinner, processorSpinnerRight}) {
+            if (spinner != null && spinner.getSelectedItemPosition() != processorType.getValue()) {
+              spinner.setSelection(processorType.getValue());
+            }
+          }
+        });
+  }
+
   /**
    * Điều chỉnh zoom level cho camera
    */
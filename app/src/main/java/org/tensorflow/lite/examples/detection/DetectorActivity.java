@@ -20,27 +20,32 @@ import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.Canvas;
-import android.graphics.Color;
 import android.graphics.Matrix;
-import android.graphics.Paint;
-import android.graphics.Paint.Style;
-import android.graphics.RectF;
 import android.graphics.Typeface;
 import android.media.ImageReader.OnImageAvailableListener;
-import android.os.SystemClock;
 import android.util.Size;
 import android.util.TypedValue;
 import android.widget.Toast;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import org.tensorflow.lite.examples.detection.customview.OverlayView;
 import org.tensorflow.lite.examples.detection.customview.OverlayView.DrawCallback;
 import org.tensorflow.lite.examples.detection.env.BorderedText;
 import org.tensorflow.lite.examples.detection.env.ImageUtils;
 import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.env.MotionGate;
+import org.tensorflow.lite.examples.detection.env.YuvScaler;
+import org.tensorflow.lite.examples.detection.env.YuvToTensor;
+import org.tensorflow.lite.examples.detection.tflite.AsyncClassifier;
+import org.tensorflow.lite.examples.detection.tflite.AutoTuner;
 import org.tensorflow.lite.examples.detection.tflite.Classifier;
+import org.tensorflow.lite.examples.detection.tflite.DetectionBuffer;
+import org.tensorflow.lite.examples.detection.tflite.FrameTiler;
+import org.tensorflow.lite.examples.detection.tflite.InferencePool;
 import org.tensorflow.lite.examples.detection.tflite.ProcessorType;
+import org.tensorflow.lite.examples.detection.tflite.ResolutionController;
+import org.tensorflow.lite.examples.detection.tflite.RoiCascade;
 import org.tensorflow.lite.examples.detection.tflite.TFLiteObjectDetectionAPIModel;
 import org.tensorflow.lite.examples.detection.tracking.MultiBoxTracker;
 
@@ -60,9 +65,49 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
   private static final DetectorMode MODE = DetectorMode.TF_OD_API;
   // Minimum detection confidence to track a detection.
   private static final float DEFAULT_MINIMUM_CONFIDENCE_TF_OD_API = 0.60f;
-  private float minimumConfidence = DEFAULT_MINIMUM_CONFIDENCE_TF_OD_API;
+  private volatile float minimumConfidence = DEFAULT_MINIMUM_CONFIDENCE_TF_OD_API;
+  // Decoder limits. The tracker draws at most 15 boxes, after dropping nested ones.
+  private static final float NMS_IOU_THRESHOLD = 0.5f;
+  private static final int MAX_DETECTIONS = 20;
   private static final boolean MAINTAIN_ASPECT = false;
   private static final Size DESIRED_PREVIEW_SIZE = new Size(640, 480);
+  // Interpreters run side by side, so frame N+1 can infer while frame N is post-processed.
+  private static final int INFERENCE_POOL_SIZE = 2;
+  private static final int THREADS_PER_INTERPRETER = 2;
+  // How often to log per-interpreter utilisation, in delivered frames.
+  private static final int POOL_STATS_INTERVAL = 300;
+  // Benchmark processor/thread configurations on first launch for each model and device build.
+  private static final boolean AUTO_TUNE = true;
+  private static final String AUTO_TUNE_PREFERENCES = "autotune";
+  // Smaller inputs to fall back to when inference cannot keep up with the latency budget.
+  private static final int[] REDUCED_INPUT_SIZES = {256, 192};
+  private static final float INFERENCE_BUDGET_MS = 60f;
+  // Tiled inference for small objects in high-resolution frames; runs at the full input size.
+  private static final boolean TILING = false;
+  private static final int TILE_COLUMNS = 3;
+  private static final int TILE_ROWS = 2;
+  private static final float TILE_OVERLAP = 0.2f;
+  // Coarse-to-fine cascade: the smallest input size finds candidates, full-size crops confirm
+  // them. Replaces adaptive resolution; not combined with tiling.
+  private static final boolean CASCADE = false;
+  private static final int CASCADE_MAX_CROPS = 3;
+  private static final int CASCADE_CROP_SIZE = TF_OD_API_INPUT_SIZE;
+  private static final float CASCADE_CANDIDATE_THRESHOLD = 0.3f;
+  private static final float CASCADE_STAGE2_BUDGET_MS = 30f;
+  // Skip inference while the scene is static, keeping the previous results on screen.
+  private static final boolean MOTION_GATE = true;
+  private static final int MOTION_BLOCK_SIZE = 16;
+  private static final int MOTION_BLOCK_THRESHOLD = 8;
+  private static final int MOTION_MIN_CHANGED_BLOCKS = 2;
+  private static final int MOTION_REFRESH_INTERVAL = 30;
+  // Results delivered later than this after their frame arrived are flagged as late.
+  private static final long FRAME_DEADLINE_MS = 200;
+  // One interpreter behind AsyncClassifier instead of the pool: each frame is staged and the
+  // camera buffer released at once, and a frame still waiting for the interpreter is replaced by
+  // the next one instead of new frames being dropped while it is busy. Suits delegates that gain
+  // nothing from a second interpreter. Uses the fused input at the model's own size, so it is not
+  // combined with tiling, the cascade, reduced resolutions or auto-tuning.
+  private static final boolean LATEST_FRAME_ONLY = false;
   
   public float getMinimumConfidence() {
     return minimumConfidence;
@@ -70,6 +115,13 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
   
   public void setMinimumConfidence(float confidence) {
     this.minimumConfidence = Math.max(0.0f, Math.min(1.0f, confidence));
+    // Push the threshold into decoding so low-scoring candidates are never scored or suppressed.
+    final InferencePool pool = inferencePool;
+    if (pool != null) {
+      pool.setConfidenceThreshold(minimumConfidence);
+    } else if (asyncClassifier != null) {
+      detector.setConfidenceThreshold(minimumConfidence);
+    }
   }
   
   private static final boolean SAVE_PREVIEW_BITMAP = false;
@@ -77,19 +129,57 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
   OverlayView trackingOverlay;
   private Integer sensorOrientation;
 
-  private Classifier detector;
+  private TFLiteObjectDetectionAPIModel detector;
+  private volatile InferencePool inferencePool;
+  // Set instead of inferencePool when LATEST_FRAME_ONLY.
+  private volatile AsyncClassifier asyncClassifier;
+  private int deliveredFrames;
+  // For logging time to first detection.
+  private long detectorStartNanos;
+  private volatile ProcessorType processorType = ProcessorType.CPU;
+  // Set on the first frame; frames are dropped until the tuned configuration is applied.
+  private boolean tuneStarted;
+  private volatile boolean tuning;
 
   private long lastProcessingTimeMs;
-  private Bitmap rgbFrameBitmap = null;
   private Bitmap croppedBitmap = null;
-  private Bitmap cropCopyBitmap = null;
-
-  private boolean computingDetection = false;
+  // Same mapping as frameToCropTransform, sampling only the pixels of croppedBitmap.
+  private YuvScaler frameToCropScaler;
+  private int[] croppedPixels;
 
   private long timestamp = 0;
 
   private Matrix frameToCropTransform;
   private Matrix cropToFrameTransform;
+  // Same mapping as frameToCropTransform, applied directly from the YUV frame to the model input.
+  private YuvToTensor frameToInputConverter;
+  // One entry per pool resolution level, largest first; null until the levels are built.
+  private volatile InputResolution[] inputResolutions;
+  private volatile ResolutionController resolutionController;
+  private volatile int lastInputSize;
+  // Non-null when tiling; one job per pool slot.
+  private FrameTiler frameTiler;
+  private FrameTiler.Job[] tileJobs;
+  private int[] scheduledTiles;
+  // Non-null when the cascade is running; one job per pool slot, for stage 1 input size
+  // cascadeInputSize.
+  private volatile RoiCascade roiCascade;
+  private volatile RoiCascade.Job[] cascadeJobs;
+  private int cascadeInputSize;
+  private MotionGate motionGate;
+
+  /** Preallocated conversion and mapping for one model input size. */
+  private static final class InputResolution {
+    final int size;
+    final YuvToTensor converter;
+    final Matrix cropToFrame;
+
+    InputResolution(final int size, final YuvToTensor converter, final Matrix cropToFrame) {
+      this.size = size;
+      this.converter = converter;
+      this.cropToFrame = cropToFrame;
+    }
+  }
 
   private MultiBoxTracker tracker;
 
@@ -107,16 +197,23 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
     int cropSize = TF_OD_API_INPUT_SIZE;
 
+    detectorStartNanos = System.nanoTime();
     try {
       detector =
         TFLiteObjectDetectionAPIModel.create(
-            getAssets(),
+            this,
             TF_OD_API_MODEL_FILE,
             TF_OD_API_LABELS_FILE,
             TF_OD_API_INPUT_SIZE,
             TF_OD_API_IS_QUANTIZED,
               ProcessorType.CPU);  // khởi tạo mặc định là CPU
       cropSize = TF_OD_API_INPUT_SIZE;
+      tracker.setLabels(detector.getLabels());
+      if (LATEST_FRAME_ONLY && !SAVE_PREVIEW_BITMAP) {
+        asyncClassifier = createAsyncClassifier(detector);
+      } else {
+        inferencePool = createInferencePool(detector);
+      }
     } catch (final IOException e) {
       e.printStackTrace();
       LOGGER.e(e, "Exception initializing classifier!");
@@ -134,8 +231,14 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     LOGGER.i("Camera orientation relative to screen canvas: %d", sensorOrientation);
 
     LOGGER.i("Initializing at size %dx%d", previewWidth, previewHeight);
-    rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
     croppedBitmap = Bitmap.createBitmap(cropSize, cropSize, Config.ARGB_8888);
+    croppedPixels = new int[cropSize * cropSize];
+    frameToCropScaler =
+        new YuvScaler(
+            previewWidth, previewHeight,
+            cropSize, cropSize,
+            sensorOrientation, MAINTAIN_ASPECT,
+            false);
 
     frameToCropTransform =
         ImageUtils.getTransformationMatrix(
@@ -146,6 +249,25 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     cropToFrameTransform = new Matrix();
     frameToCropTransform.invert(cropToFrameTransform);
 
+    frameToInputConverter =
+        new YuvToTensor(
+            previewWidth, previewHeight,
+            cropSize, cropSize,
+            sensorOrientation, MAINTAIN_ASPECT,
+            TF_OD_API_IS_QUANTIZED,
+            TFLiteObjectDetectionAPIModel.IMAGE_MEAN,
+            TFLiteObjectDetectionAPIModel.IMAGE_STD);
+
+    if (MOTION_GATE) {
+      motionGate =
+          new MotionGate(
+              previewWidth, previewHeight,
+              MOTION_BLOCK_SIZE,
+              MOTION_BLOCK_THRESHOLD,
+              MOTION_MIN_CHANGED_BLOCKS,
+              MOTION_REFRESH_INTERVAL);
+    }
+
     trackingOverlay = (OverlayView) findViewById(R.id.tracking_overlay);
     trackingOverlay.addCallback(
         new DrawCallback() {
@@ -159,6 +281,106 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
         });
 
     tracker.setFrameConfiguration(previewWidth, previewHeight, sensorOrientation);
+
+    // Resizing needs the fused input path, which has a converter per size. Tiles are cut for the
+    // full input size, so tiling keeps it fixed.
+    final InferencePool pool = inferencePool;
+    if (!SAVE_PREVIEW_BITMAP && pool != null) {
+      if (TILING) {
+        enableTiling(pool);
+      } else {
+        runInBackground(() -> enableInputResolutions(pool));
+      }
+    }
+  }
+
+  /** Builds interpreters and converters for the reduced input sizes and starts adapting. */
+  private void enableInputResolutions(final InferencePool pool) {
+    final int[] sizes = pool.addResolutions(REDUCED_INPUT_SIZES);
+    final InputResolution[] resolutions = new InputResolution[sizes.length];
+    for (int l = 0; l < sizes.length; ++l) {
+      final Matrix frameToInput =
+          ImageUtils.getTransformationMatrix(
+              previewWidth, previewHeight, sizes[l], sizes[l], sensorOrientation, MAINTAIN_ASPECT);
+      final Matrix inputToFrame = new Matrix();
+      frameToInput.invert(inputToFrame);
+      final YuvToTensor converter =
+          l == 0
+              ? frameToInputConverter
+              : new YuvToTensor(
+                  previewWidth, previewHeight,
+                  sizes[l], sizes[l],
+                  sensorOrientation, MAINTAIN_ASPECT,
+                  TF_OD_API_IS_QUANTIZED,
+                  TFLiteObjectDetectionAPIModel.IMAGE_MEAN,
+                  TFLiteObjectDetectionAPIModel.IMAGE_STD);
+      resolutions[l] = new InputResolution(sizes[l], converter, inputToFrame);
+    }
+    inputResolutions = resolutions;
+    if (CASCADE && sizes.length > 1) {
+      enableCascade(pool, resolutions[sizes.length - 1]);
+    } else if (sizes.length > 1) {
+      resolutionController = new ResolutionController(sizes, INFERENCE_BUDGET_MS);
+    }
+  }
+
+  /** Runs stage 1 of the cascade at {@code coarse} from now on. */
+  private void enableCascade(final InferencePool pool, final InputResolution coarse) {
+    final RoiCascade cascade =
+        new RoiCascade(
+            previewWidth, previewHeight,
+            CASCADE_CROP_SIZE,
+            TF_OD_API_INPUT_SIZE,
+            sensorOrientation,
+            TF_OD_API_IS_QUANTIZED,
+            TFLiteObjectDetectionAPIModel.IMAGE_MEAN,
+            TFLiteObjectDetectionAPIModel.IMAGE_STD,
+            CASCADE_MAX_CROPS,
+            CASCADE_CANDIDATE_THRESHOLD,
+            CASCADE_STAGE2_BUDGET_MS);
+    final RoiCascade.Job[] jobs = new RoiCascade.Job[pool.size()];
+    for (int i = 0; i < jobs.length; ++i) {
+      jobs[i] = cascade.newJob(coarse.cropToFrame, NMS_IOU_THRESHOLD, MAX_DETECTIONS);
+    }
+    cascadeInputSize = coarse.size;
+    roiCascade = cascade;
+    cascadeJobs = jobs;
+    pool.setResolutionLevel(inputResolutions.length - 1);
+    LOGGER.i("Cascade: stage 1 at %d, up to %d crops of %d px", coarse.size, CASCADE_MAX_CROPS,
+        CASCADE_CROP_SIZE);
+  }
+
+  /** Builds the tile grid and one tiling job per pool slot. */
+  private void enableTiling(final InferencePool pool) {
+    frameTiler =
+        new FrameTiler(
+            previewWidth, previewHeight,
+            TILE_COLUMNS, TILE_ROWS, TILE_OVERLAP, true,
+            TF_OD_API_INPUT_SIZE,
+            sensorOrientation,
+            TF_OD_API_IS_QUANTIZED,
+            TFLiteObjectDetectionAPIModel.IMAGE_MEAN,
+            TFLiteObjectDetectionAPIModel.IMAGE_STD);
+    tileJobs = new FrameTiler.Job[pool.size()];
+    for (int i = 0; i < tileJobs.length; ++i) {
+      tileJobs[i] = frameTiler.newJob(NMS_IOU_THRESHOLD, MAX_DETECTIONS);
+    }
+    scheduledTiles = new int[frameTiler.getTileCount()];
+    LOGGER.i("Tiling %dx%d frames into %d tiles", previewWidth, previewHeight,
+        frameTiler.getTileCount());
+  }
+
+  /** The conversion for {@code inputSize}, or null to use the primary one. */
+  private InputResolution findInputResolution(final int inputSize) {
+    final InputResolution[] resolutions = inputResolutions;
+    if (resolutions != null) {
+      for (final InputResolution r : resolutions) {
+        if (r.size == inputSize) {
+          return r;
+        }
+      }
+    }
+    return null;
   }
   
   /**
@@ -175,81 +397,272 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
   protected void processImage() {
     ++timestamp;
     final long currTimestamp = timestamp;
+    final long deadlineNanos = System.nanoTime() + FRAME_DEADLINE_MS * 1000000L;
     trackingOverlay.postInvalidate();
 
-    // No mutex needed as this method is not reentrant.
-    if (computingDetection) {
+    // Skip the frame if nothing moved since the last inferred one; the tracker keeps showing the
+    // previous results.
+    final MotionGate gate = motionGate;
+    if (gate != null
+        && !gate.hasChanged(getLuminance(), getLuminanceStride(), getLuminancePixelStride())) {
+      readyForNextImage();
+      return;
+    }
+
+    final AsyncClassifier async = asyncClassifier;
+    if (async != null) {
+      if (gate != null) {
+        gate.markInferred();
+      }
+      // The frame is copied into a staging buffer here, so the camera buffer goes back before
+      // inference starts. A frame still waiting behind the running one is cancelled in favour of
+      // this one. Results arrive through the callback, so the request is released straight away
+      // and recycled once it has been reported.
+      async
+          .recognizeAsync(
+              currTimestamp,
+              input -> fillInputBuffer(frameToInputConverter, input),
+              deadlineNanos)
+          .release();
+      readyForNextImage();
+      return;
+    }
+
+    // Drop the frame if every interpreter is busy.
+    final InferencePool pool = inferencePool;
+    final InferencePool.Slot slot = pool != null && !tuning ? pool.acquire() : null;
+    if (slot == null) {
       readyForNextImage();
       return;
     }
-    computingDetection = true;
+    if (gate != null) {
+      gate.markInferred();
+    }
     LOGGER.i("Preparing image " + currTimestamp + " for detection in bg thread.");
 
-    rgbFrameBitmap.setPixels(getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
+    // Unless the preview bitmap is being saved, sample the frame straight into the model input
+    // and skip the ARGB frame and both Bitmaps.
+    final boolean fusedInput = !SAVE_PREVIEW_BITMAP && frameToInputConverter != null;
+    final FrameTiler.Job tileJob = fusedInput && tileJobs != null ? tileJobs[slot.getIndex()] : null;
+    // Frames already headed for another input size when the cascade started run as before.
+    final RoiCascade.Job[] jobs = cascadeJobs;
+    final RoiCascade.Job cascadeJob =
+        fusedInput && jobs != null && slot.getInputSize() == cascadeInputSize
+            ? jobs[slot.getIndex()]
+            : null;
+    if (tileJob != null) {
+      final int count =
+          frameTiler.schedule(
+              getLuminance(), getLuminanceStride(), getLuminancePixelStride(), scheduledTiles);
+      for (int k = 0; k < count; ++k) {
+        final int tile = scheduledTiles[k];
+        fillInputBuffer(frameTiler.getConverter(tile), tileJob.getInput(tile));
+      }
+      tileJob.setTiles(scheduledTiles, count);
+      if (AUTO_TUNE && !tuneStarted) {
+        startAutoTune(pool, tileJob.getInput(scheduledTiles[0]));
+      }
+    } else if (fusedInput) {
+      final InputResolution resolution = findInputResolution(slot.getInputSize());
+      fillInputBuffer(
+          resolution != null ? resolution.converter : frameToInputConverter,
+          slot.getInputBuffer());
+      if (cascadeJob != null) {
+        copyFrame(cascadeJob.getFrame());
+      }
+      if (AUTO_TUNE && !tuneStarted) {
+        startAutoTune(pool, slot.getInputBuffer());
+      }
+    } else {
+      scaleFrame(frameToCropScaler, croppedPixels);
+      final int side = croppedBitmap.getWidth();
+      croppedBitmap.setPixels(croppedPixels, 0, side, 0, 0, side, side);
+    }
 
     readyForNextImage();
 
-    final Canvas canvas = new Canvas(croppedBitmap);
-    canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
-    // For examining the actual TF input.
-    if (SAVE_PREVIEW_BITMAP) {
-      ImageUtils.saveBitmap(croppedBitmap);
+    if (tileJob != null) {
+      pool.submit(slot, currTimestamp, deadlineNanos, tileJob::run);
+    } else if (cascadeJob != null) {
+      final Classifier fine = slot.getClassifier(0);
+      pool.submit(
+          slot, currTimestamp, deadlineNanos, (coarse, out) -> cascadeJob.run(coarse, fine, out));
+    } else if (fusedInput) {
+      pool.submit(slot, currTimestamp, deadlineNanos, Classifier::recognizeInputBuffer);
+    } else {
+      // For examining the actual TF input.
+      if (SAVE_PREVIEW_BITMAP) {
+        ImageUtils.saveBitmap(croppedBitmap);
+      }
+      // Several frames can be in flight, so each one needs its own copy of the crop.
+      final Bitmap input = Bitmap.createBitmap(croppedBitmap);
+      pool.submit(
+          slot,
+          currTimestamp,
+          deadlineNanos,
+          (classifier, out) -> classifier.recognizeImage(input, out));
     }
+  }
 
-    runInBackground(
-        new Runnable() {
-          @Override
-          public void run() {
-            LOGGER.i("Running detection on image " + currTimestamp);
-            final long startTime = SystemClock.uptimeMillis();
-            final List<Classifier.Recognition> results = detector.recognizeImage(croppedBitmap);
-            lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
-
-            cropCopyBitmap = Bitmap.createBitmap(croppedBitmap);
-            final Canvas canvas = new Canvas(cropCopyBitmap);
-            final Paint paint = new Paint();
-            paint.setColor(Color.RED);
-            paint.setStyle(Style.STROKE);
-            paint.setStrokeWidth(2.0f);
-
-            float minimumConfidenceThreshold = minimumConfidence;
-            switch (MODE) {
-              case TF_OD_API:
-                minimumConfidenceThreshold = minimumConfidence;
-                break;
-            }
-
-            final List<Classifier.Recognition> mappedRecognitions =
-                new LinkedList<Classifier.Recognition>();
+  /** Receives detections from the inference pool, in frame order, on its delivery thread. */
+  private void onDetectionResult(
+      final long frameTimestamp,
+      final DetectionBuffer results,
+      final long inferenceMs,
+      final boolean late) {
+    LOGGER.i("Detection finished for image " + frameTimestamp);
+    if (late) {
+      LOGGER.w("Detection for image %d missed its %d ms deadline", frameTimestamp,
+          FRAME_DEADLINE_MS);
+    }
+    if (deliveredFrames == 0) {
+      LOGGER.i(
+          "Time to first detection: %d ms", (System.nanoTime() - detectorStartNanos) / 1000000);
+    }
+    lastProcessingTimeMs = inferenceMs;
+    if (motionGate != null) {
+      motionGate.onInferenceTime(inferenceMs);
+    }
 
-            for (final Classifier.Recognition result : results) {
-              final RectF location = result.getLocation();
-              if (location != null && result.getConfidence() >= minimumConfidenceThreshold) {
-                canvas.drawRect(location, paint);
+    float minimumConfidenceThreshold = minimumConfidence;
+    switch (MODE) {
+      case TF_OD_API:
+        minimumConfidenceThreshold = minimumConfidence;
+        break;
+    }
 
-                cropToFrameTransform.mapRect(location);
+    // Decoders already drop detections below the threshold; this only catches frames that were
+    // in flight when the seek bar moved. The buffer is reused by the pool, so work in place.
+    results.retainScoresAtLeast(minimumConfidenceThreshold);
+    // Boxes are in the pixels of whichever input size produced them.
+    final InputResolution resolution = findInputResolution(results.getInputSize());
+    results.mapBoxes(resolution != null ? resolution.cropToFrame : cropToFrameTransform);
+    lastInputSize = results.getInputSize();
+    final FrameTiler tiler = frameTiler;
+    if (tiler != null) {
+      tiler.setTracks(results);
+    }
 
-                result.setLocation(location);
-                mappedRecognitions.add(result);
-              }
-            }
+    tracker.trackResults(results, frameTimestamp);
+    trackingOverlay.postInvalidate();
 
-            tracker.trackResults(mappedRecognitions, currTimestamp);
-            trackingOverlay.postInvalidate();
+    final InferencePool pool = inferencePool;
+    final ResolutionController controller = resolutionController;
+    if (controller != null && pool != null) {
+      pool.setResolutionLevel(controller.onFrame(results.getInputSize(), inferenceMs));
+    }
+    final RoiCascade cascade = roiCascade;
+    final AsyncClassifier async = asyncClassifier;
+    if (++deliveredFrames % POOL_STATS_INTERVAL == 0 && (pool != null || async != null)) {
+      if (pool != null) {
+        LOGGER.i("Inference pool utilisation: %s", pool.getStatString());
+      } else {
+        LOGGER.i("Latest-frame classifier: %s", async.getStatString());
+      }
+      if (cascade != null) {
+        LOGGER.i("Cascade: %s", cascade.getStatString());
+      }
+      if (motionGate != null) {
+        LOGGER.i("Motion gate: %s", motionGate.getStatString());
+      }
+    }
+    // Late results are still tracked, but the readout says so instead of passing them off as
+    // current.
+    final String inferenceInfo =
+        (cascade != null
+                ? String.format("%dms (%d+%d)", lastProcessingTimeMs, cascade.getLastStage1Ms(),
+                    cascade.getLastStage2Ms())
+                : lastProcessingTimeMs + "ms")
+            + (late ? " late" : "");
+
+    runOnUiThread(
+        new Runnable() {
+          @Override
+          public void run() {
+            showFrameInfo(previewWidth + "x" + previewHeight);
+            showCropInfo(lastInputSize + "x" + lastInputSize);
+            showInference(inferenceInfo);
+          }
+        });
+  }
 
-            computingDetection = false;
+  @Override
+  public synchronized void onDestroy() {
+    final InferencePool pool = inferencePool;
+    inferencePool = null;
+    if (pool != null) {
+      pool.close();
+    }
+    final AsyncClassifier async = asyncClassifier;
+    asyncClassifier = null;
+    if (async != null) {
+      async.close();
+    }
+    super.onDestroy();
+  }
 
-            runOnUiThread(
-                new Runnable() {
-                  @Override
-                  public void run() {
-                    showFrameInfo(previewWidth + "x" + previewHeight);
-                    showCropInfo(cropCopyBitmap.getWidth() + "x" + cropCopyBitmap.getHeight());
-                    showInference(lastProcessingTimeMs + "ms");
-                  }
-                });
+  /**
+   * Applies the stored configuration for this model and device, or benchmarks one using
+   * {@code frame} as representative input. Detection pauses until it is applied.
+   */
+  private void startAutoTune(final InferencePool pool, final ByteBuffer frame) {
+    tuneStarted = true;
+    tuning = true;
+    // The slot's buffer is reused for the next frame, so benchmark a copy.
+    final ByteBuffer sample = ByteBuffer.allocateDirect(frame.capacity()).order(ByteOrder.nativeOrder());
+    frame.rewind();
+    sample.put(frame);
+    frame.rewind();
+    final AutoTuner tuner = new AutoTuner(getSharedPreferences(AUTO_TUNE_PREFERENCES, MODE_PRIVATE));
+    final int maxThreads =
+        Math.max(1, Runtime.getRuntime().availableProcessors() / INFERENCE_POOL_SIZE);
+    runInBackground(() -> {
+      try {
+        AutoTuner.Configuration config = tuner.load(AutoTuner.profileKey(detector));
+        if (config != null) {
+          LOGGER.i("Using tuned configuration " + config);
+        } else {
+          LOGGER.i("No tuned configuration for this model and device, benchmarking");
+          config = tuner.tune(detector, sample, maxThreads);
+        }
+        if (config != null && inferencePool == pool) {
+          if (config.processorType == processorType || pool.prepareProcessorType(config.processorType)) {
+            processorType = config.processorType;
           }
-        });
+          pool.setNumThreads(config.numThreads);
+          showProcessorConfiguration(processorType, config.numThreads);
+        }
+      } finally {
+        tuning = false;
+      }
+    });
+  }
+
+  private InferencePool createInferencePool(final TFLiteObjectDetectionAPIModel model) {
+    final InferencePool pool =
+        new InferencePool(
+            model, INFERENCE_POOL_SIZE, THREADS_PER_INTERPRETER, this::onDetectionResult);
+    pool.setConfidenceThreshold(minimumConfidence);
+    pool.setIouThreshold(NMS_IOU_THRESHOLD);
+    pool.setMaxDetections(MAX_DETECTIONS);
+    return pool;
+  }
+
+  private AsyncClassifier createAsyncClassifier(final TFLiteObjectDetectionAPIModel model) {
+    model.setConfidenceThreshold(minimumConfidence);
+    model.setIouThreshold(NMS_IOU_THRESHOLD);
+    model.setMaxDetections(MAX_DETECTIONS);
+    // Results are handled on the background thread, in completion order, which for a single
+    // interpreter is frame order.
+    return new AsyncClassifier(
+        model,
+        this::runInBackground,
+        request ->
+            onDetectionResult(
+                request.getFrameId(),
+                request.getDetections(),
+                request.getInferenceMs(),
+                request.isLate()));
   }
 
   @Override
@@ -291,41 +704,43 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
   @Override
   protected void setUseNNAPI(final boolean isChecked) {
-    runInBackground(() -> detector.setUseNNAPI(isChecked));
+    // Every interpreter in the pool has to switch, which is what a processor change does.
+    setProcessorType(isChecked ? ProcessorType.NPU : ProcessorType.CPU);
   }
 
   @Override
   protected void setNumThreads(final int numThreads) {
-    runInBackground(() -> detector.setNumThreads(numThreads));
+    final InferencePool pool = inferencePool;
+    if (pool != null) {
+      pool.setNumThreads(numThreads);
+      return;
+    }
+    final AsyncClassifier async = asyncClassifier;
+    if (async != null) {
+      async.setNumThreads(numThreads);
+    }
   }
   @Override
   protected void setProcessorType(final ProcessorType processorType) {
+    // Spinners echo programmatic selections back here, so ignore a type that is already in use.
+    if (processorType == this.processorType) {
+      return;
+    }
+    // Replacement interpreters are built and warmed up here on the background thread; detection
+    // keeps running on the current ones until each slot swaps at its next frame.
     runInBackground(() -> {
-      if (detector != null) {
-        recreateClassifier(processorType);
+      final InferencePool pool = inferencePool;
+      if (pool == null) {
+        if (asyncClassifier != null && detector.prepareProcessorType(processorType)) {
+          this.processorType = processorType;
+        }
+        return;
+      }
+      if (pool.prepareProcessorType(processorType)) {
+        this.processorType = processorType;
+      } else {
+        LOGGER.w("Could not switch to %s, keeping the current processor", processorType);
       }
     });
   }
-
-  private void recreateClassifier(ProcessorType processorType) {
-    try {
-      detector =
-              TFLiteObjectDetectionAPIModel.create(
-                      getAssets(),
-                      TF_OD_API_MODEL_FILE,
-                      TF_OD_API_LABELS_FILE,
-                      TF_OD_API_INPUT_SIZE,
-                      TF_OD_API_IS_QUANTIZED,
-                      processorType
-                      ); // Truyền processor type
-    } catch (final IOException e) {
-      e.printStackTrace();
-      LOGGER.e(e, "Exception initializing classifier!");
-      Toast toast =
-              Toast.makeText(
-                      getApplicationContext(), "Classifier could not be initialized", Toast.LENGTH_SHORT);
-      toast.show();
-      finish();
-    }
-  }
 }
@@ -18,8 +18,13 @@ package org.tensorflow.lite.examples.detection.env;
 import android.graphics.Bitmap;
 import android.graphics.Matrix;
 import android.os.Environment;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /** Utility class for manipulating images. */
 public class ImageUtils {
@@ -27,9 +32,11 @@ public class ImageUtils {
   // are normalized to eight bits.
   static final int kMaxChannelValue = 262143;
 
-  @SuppressWarnings("unused")
   private static final Logger LOGGER = new Logger();
 
+  // Frames shorter than two stripes of this many rows are converted on the calling thread.
+  private static final int MIN_STRIPE_ROWS = 32;
+
   /**
    * Utility method to compute the allocated size in bytes of a YUV420SP image of the given
    * dimensions.
@@ -86,25 +93,92 @@ public class ImageUtils {
   }
 
   public static void convertYUV420SPToARGB8888(byte[] input, int width, int height, int[] output) {
+    convertYUV420SPRows(input, width, height, 0, height, output);
+  }
+
+  /**
+   * Like {@link #convertYUV420SPToARGB8888}, split into row stripes that run in parallel on the
+   * big cores. The output is identical to the single-threaded version.
+   *
+   * <p>The full-frame conversions here only serve the preview Bitmap path (CameraActivity's
+   * getRgbBytes()). Model input is sampled straight from the YUV frame by {@link YuvToTensor} and
+   * {@link YuvScaler}, which never build a full ARGB frame.
+   */
+  public static void convertYUV420SPToARGB8888Parallel(
+      final byte[] input, final int width, final int height, final int[] output) {
+    convertYUV420SPToARGB8888Parallel(StripePool.POOL, input, width, height, output);
+  }
+
+  static void convertYUV420SPToARGB8888Parallel(
+      final ForkJoinPool pool,
+      final byte[] input,
+      final int width,
+      final int height,
+      final int[] output) {
+    convertStripes(
+        pool,
+        height,
+        (rowStart, rowEnd) -> convertYUV420SPRows(input, width, height, rowStart, rowEnd, output));
+  }
+
+  private static void convertYUV420SPRows(
+      byte[] input, int width, int height, int rowStart, int rowEnd, int[] output) {
     final int frameSize = width * height;
-    for (int j = 0, yp = 0; j < height; j++) {
+    final int pairEnd = width & ~1;
+    for (int j = rowStart; j < rowEnd; j++) {
+      final int rowOffset = j * width;
       int uvp = frameSize + (j >> 1) * width;
-      int u = 0;
-      int v = 0;
-
-      for (int i = 0; i < width; i++, yp++) {
-        int y = 0xff & input[yp];
-        if ((i & 1) == 0) {
-          v = 0xff & input[uvp++];
-          u = 0xff & input[uvp++];
-        }
-
-        output[yp] = YUV2RGB(y, u, v);
+      int yp = rowOffset;
+      // Each NV21 chroma pair (V first) covers two pixels of the row.
+      for (final int end = rowOffset + pairEnd; yp < end; yp += 2, uvp += 2) {
+        final int v = 0xff & input[uvp];
+        final int u = 0xff & input[uvp + 1];
+        final int rv = RGB_V_TO_R[v];
+        final int guv = RGB_U_TO_G[u] + RGB_V_TO_G[v];
+        final int bu = RGB_U_TO_B[u];
+        output[yp] = tableRgb(RGB_Y[0xff & input[yp]], rv, guv, bu);
+        output[yp + 1] = tableRgb(RGB_Y[0xff & input[yp + 1]], rv, guv, bu);
       }
+      if (pairEnd < width) {
+        output[yp] = YUV2RGB(0xff & input[yp], 0xff & input[uvp + 1], 0xff & input[uvp]);
+      }
+    }
+  }
+
+  // Contributions of each 8-bit Y, U and V value to the 18-bit R, G and B sums of YUV2RGB().
+  private static final int[] RGB_Y = new int[256];
+  private static final int[] RGB_V_TO_R = new int[256];
+  private static final int[] RGB_U_TO_G = new int[256];
+  private static final int[] RGB_V_TO_G = new int[256];
+  private static final int[] RGB_U_TO_B = new int[256];
+  // Clamped 8-bit channel for a sum shifted right by 10, indexed from CLAMP_OFFSET. Clamping to
+  // [0, kMaxChannelValue] and keeping bits 10-17 is the same as shifting first and clamping to
+  // [0, 255]. The sums span [-259, 534] after the shift.
+  private static final int CLAMP_OFFSET = 384;
+  private static final int[] CLAMP = new int[1024];
+
+  static {
+    for (int i = 0; i < 256; ++i) {
+      RGB_Y[i] = 1192 * Math.max(0, i - 16);
+      RGB_V_TO_R[i] = 1634 * (i - 128);
+      RGB_U_TO_G[i] = -400 * (i - 128);
+      RGB_V_TO_G[i] = -833 * (i - 128);
+      RGB_U_TO_B[i] = 2066 * (i - 128);
     }
+    for (int i = 0; i < CLAMP.length; ++i) {
+      CLAMP[i] = Math.max(0, Math.min(255, i - CLAMP_OFFSET));
+    }
+  }
+
+  // Table form of YUV2RGB(), with the chroma terms computed once for the pixels sharing them.
+  private static int tableRgb(final int y, final int rv, final int guv, final int bu) {
+    return 0xff000000
+        | CLAMP[((y + rv) >> 10) + CLAMP_OFFSET] << 16
+        | CLAMP[((y + guv) >> 10) + CLAMP_OFFSET] << 8
+        | CLAMP[((y + bu) >> 10) + CLAMP_OFFSET];
   }
 
-  private static int YUV2RGB(int y, int u, int v) {
+  static int YUV2RGB(int y, int u, int v) {
     // Adjust and check YUV values
     y = (y - 16) < 0 ? 0 : (y - 16);
     u -= 128;
@@ -138,16 +212,213 @@ public class ImageUtils {
       int uvRowStride,
       int uvPixelStride,
       int[] out) {
-    int yp = 0;
-    for (int j = 0; j < height; j++) {
+    convertYUV420Rows(
+        yData, uData, vData, width, yRowStride, uvRowStride, uvPixelStride, 0, height, out);
+  }
+
+  /**
+   * Like {@link #convertYUV420ToARGB8888}, split into row stripes that run in parallel on the big
+   * cores. The output is identical to the single-threaded version. Preview only, as {@link
+   * #convertYUV420SPToARGB8888Parallel}.
+   */
+  public static void convertYUV420ToARGB8888Parallel(
+      final byte[] yData,
+      final byte[] uData,
+      final byte[] vData,
+      final int width,
+      final int height,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] out) {
+    convertYUV420ToARGB8888Parallel(
+        StripePool.POOL,
+        yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride, out);
+  }
+
+  static void convertYUV420ToARGB8888Parallel(
+      final ForkJoinPool pool,
+      final byte[] yData,
+      final byte[] uData,
+      final byte[] vData,
+      final int width,
+      final int height,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] out) {
+    convertStripes(
+        pool,
+        height,
+        (rowStart, rowEnd) ->
+            convertYUV420Rows(
+                yData, uData, vData, width, yRowStride, uvRowStride, uvPixelStride,
+                rowStart, rowEnd, out));
+  }
+
+  private static void convertYUV420Rows(
+      byte[] yData,
+      byte[] uData,
+      byte[] vData,
+      int width,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int rowStart,
+      int rowEnd,
+      int[] out) {
+    final int pairEnd = width & ~1;
+    for (int j = rowStart; j < rowEnd; j++) {
       int pY = yRowStride * j;
       int pUV = uvRowStride * (j >> 1);
+      int yp = j * width;
+
+      // Each chroma sample covers two pixels of the row.
+      int i = 0;
+      for (; i < pairEnd; i += 2, pY += 2, pUV += uvPixelStride, yp += 2) {
+        final int u = 0xff & uData[pUV];
+        final int v = 0xff & vData[pUV];
+        final int rv = RGB_V_TO_R[v];
+        final int guv = RGB_U_TO_G[u] + RGB_V_TO_G[v];
+        final int bu = RGB_U_TO_B[u];
+        out[yp] = tableRgb(RGB_Y[0xff & yData[pY]], rv, guv, bu);
+        out[yp + 1] = tableRgb(RGB_Y[0xff & yData[pY + 1]], rv, guv, bu);
+      }
+      if (i < width) {
+        out[yp] = YUV2RGB(0xff & yData[pY], 0xff & uData[pUV], 0xff & vData[pUV]);
+      }
+    }
+  }
+
+  /**
+   * Converts a packed 4:2:2 YUYV frame (Y0 U Y1 V per pixel pair, chroma on every row), as
+   * delivered by UVC cameras, in parallel row stripes like {@link
+   * #convertYUV420SPToARGB8888Parallel}. Preview only, as that method.
+   *
+   * @throws IllegalArgumentException if {@code width} is odd, as YUYV only packs whole pixel pairs.
+   */
+  public static void convertYUYVToARGB8888Parallel(
+      final byte[] input, final int width, final int height, final int rowStride, final int[] out) {
+    convertYUYVToARGB8888Parallel(StripePool.POOL, input, width, height, rowStride, out);
+  }
+
+  static void convertYUYVToARGB8888Parallel(
+      final ForkJoinPool pool,
+      final byte[] input,
+      final int width,
+      final int height,
+      final int rowStride,
+      final int[] out) {
+    if ((width & 1) != 0) {
+      throw new IllegalArgumentException("YUYV frames need an even width, got " + width + ".");
+    }
+    convertStripes(
+        pool,
+        height,
+        (rowStart, rowEnd) -> convertYUYVRows(input, width, rowStride, rowStart, rowEnd, out));
+  }
+
+  private static void convertYUYVRows(
+      byte[] input, int width, int rowStride, int rowStart, int rowEnd, int[] out) {
+    for (int j = rowStart; j < rowEnd; j++) {
+      int p = j * rowStride;
+      int yp = j * width;
+      // Every four bytes hold two pixels sharing one chroma sample; the width is even.
+      for (final int end = yp + width; yp < end; yp += 2, p += 4) {
+        final int u = 0xff & input[p + 1];
+        final int v = 0xff & input[p + 3];
+        final int rv = RGB_V_TO_R[v];
+        final int guv = RGB_U_TO_G[u] + RGB_V_TO_G[v];
+        final int bu = RGB_U_TO_B[u];
+        out[yp] = tableRgb(RGB_Y[0xff & input[p]], rv, guv, bu);
+        out[yp + 1] = tableRgb(RGB_Y[0xff & input[p + 2]], rv, guv, bu);
+      }
+    }
+  }
+
+  /** Converts rows [rowStart, rowEnd) of a frame. */
+  private interface RowConverter {
+    void convert(int rowStart, int rowEnd);
+  }
+
+  // Splits [0, height) into stripes of whole chroma rows, one per worker, and waits for them.
+  private static void convertStripes(
+      final ForkJoinPool pool, final int height, final RowConverter converter) {
+    final int workers = pool.getParallelism();
+    if (workers < 2 || height < 2 * MIN_STRIPE_ROWS) {
+      converter.convert(0, height);
+      return;
+    }
+    // Round up to an even row count so no chroma row is shared between stripes.
+    int stripeRows = Math.max(MIN_STRIPE_ROWS, (height + workers - 1) / workers);
+    stripeRows = (stripeRows + 1) & ~1;
+    pool.invoke(new StripeTask(converter, 0, height, stripeRows));
+  }
 
-      for (int i = 0; i < width; i++) {
-        int uv_offset = pUV + (i >> 1) * uvPixelStride;
+  private static final class StripeTask extends RecursiveAction {
+    // ForkJoinTask is Serializable, but stripes are never serialized.
+    private static final long serialVersionUID = 1L;
+
+    private final RowConverter converter;
+    private final int rowStart;
+    private final int rowEnd;
+    private final int stripeRows;
+
+    StripeTask(
+        final RowConverter converter, final int rowStart, final int rowEnd, final int stripeRows) {
+      this.converter = converter;
+      this.rowStart = rowStart;
+      this.rowEnd = rowEnd;
+      this.stripeRows = stripeRows;
+    }
+
+    @Override
+    protected void compute() {
+      final int stripes = (rowEnd - rowStart + stripeRows - 1) / stripeRows;
+      if (stripes <= 1) {
+        converter.convert(rowStart, rowEnd);
+        return;
+      }
+      final int mid = rowStart + (stripes / 2) * stripeRows;
+      invokeAll(
+          new StripeTask(converter, rowStart, mid, stripeRows),
+          new StripeTask(converter, mid, rowEnd, stripeRows));
+    }
+  }
 
-        out[yp++] = YUV2RGB(0xff & yData[pY + i], 0xff & uData[uv_offset], 0xff & vData[uv_offset]);
+  /** Conversion workers, created on first use and sized to the big cores. */
+  private static final class StripePool {
+    private static final String CPU_DIR = "/sys/devices/system/cpu/";
+    static final ForkJoinPool POOL = new ForkJoinPool(countBigCores());
+
+    /**
+     * Cores whose maximum frequency is above the slowest cluster's, or all of them on a
+     * homogeneous SoC or when cpufreq is unreadable. Stripes on a little core would finish last
+     * and hold up the frame.
+     */
+    private static int countBigCores() {
+      final int cpus = Runtime.getRuntime().availableProcessors();
+      final long[] maxFreq = new long[cpus];
+      long slowest = Long.MAX_VALUE;
+      for (int i = 0; i < cpus; ++i) {
+        final File file = new File(CPU_DIR + "cpu" + i + "/cpufreq/cpuinfo_max_freq");
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+          maxFreq[i] = Long.parseLong(reader.readLine().trim());
+        } catch (final IOException | RuntimeException e) {
+          LOGGER.w("Cannot read the frequency of cpu%d, using all %d cores", i, cpus);
+          return cpus;
+        }
+        slowest = Math.min(slowest, maxFreq[i]);
+      }
+      int big = 0;
+      for (final long freq : maxFreq) {
+        if (freq > slowest) {
+          ++big;
+        }
       }
+      final int workers = big > 0 ? big : cpus;
+      LOGGER.i("YUV conversion on %d of %d cores", workers, cpus);
+      return workers;
     }
   }
 
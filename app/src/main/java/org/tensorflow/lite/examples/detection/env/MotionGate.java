@@ -0,0 +1,164 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.env;
+
+import java.util.Locale;
+
+/**
+ * Decides whether a camera frame differs enough from the last inferred one to be worth running
+ * the detector on.
+ *
+ * <p>The Y plane is reduced to the mean luminance of each block, sampling a sparse grid inside the
+ * block, and compared against the block means of the last frame that was inferred. The frame
+ * counts as changed when enough blocks moved by more than a threshold; comparing block means
+ * rather than pixels ignores sensor noise, and counting blocks rather than summing differences
+ * still catches a small object moving through an otherwise static scene. A forced refresh every
+ * {@code refreshInterval} frames guards against slow drift that never crosses the threshold.
+ *
+ * <p>Call {@link #hasChanged} for each frame, and {@link #markInferred} when the frame is actually
+ * handed to the detector. Not thread-safe, except for the statistics methods.
+ */
+public final class MotionGate {
+  // Pixels sampled per block side; a 16 px block is read at every 4th pixel. Partial blocks at
+  // the right and bottom edges are ignored.
+  private static final int SAMPLES_PER_SIDE = 4;
+
+  private final int blockSize;
+  private final int blockThreshold;
+  private final int minChangedBlocks;
+  private final int refreshInterval;
+  private final int columns;
+  private final int rows;
+
+  private int[] reference;
+  private int[] current;
+  private int framesSinceInference;
+
+  // Statistics, guarded by this.
+  private long inferredFrames;
+  private long skippedFrames;
+  private long gateNanos;
+  private float averageInferenceMs;
+
+  /**
+   * @param width Frame width.
+   * @param height Frame height.
+   * @param blockSize Side of a block, in pixels.
+   * @param blockThreshold Change of a block's mean luminance, in levels, that counts as motion.
+   * @param minChangedBlocks Number of changed blocks that make the frame worth inferring.
+   * @param refreshInterval Maximum number of frames between two inferences.
+   */
+  public MotionGate(
+      final int width,
+      final int height,
+      final int blockSize,
+      final int blockThreshold,
+      final int minChangedBlocks,
+      final int refreshInterval) {
+    this.blockSize = blockSize;
+    this.blockThreshold = blockThreshold;
+    this.minChangedBlocks = minChangedBlocks;
+    this.refreshInterval = refreshInterval;
+    this.columns = Math.max(1, width / blockSize);
+    this.rows = Math.max(1, height / blockSize);
+    this.current = new int[columns * rows];
+  }
+
+  /**
+   * Reduces the frame to block means and returns whether it should be inferred: it changed since
+   * the last inferred frame, or the refresh interval is up. A frame that is not inferred counts as
+   * skipped.
+   */
+  public boolean hasChanged(final byte[] luma, final int rowStride) {
+    return hasChanged(luma, rowStride, 1);
+  }
+
+  /**
+   * Like {@link #hasChanged(byte[], int)}, for luma samples {@code pixelStride} bytes apart, such
+   * as the Y bytes of a packed YUYV frame.
+   */
+  public boolean hasChanged(final byte[] luma, final int rowStride, final int pixelStride) {
+    final long start = System.nanoTime();
+    final int step = Math.max(1, blockSize / SAMPLES_PER_SIDE);
+    final int samples = ((blockSize + step - 1) / step) * ((blockSize + step - 1) / step);
+    for (int r = 0, b = 0; r < rows; ++r) {
+      final int top = r * blockSize;
+      for (int c = 0; c < columns; ++c, ++b) {
+        final int left = c * blockSize;
+        int sum = 0;
+        for (int y = top + step / 2; y < top + blockSize; y += step) {
+          final int row = y * rowStride;
+          for (int x = left + step / 2; x < left + blockSize; x += step) {
+            sum += luma[row + x * pixelStride] & 0xff;
+          }
+        }
+        current[b] = sum / samples;
+      }
+    }
+
+    boolean changed = reference == null || ++framesSinceInference >= refreshInterval;
+    if (!changed) {
+      int changedBlocks = 0;
+      for (int b = 0; b < current.length && changedBlocks < minChangedBlocks; ++b) {
+        if (Math.abs(current[b] - reference[b]) > blockThreshold) {
+          ++changedBlocks;
+        }
+      }
+      changed = changedBlocks >= minChangedBlocks;
+    }
+
+    synchronized (this) {
+      gateNanos += System.nanoTime() - start;
+      if (!changed) {
+        ++skippedFrames;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Makes the frame last passed to {@link #hasChanged} the reference for the following ones. Call
+   * it only when that frame is actually inferred.
+   */
+  public void markInferred() {
+    final int[] t = reference;
+    reference = current;
+    current = t != null ? t : new int[reference.length];
+    framesSinceInference = 0;
+    synchronized (this) {
+      ++inferredFrames;
+    }
+  }
+
+  /** Feeds the latency of a completed inference, used to estimate the time saved by skipping. */
+  public synchronized void onInferenceTime(final long inferenceMs) {
+    averageInferenceMs =
+        averageInferenceMs == 0 ? inferenceMs : averageInferenceMs * 0.9f + inferenceMs * 0.1f;
+  }
+
+  /** Frames inferred and skipped, with the estimated inference time saved and the gate's cost. */
+  public synchronized String getStatString() {
+    final long total = inferredFrames + skippedFrames;
+    return String.format(
+        Locale.US,
+        "inferred %d, skipped %d (%.0f%%), saved ~%d ms of inference, gate %.2f ms/frame",
+        inferredFrames,
+        skippedFrames,
+        total > 0 ? 100f * skippedFrames / total : 0f,
+        (long) (skippedFrames * averageInferenceMs),
+        total > 0 ? gateNanos / 1e6f / total : 0f);
+  }
+}
@@ -0,0 +1,69 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.env;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A copy of a camera frame's YUV planes, for work that outlives the camera buffer. Plane arrays
+ * are kept and reused while the frame size stays the same.
+ */
+public final class YuvFrame {
+  /** Chroma pixel stride that marks an NV21 frame, held whole in the first buffer. */
+  public static final int NV21 = 0;
+  /**
+   * Chroma pixel stride that marks a packed 4:2:2 YUYV frame, held whole in the first buffer with
+   * the Y row stride as its row stride.
+   */
+  public static final int YUYV = -1;
+
+  private final byte[][] planes = new byte[3][];
+  private int yRowStride;
+  private int uvRowStride;
+  // NV21 or YUYV for single-buffer frames, where planes[0] holds the whole frame.
+  private int uvPixelStride;
+
+  /**
+   * Copies a frame in the layout {@code CameraActivity} keeps: NV21 or YUYV in {@code src[0]} when
+   * {@code uvPixelStride} is {@link #NV21} or {@link #YUYV}, separate YUV_420_888 planes
+   * otherwise.
+   */
+  public void copyFrom(
+      final byte[][] src, final int yRowStride, final int uvRowStride, final int uvPixelStride) {
+    final int planeCount = uvPixelStride == NV21 || uvPixelStride == YUYV ? 1 : 3;
+    for (int i = 0; i < planeCount; ++i) {
+      if (planes[i] == null || planes[i].length != src[i].length) {
+        planes[i] = new byte[src[i].length];
+      }
+      System.arraycopy(src[i], 0, planes[i], 0, src[i].length);
+    }
+    this.yRowStride = yRowStride;
+    this.uvRowStride = uvRowStride;
+    this.uvPixelStride = uvPixelStride;
+  }
+
+  /** Converts the copied frame into {@code out} with {@code converter}. */
+  public void convert(final YuvToTensor converter, final ByteBuffer out) {
+    if (uvPixelStride == NV21) {
+      converter.convertNv21(planes[0], out);
+    } else if (uvPixelStride == YUYV) {
+      converter.convertYuyv(planes[0], yRowStride, out);
+    } else {
+      converter.convertYuv420(
+          planes[0], planes[1], planes[2], yRowStride, uvRowStride, uvPixelStride, out);
+    }
+  }
+}
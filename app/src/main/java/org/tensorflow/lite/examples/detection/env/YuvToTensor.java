@@ -0,0 +1,355 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.env;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Converts a YUV camera frame straight into a model input buffer in one pass.
+ *
+ * <p>The same crop, scale and rotation as {@link ImageUtils#getTransformationMatrix} is applied by
+ * sampling the source at the inverse-mapped centre of each destination pixel (nearest neighbour,
+ * like an unfiltered {@code Canvas.drawBitmap}). Pixels that map outside the frame are black. The
+ * sampling positions are computed once per geometry and the plane offsets once per stride layout,
+ * so the per-frame work is a gather plus the colour conversion. No Android classes are used.
+ */
+public class YuvToTensor {
+  private final int srcWidth;
+  private final int srcHeight;
+  private final int dstWidth;
+  private final int dstHeight;
+  private final boolean quantized;
+  private final float mean;
+  private final float std;
+
+  // Source pixel sampled by each destination pixel, relative to the crop origin, or -1 outside
+  // the crop.
+  private final int[] srcX;
+  private final int[] srcY;
+  private int cropLeft;
+  private int cropTop;
+
+  // Plane offsets derived from srcX/srcY for the last seen stride layout.
+  private final int[] yOffsets;
+  private final int[] uvOffsets;
+  private int layoutYRowStride = -1;
+  private int layoutYPixelStride = -1;
+  private int layoutUvRowStride = -1;
+  private int layoutUvPixelStride = -1;
+  private int layoutUvBase = -1;
+
+  private final byte[] rgbBytes;
+  private final float[] rgbFloats;
+  private ByteBuffer lastOut;
+  private FloatBuffer floatView;
+
+  /**
+   * @param srcWidth Width of the camera frame.
+   * @param srcHeight Height of the camera frame.
+   * @param dstWidth Width of the model input.
+   * @param dstHeight Height of the model input.
+   * @param applyRotation Rotation to apply, a multiple of 90.
+   * @param maintainAspectRatio As in {@link ImageUtils#getTransformationMatrix}.
+   * @param quantized If true, write RGB bytes; otherwise write (value - mean) / std floats.
+   */
+  public YuvToTensor(
+      final int srcWidth,
+      final int srcHeight,
+      final int dstWidth,
+      final int dstHeight,
+      final int applyRotation,
+      final boolean maintainAspectRatio,
+      final boolean quantized,
+      final float mean,
+      final float std) {
+    this(
+        srcWidth, srcHeight, 0, 0, srcWidth, srcHeight, dstWidth, dstHeight, applyRotation,
+        maintainAspectRatio, quantized, mean, std);
+  }
+
+  /**
+   * Like the full-frame constructor, but samples only the crop rectangle [cropLeft, cropLeft +
+   * cropWidth) x [cropTop, cropTop + cropHeight) of the frame, as if that region were the whole
+   * frame. Pixels that map outside the crop are black.
+   */
+  public YuvToTensor(
+      final int srcWidth,
+      final int srcHeight,
+      final int cropLeft,
+      final int cropTop,
+      final int cropWidth,
+      final int cropHeight,
+      final int dstWidth,
+      final int dstHeight,
+      final int applyRotation,
+      final boolean maintainAspectRatio,
+      final boolean quantized,
+      final float mean,
+      final float std) {
+    this.srcWidth = srcWidth;
+    this.srcHeight = srcHeight;
+    this.dstWidth = dstWidth;
+    this.dstHeight = dstHeight;
+    this.quantized = quantized;
+    this.mean = mean;
+    this.std = std;
+
+    final int pixels = dstWidth * dstHeight;
+    srcX = new int[pixels];
+    srcY = new int[pixels];
+    yOffsets = new int[pixels];
+    uvOffsets = new int[pixels];
+    rgbBytes = quantized ? new byte[pixels * 3] : null;
+    rgbFloats = quantized ? null : new float[pixels * 3];
+
+    final float[] inverse =
+        invert(
+            transform(
+                cropWidth, cropHeight, dstWidth, dstHeight, applyRotation, maintainAspectRatio));
+    this.cropLeft = cropLeft;
+    this.cropTop = cropTop;
+    for (int y = 0, p = 0; y < dstHeight; ++y) {
+      for (int x = 0; x < dstWidth; ++x, ++p) {
+        final float cx = x + 0.5f;
+        final float cy = y + 0.5f;
+        final int sx = (int) Math.floor(inverse[0] * cx + inverse[1] * cy + inverse[2]);
+        final int sy = (int) Math.floor(inverse[3] * cx + inverse[4] * cy + inverse[5]);
+        final boolean inside = sx >= 0 && sx < cropWidth && sy >= 0 && sy < cropHeight;
+        srcX[p] = inside ? sx : -1;
+        srcY[p] = inside ? sy : -1;
+      }
+    }
+  }
+
+  /**
+   * Moves the crop rectangle to a new top-left corner in the frame, keeping its size and the
+   * destination geometry. Plane offsets are recomputed on the next conversion, which is much
+   * cheaper than building a new converter per crop.
+   */
+  public void moveCrop(final int cropLeft, final int cropTop) {
+    if (cropLeft == this.cropLeft && cropTop == this.cropTop) {
+      return;
+    }
+    this.cropLeft = cropLeft;
+    this.cropTop = cropTop;
+    layoutYRowStride = -1;
+  }
+
+  /** Number of bytes the destination buffer needs. */
+  public int getByteSize() {
+    return dstWidth * dstHeight * 3 * (quantized ? 1 : 4);
+  }
+
+  /**
+   * Converts an NV21 (YUV420SP, VU interleaved) frame with row stride equal to its width, as
+   * delivered by the legacy camera API and the UVC camera.
+   */
+  public void convertNv21(final byte[] nv21, final ByteBuffer out) {
+    layout(srcWidth, 1, srcWidth, 2, srcWidth * srcHeight, 1);
+    for (int p = 0; p < yOffsets.length; ++p) {
+      final int yo = yOffsets[p];
+      if (yo < 0) {
+        store(p, 0);
+        continue;
+      }
+      final int uvo = uvOffsets[p];
+      store(p, ImageUtils.YUV2RGB(0xff & nv21[yo], 0xff & nv21[uvo + 1], 0xff & nv21[uvo]));
+    }
+    flush(out);
+  }
+
+  /** Converts a YUV_420_888 frame given as separate planes, as delivered by Camera2. */
+  public void convertYuv420(
+      final byte[] yData,
+      final byte[] uData,
+      final byte[] vData,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final ByteBuffer out) {
+    layout(yRowStride, 1, uvRowStride, uvPixelStride, 0, 1);
+    for (int p = 0; p < yOffsets.length; ++p) {
+      final int yo = yOffsets[p];
+      if (yo < 0) {
+        store(p, 0);
+        continue;
+      }
+      final int uvo = uvOffsets[p];
+      store(p, ImageUtils.YUV2RGB(0xff & yData[yo], 0xff & uData[uvo], 0xff & vData[uvo]));
+    }
+    flush(out);
+  }
+
+  /**
+   * Converts a packed 4:2:2 YUYV frame (Y0 U Y1 V per pixel pair, chroma on every row), as
+   * delivered by the UVC camera's YUV frame callback.
+   *
+   * @throws IllegalArgumentException if the frame width is odd, as YUYV only packs whole pixel
+   *     pairs.
+   */
+  public void convertYuyv(final byte[] yuyv, final int rowStride, final ByteBuffer out) {
+    if ((srcWidth & 1) != 0) {
+      throw new IllegalArgumentException("YUYV frames need an even width, got " + srcWidth + ".");
+    }
+    layout(rowStride, 2, rowStride, 4, 1, 0);
+    for (int p = 0; p < yOffsets.length; ++p) {
+      final int yo = yOffsets[p];
+      if (yo < 0) {
+        store(p, 0);
+        continue;
+      }
+      final int uo = uvOffsets[p];
+      store(p, ImageUtils.YUV2RGB(0xff & yuyv[yo], 0xff & yuyv[uo], 0xff & yuyv[uo + 2]));
+    }
+    flush(out);
+  }
+
+  /**
+   * Recomputes plane offsets if the stride layout changed since the last frame.
+   *
+   * @param uvRowShift 1 when chroma is subsampled vertically (4:2:0), 0 when not (4:2:2).
+   */
+  private void layout(
+      final int yRowStride,
+      final int yPixelStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int uvBase,
+      final int uvRowShift) {
+    // The Y pixel stride tells 4:2:2 apart from the 4:2:0 layouts.
+    if (yRowStride == layoutYRowStride
+        && yPixelStride == layoutYPixelStride
+        && uvRowStride == layoutUvRowStride
+        && uvPixelStride == layoutUvPixelStride
+        && uvBase == layoutUvBase) {
+      return;
+    }
+    for (int p = 0; p < srcX.length; ++p) {
+      final int sx = cropLeft + srcX[p];
+      final int sy = cropTop + srcY[p];
+      if (srcX[p] < 0 || sx < 0 || sx >= srcWidth || sy < 0 || sy >= srcHeight) {
+        yOffsets[p] = -1;
+        uvOffsets[p] = -1;
+        continue;
+      }
+      yOffsets[p] = sy * yRowStride + sx * yPixelStride;
+      uvOffsets[p] = uvBase + (sy >> uvRowShift) * uvRowStride + (sx >> 1) * uvPixelStride;
+    }
+    layoutYRowStride = yRowStride;
+    layoutYPixelStride = yPixelStride;
+    layoutUvRowStride = uvRowStride;
+    layoutUvPixelStride = uvPixelStride;
+    layoutUvBase = uvBase;
+  }
+
+  private void store(final int p, final int argb) {
+    final int o = p * 3;
+    final int r = (argb >> 16) & 0xFF;
+    final int g = (argb >> 8) & 0xFF;
+    final int b = argb & 0xFF;
+    if (quantized) {
+      rgbBytes[o] = (byte) r;
+      rgbBytes[o + 1] = (byte) g;
+      rgbBytes[o + 2] = (byte) b;
+    } else {
+      rgbFloats[o] = (r - mean) / std;
+      rgbFloats[o + 1] = (g - mean) / std;
+      rgbFloats[o + 2] = (b - mean) / std;
+    }
+  }
+
+  /** Copies the converted pixels into {@code out} with a single bulk put. */
+  private void flush(final ByteBuffer out) {
+    out.rewind();
+    if (quantized) {
+      out.put(rgbBytes);
+    } else {
+      if (out != lastOut) {
+        // asFloatBuffer() allocates a view, so keep it for as long as the target is the same.
+        floatView = out.order(ByteOrder.nativeOrder()).asFloatBuffer();
+        lastOut = out;
+      }
+      floatView.rewind();
+      floatView.put(rgbFloats);
+    }
+    out.rewind();
+  }
+
+  /**
+   * Forward affine [a, b, c, d, e, f] (x' = a*x + b*y + c, y' = d*x + e*y + f), built with the
+   * same steps as {@link ImageUtils#getTransformationMatrix}.
+   */
+  static float[] transform(
+      final int srcWidth,
+      final int srcHeight,
+      final int dstWidth,
+      final int dstHeight,
+      final int applyRotation,
+      final boolean maintainAspectRatio) {
+    float a = 1, b = 0, c = 0, d = 0, e = 1, f = 0;
+
+    if (applyRotation != 0) {
+      c -= srcWidth / 2.0f;
+      f -= srcHeight / 2.0f;
+
+      final double radians = Math.toRadians(applyRotation);
+      final float cos = snap((float) Math.cos(radians));
+      final float sin = snap((float) Math.sin(radians));
+      final float na = cos * a - sin * d, nb = cos * b - sin * e, nc = cos * c - sin * f;
+      final float nd = sin * a + cos * d, ne = sin * b + cos * e, nf = sin * c + cos * f;
+      a = na; b = nb; c = nc; d = nd; e = ne; f = nf;
+    }
+
+    final boolean transpose = (Math.abs(applyRotation) + 90) % 180 == 0;
+    final int inWidth = transpose ? srcHeight : srcWidth;
+    final int inHeight = transpose ? srcWidth : srcHeight;
+
+    if (inWidth != dstWidth || inHeight != dstHeight) {
+      float scaleX = dstWidth / (float) inWidth;
+      float scaleY = dstHeight / (float) inHeight;
+      if (maintainAspectRatio) {
+        scaleX = scaleY = Math.max(scaleX, scaleY);
+      }
+      a *= scaleX; b *= scaleX; c *= scaleX;
+      d *= scaleY; e *= scaleY; f *= scaleY;
+    }
+
+    if (applyRotation != 0) {
+      c += dstWidth / 2.0f;
+      f += dstHeight / 2.0f;
+    }
+    return new float[] {a, b, c, d, e, f};
+  }
+
+  static float[] invert(final float[] m) {
+    final float det = m[0] * m[4] - m[1] * m[3];
+    final float ia = m[4] / det;
+    final float ib = -m[1] / det;
+    final float id = -m[3] / det;
+    final float ie = m[0] / det;
+    return new float[] {
+      ia, ib, -(ia * m[2] + ib * m[5]),
+      id, ie, -(id * m[2] + ie * m[5])
+    };
+  }
+
+  // Multiples of 90 degrees should give exact 0/1 terms, not 6e-17 leftovers.
+  private static float snap(final float v) {
+    return Math.abs(v) < 1e-6f ? 0f : v;
+  }
+}
@@ -0,0 +1,417 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.tensorflow.lite.examples.detection.env.Logger;
+
+/**
+ * Runs a {@link Classifier} on its own thread, so callers hand a frame over and carry on instead
+ * of blocking in {@code recognizeImage}.
+ *
+ * <p>{@link #recognizeAsync} writes the frame into a staging buffer on the calling thread and
+ * returns at once, so the camera buffer can be released (see {@code
+ * CameraActivity.readyForNextImage}) before inference even starts. At most one frame waits behind
+ * the one being inferred: a newer frame supersedes it, and the superseded {@link Request} is
+ * cancelled without running. A result that completes after its deadline is flagged with {@link
+ * Request#isLate()} rather than passed off as current.
+ *
+ * <p>{@link #recognizeAsync} must be called from a single thread. Once {@link #close()} has been
+ * called it returns requests that are already cancelled, so nothing waits on a stopped thread.
+ *
+ * <p>Requests, with their detection buffers, are reused like the staging buffers: a caller that
+ * is done with one, or never wanted it because it only listens to the callback, calls {@link
+ * Request#release()}, and the request is recycled once it has also run or been cancelled and been
+ * reported. A request that is never released is left to the garbage collector.
+ */
+public final class AsyncClassifier {
+  private static final Logger LOGGER = new Logger();
+
+  /** Writes a frame into the model input, in the layout {@link Classifier#getInputBuffer()} uses. */
+  public interface InputWriter {
+    void write(ByteBuffer input);
+  }
+
+  /**
+   * Receives completed requests on the callback executor. Cancelled requests are not reported. A
+   * request the caller has released is recycled as soon as {@code onResult} returns.
+   */
+  public interface Callback {
+    void onResult(Request request);
+  }
+
+  private static final int QUEUED = 0;
+  private static final int RUNNING = 1;
+  private static final int DONE = 2;
+  private static final int CANCELLED = 3;
+
+  private final Classifier classifier;
+  private final Executor callbackExecutor;
+  private final Callback callback;
+  private final HandlerThread thread;
+  private final Handler handler;
+  private final int inputBytes;
+
+  // Guarded by this.
+  private final ArrayDeque<ByteBuffer> freeStaging = new ArrayDeque<>();
+  private final ArrayDeque<Request> freeRequests = new ArrayDeque<>();
+  private Request queued;
+  private boolean closed;
+  private long superseded;
+  private long late;
+  private long completed;
+
+  /**
+   * @param classifier Used only from this object's thread from now on, and closed with it.
+   * @param callbackExecutor Where {@code callback} runs; may be null along with {@code callback}
+   *     for callers that only use the returned futures.
+   */
+  public AsyncClassifier(
+      final Classifier classifier, final Executor callbackExecutor, final Callback callback) {
+    this.classifier = classifier;
+    this.callbackExecutor = callbackExecutor;
+    this.callback = callback;
+    this.inputBytes = classifier.getInputBuffer().capacity();
+    this.thread = new HandlerThread("async-classifier");
+    this.thread.start();
+    this.handler = new Handler(thread.getLooper());
+  }
+
+  /**
+   * Stages a frame for detection and returns without waiting for it.
+   *
+   * @param frameId Caller's id for the frame, reported back by {@link Request#getFrameId()}.
+   * @param frame Writes the frame's pixels; runs on the calling thread before this returns.
+   * @param deadlineNanos {@link System#nanoTime()} by which the result is still useful.
+   * @return the pending request, or a cancelled one if this object is closed. Either way the
+   *     caller holds it until {@link Request#release()}.
+   */
+  public Request recognizeAsync(
+      final long frameId, final InputWriter frame, final long deadlineNanos) {
+    ByteBuffer staging;
+    synchronized (this) {
+      if (closed) {
+        return obtainRequest(frameId, null, deadlineNanos, CANCELLED);
+      }
+      staging = freeStaging.poll();
+    }
+    if (staging == null) {
+      staging = ByteBuffer.allocateDirect(inputBytes).order(ByteOrder.nativeOrder());
+    }
+    staging.rewind();
+    frame.write(staging);
+
+    final Request request;
+    final Request previous;
+    synchronized (this) {
+      if (closed) {
+        freeStaging.add(staging);
+        return obtainRequest(frameId, null, deadlineNanos, CANCELLED);
+      }
+      request = obtainRequest(frameId, staging, deadlineNanos, QUEUED);
+      previous = queued;
+      queued = request;
+    }
+    if (previous != null && previous.cancel(false)) {
+      synchronized (this) {
+        ++superseded;
+      }
+    }
+    if (!handler.post(request.runner)) {
+      // The thread quit between the check above and here; close() may not have seen this frame.
+      request.cancel(false);
+      synchronized (this) {
+        request.dropClassifierHold();
+      }
+    }
+    return request;
+  }
+
+  /**
+   * Takes a request from the free list, or makes one, held by the caller and, unless it starts out
+   * cancelled, by this object until it has run.
+   */
+  // Called with this held.
+  private Request obtainRequest(
+      final long frameId, final ByteBuffer staging, final long deadlineNanos, final int state) {
+    Request request = freeRequests.poll();
+    if (request == null) {
+      request = new Request();
+    }
+    request.frameId = frameId;
+    request.staging = staging;
+    request.deadlineNanos = deadlineNanos;
+    request.state = state;
+    request.late = false;
+    request.inferenceMs = 0;
+    request.detections.clear();
+    request.callerHolds = true;
+    request.classifierHolds = state == QUEUED;
+    return request;
+  }
+
+  /**
+   * Changes the classifier's thread count on its own thread, between frames, since the interpreter
+   * is rebuilt there. Does nothing once this object is closed.
+   */
+  public void setNumThreads(final int numThreads) {
+    // Posted under the lock so it cannot land behind the close that close() posts.
+    synchronized (this) {
+      if (!closed) {
+        handler.post(() -> classifier.setNumThreads(numThreads));
+      }
+    }
+  }
+
+  /** Requests completed, completed late, and superseded before they started. */
+  public synchronized String getStatString() {
+    return String.format("completed %d (late %d), superseded %d", completed, late, superseded);
+  }
+
+  /**
+   * Cancels the waiting frame, lets the running one finish, then closes the classifier and stops
+   * the thread. Later {@link #recognizeAsync} calls return cancelled requests.
+   */
+  public void close() {
+    final Request pending;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      pending = queued;
+    }
+    if (pending != null) {
+      pending.cancel(false);
+    }
+    handler.post(classifier::close);
+    thread.quitSafely();
+  }
+
+  /** One frame handed to {@link #recognizeAsync}. */
+  public final class Request implements Future<DetectionBuffer> {
+    private final DetectionBuffer detections = new DetectionBuffer();
+    // Built once, so reposting a recycled request allocates nothing.
+    private final Runnable runner = this::run;
+    private final Runnable reporter = this::report;
+    // Set by obtainRequest() before the request is handed out.
+    private long frameId;
+    private long deadlineNanos;
+    // Guarded by AsyncClassifier.this.
+    private ByteBuffer staging;
+    private int state;
+    private boolean late;
+    private long inferenceMs;
+    // The request is recycled once neither the caller nor the classifier thread holds it.
+    private boolean callerHolds;
+    private boolean classifierHolds;
+
+    private Request() {}
+
+    /** The id passed to {@link #recognizeAsync}. */
+    public long getFrameId() {
+      return frameId;
+    }
+
+    /** Whether the result completed after its deadline. Valid once {@link #isDone()}. */
+    public boolean isLate() {
+      synchronized (AsyncClassifier.this) {
+        return late;
+      }
+    }
+
+    public long getInferenceMs() {
+      synchronized (AsyncClassifier.this) {
+        return inferenceMs;
+      }
+    }
+
+    /** The detections, without waiting; empty until {@link #isDone()}. */
+    public DetectionBuffer getDetections() {
+      return detections;
+    }
+
+    /**
+     * Hands the request back for reuse. It must not be touched afterwards, including its
+     * detections; calling this again does nothing.
+     */
+    public void release() {
+      synchronized (AsyncClassifier.this) {
+        if (callerHolds) {
+          callerHolds = false;
+          recycleIfUnheld();
+        }
+      }
+    }
+
+    /** Cancels the request if inference has not started yet. */
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+      synchronized (AsyncClassifier.this) {
+        if (state != QUEUED) {
+          return false;
+        }
+        state = CANCELLED;
+        releaseStaging();
+        if (queued == this) {
+          queued = null;
+        }
+        AsyncClassifier.this.notifyAll();
+        return true;
+      }
+    }
+
+    @Override
+    public boolean isCancelled() {
+      synchronized (AsyncClassifier.this) {
+        return state == CANCELLED;
+      }
+    }
+
+    @Override
+    public boolean isDone() {
+      synchronized (AsyncClassifier.this) {
+        return state == DONE || state == CANCELLED;
+      }
+    }
+
+    @Override
+    public DetectionBuffer get() throws InterruptedException, ExecutionException {
+      synchronized (AsyncClassifier.this) {
+        while (state == QUEUED || state == RUNNING) {
+          AsyncClassifier.this.wait();
+        }
+        return result();
+      }
+    }
+
+    @Override
+    public DetectionBuffer get(final long timeout, final TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      final long end = System.nanoTime() + unit.toNanos(timeout);
+      synchronized (AsyncClassifier.this) {
+        while (state == QUEUED || state == RUNNING) {
+          final long remaining = end - System.nanoTime();
+          if (remaining <= 0) {
+            throw new TimeoutException();
+          }
+          TimeUnit.NANOSECONDS.timedWait(AsyncClassifier.this, remaining);
+        }
+        return result();
+      }
+    }
+
+    private DetectionBuffer result() {
+      if (state == CANCELLED) {
+        throw new CancellationException();
+      }
+      return detections;
+    }
+
+    private void releaseStaging() {
+      if (staging != null) {
+        freeStaging.add(staging);
+        staging = null;
+      }
+    }
+
+    // Called with AsyncClassifier.this held.
+    private void dropClassifierHold() {
+      if (classifierHolds) {
+        classifierHolds = false;
+        recycleIfUnheld();
+      }
+    }
+
+    // Called with AsyncClassifier.this held.
+    private void recycleIfUnheld() {
+      if (!callerHolds && !classifierHolds) {
+        freeRequests.add(this);
+      }
+    }
+
+    // Runs on the classifier thread. A cancelled request is still held until here, so it is not
+    // recycled and reposted while this post is pending.
+    private void run() {
+      final ByteBuffer input;
+      synchronized (AsyncClassifier.this) {
+        if (state != QUEUED) {
+          dropClassifierHold();
+          return;
+        }
+        state = RUNNING;
+        if (queued == this) {
+          queued = null;
+        }
+        input = staging;
+      }
+      final long start = System.nanoTime();
+      try {
+        final ByteBuffer modelInput = classifier.getInputBuffer();
+        modelInput.rewind();
+        input.rewind();
+        modelInput.put(input);
+        modelInput.rewind();
+        synchronized (AsyncClassifier.this) {
+          releaseStaging();
+        }
+        classifier.recognizeInputBuffer(detections);
+      } catch (final RuntimeException e) {
+        LOGGER.e(e, "Asynchronous inference failed");
+        detections.clear();
+      }
+      final long end = System.nanoTime();
+      synchronized (AsyncClassifier.this) {
+        releaseStaging();
+        inferenceMs = (end - start) / 1000000;
+        late = end - deadlineNanos > 0;
+        state = DONE;
+        ++completed;
+        if (late) {
+          ++AsyncClassifier.this.late;
+        }
+        AsyncClassifier.this.notifyAll();
+        if (callback == null) {
+          dropClassifierHold();
+        }
+      }
+      if (callback != null) {
+        callbackExecutor.execute(reporter);
+      }
+    }
+
+    // Runs on the callback executor.
+    private void report() {
+      try {
+        callback.onResult(this);
+      } finally {
+        synchronized (AsyncClassifier.this) {
+          dropClassifierHold();
+        }
+      }
+    }
+  }
+}
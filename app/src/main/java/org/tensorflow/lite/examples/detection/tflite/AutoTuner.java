@@ -0,0 +1,152 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import android.content.SharedPreferences;
+import android.os.Build;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.tensorflow.lite.examples.detection.env.Logger;
+
+/**
+ * Picks the fastest processor type and thread count for a model on this device.
+ *
+ * <p>{@link #tune} times CPU with 1..N threads and every delegate that initialises, on a real
+ * camera frame, and keeps the configuration with the lowest median latency (p95 breaks ties). The
+ * result is stored under the model file hash and the device build fingerprint, so it is reused
+ * until either changes and {@link #load} can skip the benchmark on later launches.
+ */
+public final class AutoTuner {
+  private static final Logger LOGGER = new Logger();
+
+  private static final int WARMUP_RUNS = 3;
+  private static final int MAX_RUNS = 30;
+  private static final long BUDGET_MS = 1500;
+  // Medians within this fraction of each other are a tie, decided by p95.
+  private static final float TIE_FRACTION = 0.03f;
+
+  /** A tuned configuration and the latencies it was measured at. */
+  public static final class Configuration {
+    public final ProcessorType processorType;
+    public final int numThreads;
+    public final float p50Ms;
+    public final float p95Ms;
+
+    Configuration(
+        final ProcessorType processorType,
+        final int numThreads,
+        final float p50Ms,
+        final float p95Ms) {
+      this.processorType = processorType;
+      this.numThreads = numThreads;
+      this.p50Ms = p50Ms;
+      this.p95Ms = p95Ms;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s x%d p50=%.1fms p95=%.1fms", processorType, numThreads, p50Ms, p95Ms);
+    }
+  }
+
+  private final SharedPreferences preferences;
+
+  public AutoTuner(final SharedPreferences preferences) {
+    this.preferences = preferences;
+  }
+
+  /** Key a profile is stored under: the model fingerprint plus the device build fingerprint. */
+  public static String profileKey(final TFLiteObjectDetectionAPIModel model) {
+    return model.getModelFingerprint() + "|" + Build.FINGERPRINT;
+  }
+
+  /** Returns the stored configuration for {@code key}, or null if this pair was never tuned. */
+  public Configuration load(final String key) {
+    final String value = preferences.getString(key, null);
+    if (value == null) {
+      return null;
+    }
+    try {
+      final String[] parts = value.split(",");
+      return new Configuration(
+          ProcessorType.valueOf(parts[0]),
+          Integer.parseInt(parts[1]),
+          Float.parseFloat(parts[2]),
+          Float.parseFloat(parts[3]));
+    } catch (RuntimeException e) {
+      LOGGER.w("Ignoring unreadable tuning profile: " + value);
+      return null;
+    }
+  }
+
+  /**
+   * Benchmarks every candidate configuration on {@code sampleInput} and stores the best one under
+   * {@link #profileKey}. Takes a few seconds; call it off the UI and inference threads.
+   *
+   * @param sampleInput a filled input buffer, laid out like {@link
+   *     TFLiteObjectDetectionAPIModel#getInputBuffer()}.
+   * @param maxThreads largest CPU thread count to try; delegates are tried at this count.
+   * @return the chosen configuration, or null if nothing could be measured.
+   */
+  public Configuration tune(
+      final TFLiteObjectDetectionAPIModel model, final ByteBuffer sampleInput, final int maxThreads) {
+    final int threads = Math.max(1, maxThreads);
+    final StringBuilder table = new StringBuilder("Auto-tune results:");
+    Configuration best = null;
+    for (int i = 0; i < threads + 2; ++i) {
+      final ProcessorType type =
+          i < threads ? ProcessorType.CPU : i == threads ? ProcessorType.NPU : ProcessorType.GPU;
+      final int n = i < threads ? i + 1 : threads;
+      final float[] samples = model.benchmark(type, n, sampleInput, WARMUP_RUNS, MAX_RUNS, BUDGET_MS);
+      if (samples == null || samples.length == 0) {
+        table.append("\n  ").append(type).append(" x").append(n).append(" unavailable");
+        continue;
+      }
+      Arrays.sort(samples);
+      final Configuration candidate =
+          new Configuration(type, n, percentile(samples, 50), percentile(samples, 95));
+      table.append("\n  ").append(candidate).append(" (").append(samples.length).append(" runs)");
+      if (best == null || isBetter(candidate, best)) {
+        best = candidate;
+      }
+    }
+    LOGGER.i(table.toString());
+    if (best == null) {
+      return null;
+    }
+    LOGGER.i("Auto-tune picked " + best);
+    preferences
+        .edit()
+        .putString(
+            profileKey(model),
+            best.processorType.name() + "," + best.numThreads + "," + best.p50Ms + "," + best.p95Ms)
+        .apply();
+    return best;
+  }
+
+  private static boolean isBetter(final Configuration a, final Configuration b) {
+    if (Math.abs(a.p50Ms - b.p50Ms) <= TIE_FRACTION * Math.min(a.p50Ms, b.p50Ms)) {
+      return a.p95Ms < b.p95Ms;
+    }
+    return a.p50Ms < b.p50Ms;
+  }
+
+  // Nearest-rank percentile of sorted samples.
+  private static float percentile(final float[] sorted, final int p) {
+    final int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+    return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+  }
+}
@@ -17,12 +17,45 @@ package org.tensorflow.lite.examples.detection.tflite;
 
 import android.graphics.Bitmap;
 import android.graphics.RectF;
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.List;
 
 /** Generic interface for interacting with different recognition engines. */
 public interface Classifier {
   List<Recognition> recognizeImage(Bitmap bitmap);
 
+  /** Like {@link #recognizeImage(Bitmap)}, writing into a reusable buffer without allocating. */
+  void recognizeImage(Bitmap bitmap, DetectionBuffer out);
+
+  /**
+   * The model's input buffer, for callers that write preprocessed pixels themselves. Fill it and
+   * call {@link #recognizeInputBuffer()}; do not keep a reference across calls to this object.
+   */
+  ByteBuffer getInputBuffer();
+
+  /** Runs detection on the current contents of {@link #getInputBuffer()}. */
+  List<Recognition> recognizeInputBuffer();
+
+  /** Like {@link #recognizeInputBuffer()}, writing into a reusable buffer without allocating. */
+  void recognizeInputBuffer(DetectionBuffer out);
+
+  /**
+   * Like {@link #recognizeInputBuffer(DetectionBuffer)}, with a confidence threshold for this call
+   * only. The threshold set by {@link #setConfidenceThreshold} is left as it is, so callers sharing
+   * the classifier never see each other's value.
+   */
+  void recognizeInputBuffer(DetectionBuffer out, float confidence);
+
+  /**
+   * Runs detection on a list of images, packing them into interpreter invocations of up to four
+   * images where the model accepts a batch dimension and running them one by one otherwise. Batches
+   * are cut from the list as passed; nothing is queued across calls.
+   *
+   * @return one list of recognitions per image, in input order.
+   */
+  List<List<Recognition>> recognizeBatch(List<Bitmap> bitmaps);
+
   void enableStatLogging(final boolean debug);
 
   String getStatString();
@@ -33,6 +66,30 @@ public interface Classifier {
 
   void setUseNNAPI(boolean isChecked);
 
+  /**
+   * Minimum confidence for a detection to be returned. Candidates below it are discarded while
+   * decoding, before suppression, so a higher threshold also means less work per frame.
+   */
+  void setConfidenceThreshold(float confidence);
+
+  /** The threshold set by {@link #setConfidenceThreshold}. */
+  float getConfidenceThreshold();
+
+  /** Overlap above which the weaker of two detections is suppressed. */
+  void setIouThreshold(float iouThreshold);
+
+  /** Maximum number of detections returned per image. */
+  void setMaxDetections(int maxDetections);
+
+  /** The model's labels; detection class ids index into it. */
+  LabelTable getLabels();
+
+  /**
+   * Restricts detections to the given labels, dropping other classes while decoding. Null reports
+   * every class again.
+   */
+  void setClassFilter(Collection<String> labels);
+
   /** An immutable result returned by a Classifier describing what was recognized. */
   public class Recognition {
     /**
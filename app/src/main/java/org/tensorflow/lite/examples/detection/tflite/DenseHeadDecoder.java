@@ -0,0 +1,177 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+/**
+ * Base class for heads that emit one candidate per anchor or grid cell and leave score selection
+ * and non-max suppression to the app. Subclasses fill {@link #scores}, {@link #classes} and the box
+ * rows returned by {@link #boxes()}; this class picks the final detections.
+ */
+abstract class DenseHeadDecoder implements DetectionDecoder {
+  // Until the app sets its confidence threshold.
+  private static final float DEFAULT_SCORE_THRESHOLD = 0.01f;
+  private static final float DEFAULT_IOU_THRESHOLD = 0.5f;
+  // Candidates ranked for NMS per requested detection. Greedy suppression over the best K
+  // candidates picks exactly the boxes it would pick over the full ranking, in the same order, as
+  // long as it fills maxDetections before running out; the cap can only cut the tail of the list
+  // short. Each object is typically covered by a cluster of overlapping anchors above threshold
+  // (SSD heads place 6 aspect ratios per cell across neighbouring cells and scales, YOLO heads
+  // fire on the neighbouring cells), so 20 slots per detection leaves room for a full cluster to
+  // be suppressed before the next object is reached, while still bounding the per-frame work
+  // independently of the anchor count.
+  private static final int CANDIDATES_PER_DETECTION = 20;
+
+  /** Number of candidates (anchors or grid cells). */
+  protected final int anchors;
+  /** Best class score per candidate. */
+  protected final float[] scores;
+  /** Best class index per candidate, on the model's class axis, or -1 for a skipped candidate. */
+  protected final int[] classes;
+
+  private final int inputSize;
+  private final int maxDetectionsLimit;
+  private final TopKSelector topK;
+  private final NonMaxSuppression nms;
+  // Pipeline ids when a class map is set; classes stays on the model axis across frames.
+  private final int[] labels;
+  private final int[] candidates;
+  private final int[] picks;
+  private final float[] pickScores;
+
+  // Written by the app, read once per frame.
+  private volatile float scoreThreshold = DEFAULT_SCORE_THRESHOLD;
+  private volatile float iouThreshold = DEFAULT_IOU_THRESHOLD;
+  private volatile int maxDetections;
+  private volatile int[] classMap;
+  // Threshold for the frame being decoded: scoreThreshold, or the one passed to decode().
+  private float frameScoreThreshold = DEFAULT_SCORE_THRESHOLD;
+
+  DenseHeadDecoder(final int anchors, final int inputSize, final int maxDetections) {
+    this.anchors = anchors;
+    this.inputSize = inputSize;
+    this.maxDetectionsLimit = maxDetections;
+    this.maxDetections = maxDetections;
+    this.scores = new float[anchors];
+    this.classes = new int[anchors];
+    this.labels = new int[anchors];
+    this.topK = new TopKSelector(Math.min(maxDetections * CANDIDATES_PER_DETECTION, anchors));
+    // Grid bucketing keeps exactly the boxes greedy NMS keeps, with fewer IoU tests at the
+    // candidate counts above.
+    this.nms =
+        new NonMaxSuppression()
+            .setMethod(NonMaxSuppression.Method.GRID)
+            .setIouThreshold(DEFAULT_IOU_THRESHOLD);
+    this.candidates = new int[topK.capacity()];
+    this.picks = new int[maxDetections];
+    this.pickScores = new float[maxDetections];
+  }
+
+  /**
+   * Minimum score a candidate needs to reach NMS, fixed for the frame being decoded. Subclasses
+   * should use it to reject candidates as early as possible in {@link #scoreCandidates()}.
+   */
+  protected final float scoreThreshold() {
+    return frameScoreThreshold;
+  }
+
+  @Override
+  public void setScoreThreshold(final float scoreThreshold) {
+    this.scoreThreshold = scoreThreshold;
+  }
+
+  @Override
+  public float getScoreThreshold() {
+    return scoreThreshold;
+  }
+
+  @Override
+  public void setIouThreshold(final float iouThreshold) {
+    this.iouThreshold = iouThreshold;
+  }
+
+  @Override
+  public void setMaxDetections(final int maxDetections) {
+    this.maxDetections = Math.max(1, Math.min(maxDetectionsLimit, maxDetections));
+  }
+
+  @Override
+  public void setClassMap(final int[] classMap) {
+    this.classMap = classMap;
+  }
+
+  /** Suppression used by {@link #decode()}; subclasses may reconfigure it at construction. */
+  protected final NonMaxSuppression nms() {
+    return nms;
+  }
+
+  /**
+   * Fills {@link #scores} and {@link #classes}, and makes {@link #boxes()} valid. Candidates
+   * rejected early must get class -1: that, not their score, keeps them out of the output when the
+   * threshold is 0.
+   */
+  protected abstract void scoreCandidates();
+
+  /** Box rows as normalized [ymin, xmin, ymax, xmax], four floats per candidate. */
+  protected abstract float[] boxes();
+
+  @Override
+  public final void decode(final DetectionBuffer out) {
+    decode(out, scoreThreshold);
+  }
+
+  @Override
+  public final void decode(final DetectionBuffer out, final float scoreThreshold) {
+    frameScoreThreshold = scoreThreshold;
+    nms.setIouThreshold(iouThreshold).setScoreThreshold(frameScoreThreshold);
+    scoreCandidates();
+    final float[] boxes = boxes();
+    final float[] scores = this.scores;
+    final int[] map = classMap;
+    final int[] labels;
+    if (map != null) {
+      // Relabel to pipeline ids; background and filtered classes become -1, which top-K skips.
+      labels = this.labels;
+      for (int a = 0; a < anchors; ++a) {
+        final int c = classes[a];
+        labels[a] = c >= 0 && c < map.length ? map[c] : -1;
+      }
+    } else {
+      labels = classes;
+    }
+
+    // Now select top candidates by score, best first, and apply NMS. Candidates labelled -1 are
+    // skipped by label, not by score, so a threshold of 0 cannot let them through.
+    final int candidateCount = topK.select(scores, labels, anchors, scoreThreshold(), candidates);
+
+    // Suppression only ever compares surviving candidates, never the full anchor set.
+    final int selectedCount =
+        nms.run(
+            boxes, scores, labels, candidates, candidateCount, maxDetections, picks, pickScores);
+
+    out.clear();
+    for (int k = 0; k < selectedCount; ++k) {
+      final int i = picks[k];
+      out.add(
+          boxes[i * 4 + 1] * inputSize,
+          boxes[i * 4] * inputSize,
+          boxes[i * 4 + 3] * inputSize,
+          boxes[i * 4 + 2] * inputSize,
+          pickScores[k],
+          labels[i],
+          i);
+    }
+  }
+}
@@ -0,0 +1,322 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.tensorflow.lite.examples.detection.tflite.Classifier.Recognition;
+
+/**
+ * A reusable list of detections stored as parallel primitive arrays.
+ *
+ * <p>Decoders fill it, and the threshold filter, coordinate mapping and tracker then work on it in
+ * place, so a frame's detections never allocate a {@link Recognition}, {@link RectF} or boxed
+ * score. Classes are int ids into the model's {@link LabelTable}, resolved to strings only for
+ * display. Arrays grow when needed and are kept afterwards. {@link #toRecognitions} converts to the
+ * older list form for callers that still want it.
+ */
+public final class DetectionBuffer {
+  private static final int DEFAULT_CAPACITY = 16;
+
+  private float[] boxes;
+  private float[] scores;
+  private int[] classes;
+  private int[] ids;
+  private int count;
+  private int inputSize;
+  // Scratch for suppress(), allocated on first use.
+  private TopKSelector selector;
+  private int[] order;
+  private int[] kept;
+  private float[] keptScores;
+  private DetectionBuffer spare;
+
+  public DetectionBuffer() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public DetectionBuffer(final int capacity) {
+    final int n = Math.max(1, capacity);
+    boxes = new float[n * 4];
+    scores = new float[n];
+    classes = new int[n];
+    ids = new int[n];
+  }
+
+  public int size() {
+    return count;
+  }
+
+  public void clear() {
+    count = 0;
+  }
+
+  /** Side of the model input the detections were produced at, or 0 if unknown. */
+  public int getInputSize() {
+    return inputSize;
+  }
+
+  public void setInputSize(final int inputSize) {
+    this.inputSize = inputSize;
+  }
+
+  /**
+   * Appends a detection.
+   *
+   * @param id Identifier of the candidate within the frame, e.g. its anchor index.
+   * @param classId Pipeline class id, an index into the model's {@link LabelTable}.
+   */
+  public void add(
+      final float left,
+      final float top,
+      final float right,
+      final float bottom,
+      final float score,
+      final int classId,
+      final int id) {
+    if (count == scores.length) {
+      grow();
+    }
+    final int o = count * 4;
+    boxes[o] = left;
+    boxes[o + 1] = top;
+    boxes[o + 2] = right;
+    boxes[o + 3] = bottom;
+    scores[count] = score;
+    classes[count] = classId;
+    ids[count] = id;
+    ++count;
+  }
+
+  public float left(final int i) {
+    return boxes[i * 4];
+  }
+
+  public float top(final int i) {
+    return boxes[i * 4 + 1];
+  }
+
+  public float right(final int i) {
+    return boxes[i * 4 + 2];
+  }
+
+  public float bottom(final int i) {
+    return boxes[i * 4 + 3];
+  }
+
+  public float width(final int i) {
+    return boxes[i * 4 + 2] - boxes[i * 4];
+  }
+
+  public float height(final int i) {
+    return boxes[i * 4 + 3] - boxes[i * 4 + 1];
+  }
+
+  public float score(final int i) {
+    return scores[i];
+  }
+
+  public int classId(final int i) {
+    return classes[i];
+  }
+
+  public int id(final int i) {
+    return ids[i];
+  }
+
+  /** Copies box {@code i} into {@code out} and returns it. */
+  public RectF getLocation(final int i, final RectF out) {
+    out.set(boxes[i * 4], boxes[i * 4 + 1], boxes[i * 4 + 2], boxes[i * 4 + 3]);
+    return out;
+  }
+
+  /** Drops detections scoring below {@code minimumScore}, keeping the others in order. */
+  public void retainScoresAtLeast(final float minimumScore) {
+    int kept = 0;
+    for (int i = 0; i < count; ++i) {
+      if (scores[i] >= minimumScore) {
+        if (kept != i) {
+          move(i, kept);
+        }
+        ++kept;
+      }
+    }
+    count = kept;
+  }
+
+  /** Drops boxes not strictly inside the given bounds, keeping the others in order. */
+  public void retainInside(
+      final float left, final float top, final float right, final float bottom) {
+    int kept = 0;
+    for (int i = 0; i < count; ++i) {
+      final int o = i * 4;
+      if (boxes[o] > left && boxes[o + 1] > top && boxes[o + 2] < right && boxes[o + 3] < bottom) {
+        if (kept != i) {
+          move(i, kept);
+        }
+        ++kept;
+      }
+    }
+    count = kept;
+  }
+
+  /**
+   * Maps every box through {@code matrix} in place, like {@link Matrix#mapRect(RectF)} for the
+   * axis-aligned transforms (scales, translations, multiples of 90 degrees) used on camera frames.
+   */
+  public void mapBoxes(final Matrix matrix) {
+    if (count == 0) {
+      return;
+    }
+    // Each box is stored as two corner points, so one call maps them all.
+    matrix.mapPoints(boxes, 0, boxes, 0, count * 2);
+    for (int o = 0; o < count * 4; o += 4) {
+      if (boxes[o] > boxes[o + 2]) {
+        final float t = boxes[o];
+        boxes[o] = boxes[o + 2];
+        boxes[o + 2] = t;
+      }
+      if (boxes[o + 1] > boxes[o + 3]) {
+        final float t = boxes[o + 1];
+        boxes[o + 1] = boxes[o + 3];
+        boxes[o + 3] = t;
+      }
+    }
+  }
+
+  /** Replaces the contents with a copy of {@code other}. */
+  public void copyFrom(final DetectionBuffer other) {
+    count = 0;
+    while (scores.length < other.count) {
+      grow();
+    }
+    System.arraycopy(other.boxes, 0, boxes, 0, other.count * 4);
+    System.arraycopy(other.scores, 0, scores, 0, other.count);
+    System.arraycopy(other.classes, 0, classes, 0, other.count);
+    System.arraycopy(other.ids, 0, ids, 0, other.count);
+    count = other.count;
+    inputSize = other.inputSize;
+  }
+
+  /** Appends the contents of {@code other}. */
+  public void append(final DetectionBuffer other) {
+    while (scores.length < count + other.count) {
+      grow();
+    }
+    System.arraycopy(other.boxes, 0, boxes, count * 4, other.count * 4);
+    System.arraycopy(other.scores, 0, scores, count, other.count);
+    System.arraycopy(other.classes, 0, classes, count, other.count);
+    System.arraycopy(other.ids, 0, ids, count, other.count);
+    count += other.count;
+  }
+
+  /**
+   * Runs {@code nms} over the contents and keeps at most {@code maxDetections} survivors, best
+   * first, with their final scores. Used to merge detections gathered from several model runs over
+   * the same frame.
+   */
+  public void suppress(final NonMaxSuppression nms, final int maxDetections) {
+    if (count == 0) {
+      return;
+    }
+    if (selector == null || selector.capacity() < count) {
+      selector = new TopKSelector(scores.length);
+      order = new int[scores.length];
+      kept = new int[scores.length];
+      keptScores = new float[scores.length];
+      spare = new DetectionBuffer(scores.length);
+    }
+    final int candidates = selector.select(scores, count, Float.NEGATIVE_INFINITY, order);
+    final int n = nms.run(boxes, scores, classes, order, candidates, maxDetections, kept, keptScores);
+
+    // Gather the survivors into the spare buffer, then trade storage with it.
+    spare.count = 0;
+    for (int k = 0; k < n; ++k) {
+      final int i = kept[k];
+      final int o = i * 4;
+      spare.add(
+          boxes[o], boxes[o + 1], boxes[o + 2], boxes[o + 3], keptScores[k], classes[i], ids[i]);
+    }
+    final float[] b = boxes;
+    final float[] s = scores;
+    final int[] c = classes;
+    final int[] d = ids;
+    boxes = spare.boxes;
+    scores = spare.scores;
+    classes = spare.classes;
+    ids = spare.ids;
+    count = n;
+    spare.boxes = b;
+    spare.scores = s;
+    spare.classes = c;
+    spare.ids = d;
+    spare.count = 0;
+  }
+
+  /**
+   * Replaces the contents with {@code recognitions}; detections without a location are skipped.
+   * Titles are looked up in {@code labels}; unknown ones, or all if it is null, get class id -1.
+   */
+  public void copyFrom(final List<Recognition> recognitions, final LabelTable labels) {
+    count = 0;
+    for (final Recognition r : recognitions) {
+      final RectF box = r.getLocation();
+      if (box == null) {
+        continue;
+      }
+      int id;
+      try {
+        id = Integer.parseInt(r.getId());
+      } catch (NumberFormatException e) {
+        id = count;
+      }
+      final int classId = labels != null ? labels.indexOf(r.getTitle()) : -1;
+      add(box.left, box.top, box.right, box.bottom, r.getConfidence(), classId, id);
+    }
+  }
+
+  /**
+   * Allocates a {@link Recognition} per detection, for callers of the list-based API, resolving
+   * class ids to titles through {@code labels}.
+   */
+  public List<Recognition> toRecognitions(final LabelTable labels) {
+    final List<Recognition> recognitions = new ArrayList<>(count);
+    for (int i = 0; i < count; ++i) {
+      recognitions.add(
+          new Recognition(
+              "" + ids[i], labels.get(classes[i]), scores[i], getLocation(i, new RectF())));
+    }
+    return recognitions;
+  }
+
+  private void move(final int from, final int to) {
+    System.arraycopy(boxes, from * 4, boxes, to * 4, 4);
+    scores[to] = scores[from];
+    classes[to] = classes[from];
+    ids[to] = ids[from];
+  }
+
+  private void grow() {
+    final int n = scores.length * 2;
+    boxes = Arrays.copyOf(boxes, n * 4);
+    scores = Arrays.copyOf(scores, n);
+    classes = Arrays.copyOf(classes, n);
+    ids = Arrays.copyOf(ids, n);
+  }
+}
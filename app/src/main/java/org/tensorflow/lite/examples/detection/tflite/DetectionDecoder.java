@@ -0,0 +1,66 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+/**
+ * Turns the output tensors of one family of detection heads into detections.
+ *
+ * <p>An implementation is chosen once when the model is loaded, from the output tensor shapes, and
+ * owns the output buffers it reads. The per-frame path is a single {@link #decode} call.
+ */
+public interface DetectionDecoder {
+  /**
+   * Decodes the outputs written by the last interpreter run into {@code out}, replacing its
+   * contents. Boxes are in input-image pixels, best first.
+   */
+  void decode(DetectionBuffer out);
+
+  /**
+   * Like {@link #decode(DetectionBuffer)}, with a score threshold for this frame only. The one set
+   * by {@link #setScoreThreshold} is left as it is.
+   */
+  void decode(DetectionBuffer out, float scoreThreshold);
+
+  /** The threshold set by {@link #setScoreThreshold}. */
+  float getScoreThreshold();
+
+  /**
+   * Minimum score a detection needs. Implementations apply it as early as they can, so raising it
+   * reduces the work per frame. Safe to call from any thread; takes effect on the next frame. At 0
+   * every scored candidate passes, but never background or candidates the head rejected early.
+   */
+  void setScoreThreshold(float scoreThreshold);
+
+  /** Overlap above which the weaker of two boxes is suppressed, for heads that run NMS here. */
+  void setIouThreshold(float iouThreshold);
+
+  /** Upper bound on detections per frame, capped at the limit the decoder was built with. */
+  void setMaxDetections(int maxDetections);
+
+  /**
+   * Number of entries on the head's class axis, or -1 for heads that only report 0-based ids of
+   * real classes. Used to line the class ids up with the labels, see {@link LabelTable#calibrate}.
+   */
+  int getClassCount();
+
+  /**
+   * Sets the pipeline class id reported for each model class id, -1 to drop detections of that
+   * class (see {@link LabelTable#classMap}); null reports model class ids unchanged. Dropped
+   * classes are rejected before suppression. Safe to call from any thread; takes effect on the
+   * next frame.
+   */
+  void setClassMap(int[] classMap);
+}
@@ -0,0 +1,270 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.examples.detection.env.Logger;
+
+/**
+ * Captures raw output tensors for offline debugging without slowing down the inference thread.
+ *
+ * <p>Frames are sampled every Nth frame, when the outputs look anomalous, or once on demand. A
+ * sampled frame is copied into a preallocated ring of slots; formatting, logcat output and file
+ * writes happen later on a background thread. If the writer falls behind, captures are dropped
+ * rather than blocking inference. When the recorder is disabled, {@link #isEnabled()} is the only
+ * cost on the inference thread.
+ */
+public final class DiagnosticsRecorder {
+  private static final Logger LOGGER = new Logger();
+
+  private static final int SLOTS = 4;
+  private static final int MAX_DETECTIONS = 5;
+  private static final int RAW_SAMPLE = 8;
+
+  private static final int SLOT_FREE = 0;
+  private static final int SLOT_FILLED = 1;
+
+  private static final String REASON_PERIODIC = "periodic";
+  private static final String REASON_ANOMALY = "anomaly";
+  private static final String REASON_REQUESTED = "requested";
+
+  private final OutputBuffer[] outputs;
+  private final Slot[] slots = new Slot[SLOTS];
+  private final AtomicIntegerArray slotState = new AtomicIntegerArray(SLOTS);
+  private final AtomicBoolean captureRequested = new AtomicBoolean();
+
+  private volatile boolean enabled;
+  private int everyNth;
+  private boolean onAnomaly;
+  private File directory;
+
+  private long frame;
+  private int nextSlot;
+  private int dropped;
+  private HandlerThread writerThread;
+  private Handler writer;
+
+  /** One captured frame: raw tensor bytes plus the top detections. */
+  private static final class Slot {
+    final byte[][] raw;
+    final float[] detections = new float[MAX_DETECTIONS * 5];
+    int detectionCount;
+    long frame;
+    long timestampMs;
+    String reason;
+
+    Slot(final OutputBuffer[] outputs) {
+      raw = new byte[outputs.length][];
+      for (int i = 0; i < outputs.length; ++i) {
+        raw[i] = new byte[outputs[i].buffer.capacity()];
+      }
+    }
+  }
+
+  DiagnosticsRecorder(final OutputBuffer[] outputs) {
+    this.outputs = outputs;
+  }
+
+  /**
+   * Starts sampling.
+   *
+   * @param everyNth capture every Nth frame, or 0 to disable periodic captures.
+   * @param onAnomaly also capture frames whose outputs look broken.
+   * @param directory where to write raw tensor dumps, or null to only log a summary.
+   */
+  public synchronized void enable(final int everyNth, final boolean onAnomaly, final File directory) {
+    this.everyNth = Math.max(0, everyNth);
+    this.onAnomaly = onAnomaly;
+    this.directory = directory;
+    if (slots[0] == null) {
+      // Slots are sized from the output tensors once, the first time the recorder is used.
+      for (int i = 0; i < SLOTS; ++i) {
+        slots[i] = new Slot(outputs);
+      }
+    }
+    if (writerThread == null) {
+      writerThread = new HandlerThread("diagnostics");
+      writerThread.start();
+      writer = new Handler(writerThread.getLooper());
+    }
+    enabled = true;
+  }
+
+  /** Stops sampling. Captures already queued are still written. */
+  public synchronized void disable() {
+    enabled = false;
+    if (writerThread != null) {
+      writerThread.quitSafely();
+      writerThread = null;
+      writer = null;
+    }
+  }
+
+  /** Captures the next frame regardless of the sampling policy. Requires {@link #enable}. */
+  public void requestCapture() {
+    captureRequested.set(true);
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Called on the inference thread after decoding. Copies the outputs if this frame is sampled.
+   * Callers should guard it with {@link #isEnabled()}.
+   */
+  void onFrame(final DetectionBuffer detections) {
+    ++frame;
+    final String reason;
+    if (captureRequested.getAndSet(false)) {
+      reason = REASON_REQUESTED;
+    } else if (everyNth > 0 && frame % everyNth == 0) {
+      reason = REASON_PERIODIC;
+    } else if (onAnomaly && isAnomalous(detections)) {
+      reason = REASON_ANOMALY;
+    } else {
+      return;
+    }
+
+    final int index = nextSlot;
+    if (!slotState.compareAndSet(index, SLOT_FREE, SLOT_FILLED)) {
+      ++dropped;
+      return;
+    }
+    nextSlot = (index + 1) % SLOTS;
+
+    final Slot slot = slots[index];
+    slot.frame = frame;
+    slot.timestampMs = System.currentTimeMillis();
+    slot.reason = reason;
+    for (int i = 0; i < outputs.length; ++i) {
+      final ByteBuffer buffer = outputs[i].buffer;
+      buffer.rewind();
+      buffer.get(slot.raw[i]);
+      buffer.rewind();
+    }
+    slot.detectionCount = Math.min(MAX_DETECTIONS, detections.size());
+    for (int k = 0; k < slot.detectionCount; ++k) {
+      final int o = k * 5;
+      slot.detections[o] = detections.score(k);
+      slot.detections[o + 1] = detections.left(k);
+      slot.detections[o + 2] = detections.top(k);
+      slot.detections[o + 3] = detections.right(k);
+      slot.detections[o + 4] = detections.bottom(k);
+    }
+
+    final Handler handler = writer;
+    if (handler == null || !handler.post(() -> write(index))) {
+      slotState.set(index, SLOT_FREE);
+    }
+  }
+
+  /**
+   * Cheap sanity checks: a quantized output whose leading bytes are all identical usually means
+   * the interpreter did not write it, and scores outside [0, 1] mean the decoder misread a head.
+   */
+  private boolean isAnomalous(final DetectionBuffer detections) {
+    for (int k = 0; k < detections.size(); ++k) {
+      final float c = detections.score(k);
+      if (!(c >= 0f && c <= 1f)) {
+        return true;
+      }
+    }
+    for (final OutputBuffer out : outputs) {
+      if (!out.isQuantized() || out.size() < RAW_SAMPLE) {
+        continue;
+      }
+      final byte first = out.buffer.get(0);
+      boolean constant = true;
+      for (int i = 1; i < RAW_SAMPLE && constant; ++i) {
+        constant = out.buffer.get(i) == first;
+      }
+      if (constant) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Runs on the writer thread. */
+  private void write(final int index) {
+    final Slot slot = slots[index];
+    try {
+      final StringBuilder sb = new StringBuilder();
+      sb.append("DIAG frame=").append(slot.frame)
+          .append(" reason=").append(slot.reason)
+          .append(" time=").append(slot.timestampMs)
+          .append(" dropped=").append(dropped)
+          .append('\n');
+      for (int i = 0; i < outputs.length; ++i) {
+        final OutputBuffer out = outputs[i];
+        final byte[] raw = slot.raw[i];
+        sb.append("out idx=").append(out.index)
+            .append(" shape=").append(Arrays.toString(out.shape))
+            .append(" dtype=").append(out.dataType)
+            .append(" scale=").append(out.scale)
+            .append(" zeroPoint=").append(out.zeroPoint)
+            .append(" bytes=").append(raw.length)
+            .append(" raw[0..").append(Math.min(RAW_SAMPLE, raw.length)).append("]=[");
+        for (int j = 0; j < Math.min(RAW_SAMPLE, raw.length); ++j) {
+          if (j > 0) sb.append(',');
+          sb.append(out.dataType == DataType.UINT8 ? raw[j] & 0xFF : raw[j]);
+        }
+        sb.append("]\n");
+      }
+      for (int k = 0; k < slot.detectionCount; ++k) {
+        final int o = k * 5;
+        sb.append("det[").append(k).append("] score=").append(slot.detections[o])
+            .append(" box=[").append(slot.detections[o + 1]).append(',')
+            .append(slot.detections[o + 2]).append(',')
+            .append(slot.detections[o + 3]).append(',')
+            .append(slot.detections[o + 4]).append("]\n");
+      }
+      LOGGER.i(sb.toString());
+
+      final File dir = directory;
+      if (dir != null && (dir.isDirectory() || dir.mkdirs())) {
+        final String prefix = "frame-" + slot.frame;
+        writeFile(new File(dir, prefix + ".txt"), sb.toString().getBytes("UTF-8"));
+        for (int i = 0; i < outputs.length; ++i) {
+          writeFile(new File(dir, prefix + "-out" + outputs[i].index + ".raw"), slot.raw[i]);
+        }
+      }
+    } catch (final IOException e) {
+      LOGGER.e(e, "Failed to write diagnostics for frame %d", slot.frame);
+    } finally {
+      slotState.set(index, SLOT_FREE);
+    }
+  }
+
+  private static void writeFile(final File file, final byte[] bytes) throws IOException {
+    final FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+}
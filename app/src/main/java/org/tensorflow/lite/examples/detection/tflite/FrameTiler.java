@@ -0,0 +1,305 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.tensorflow.lite.examples.detection.env.ImageUtils;
+import org.tensorflow.lite.examples.detection.env.YuvToTensor;
+
+/**
+ * Runs the detector over a grid of overlapping tiles of a high-resolution frame, so small objects
+ * keep enough pixels after scaling to the model input.
+ *
+ * <p>Each tile has its own {@link YuvToTensor} that samples the tile straight out of the YUV
+ * frame. Tile results are mapped to frame coordinates and merged with a cross-tile non-max
+ * suppression. To bound the cost, {@link #schedule} only picks the grid tiles where the luminance
+ * changed since they were last sampled or where the previous frame had detections, plus a full
+ * scan every {@link #FULL_SCAN_INTERVAL} frames. An optional whole-frame tile always runs and
+ * catches objects too large for a single tile.
+ */
+public final class FrameTiler {
+  // Every tile runs on one frame out of this many, whatever the motion.
+  private static final int FULL_SCAN_INTERVAL = 15;
+  // Luminance is compared on a sparse grid with this spacing, in frame pixels.
+  private static final int MOTION_SAMPLE_STEP = 16;
+  // Mean absolute luminance difference above which a tile counts as moving.
+  private static final int MOTION_THRESHOLD = 6;
+  // Boxes ending this close to an edge shared with a neighbouring tile are cut off by the tile;
+  // the neighbour or the whole-frame tile sees the full object.
+  private static final float EDGE_MARGIN = 2f;
+
+  private final int frameWidth;
+  private final int frameHeight;
+  private final int inputSize;
+  private final boolean includeFullFrame;
+  private final Rect[] crops;
+  private final YuvToTensor[] converters;
+  // Per tile, model input pixels to frame pixels.
+  private final Matrix[] inputToFrame;
+  // Frame pixels to the whole-frame model input, the space results are delivered in.
+  private final Matrix frameToInput;
+  // Per tile, {left, top, right, bottom} bounds a kept box must lie strictly inside. Sides shared
+  // with another tile sit just inside the tile, the others are unbounded.
+  private final float[][] keepBounds;
+
+  // Motion state, touched only by schedule().
+  private final byte[][] lastSamples;
+  private int frames;
+
+  // Boxes of the last delivered frame, in frame pixels.
+  private final DetectionBuffer tracks = new DetectionBuffer();
+
+  /**
+   * @param frameWidth Width of the camera frame.
+   * @param frameHeight Height of the camera frame.
+   * @param columns Number of tile columns.
+   * @param rows Number of tile rows.
+   * @param overlap Fraction of a tile shared with its neighbour, in [0, 1).
+   * @param includeFullFrame If true, tile 0 is the whole frame and runs on every frame.
+   * @param inputSize Side of the model input.
+   * @param rotation Rotation to apply, a multiple of 90.
+   * @param quantized As in {@link YuvToTensor}.
+   */
+  public FrameTiler(
+      final int frameWidth,
+      final int frameHeight,
+      final int columns,
+      final int rows,
+      final float overlap,
+      final boolean includeFullFrame,
+      final int inputSize,
+      final int rotation,
+      final boolean quantized,
+      final float mean,
+      final float std) {
+    this.frameWidth = frameWidth;
+    this.frameHeight = frameHeight;
+    this.inputSize = inputSize;
+    this.includeFullFrame = includeFullFrame;
+
+    final int first = includeFullFrame ? 1 : 0;
+    final int count = first + columns * rows;
+    crops = new Rect[count];
+    converters = new YuvToTensor[count];
+    inputToFrame = new Matrix[count];
+    keepBounds = new float[count][];
+    lastSamples = new byte[count][];
+
+    if (includeFullFrame) {
+      crops[0] = new Rect(0, 0, frameWidth, frameHeight);
+      keepBounds[0] = bounds(crops[0], false, false, false, false);
+    }
+    // n tiles of width w overlapping by overlap * w cover w * (n - (n - 1) * overlap).
+    final float tileWidth = frameWidth / (columns - (columns - 1) * overlap);
+    final float tileHeight = frameHeight / (rows - (rows - 1) * overlap);
+    for (int r = 0; r < rows; ++r) {
+      for (int c = 0; c < columns; ++c) {
+        final int left = Math.round(c * tileWidth * (1 - overlap));
+        final int top = Math.round(r * tileHeight * (1 - overlap));
+        final int right = c == columns - 1 ? frameWidth : Math.round(left + tileWidth);
+        final int bottom = r == rows - 1 ? frameHeight : Math.round(top + tileHeight);
+        final int t = first + r * columns + c;
+        crops[t] = new Rect(left, top, right, bottom);
+        keepBounds[t] = bounds(crops[t], c > 0, r > 0, c < columns - 1, r < rows - 1);
+      }
+    }
+
+    for (int t = 0; t < count; ++t) {
+      final Rect crop = crops[t];
+      converters[t] =
+          new YuvToTensor(
+              frameWidth, frameHeight,
+              crop.left, crop.top, crop.width(), crop.height(),
+              inputSize, inputSize,
+              rotation, false,
+              quantized, mean, std);
+      final Matrix tileToInput =
+          ImageUtils.getTransformationMatrix(
+              crop.width(), crop.height(), inputSize, inputSize, rotation, false);
+      inputToFrame[t] = new Matrix();
+      tileToInput.invert(inputToFrame[t]);
+      inputToFrame[t].postTranslate(crop.left, crop.top);
+    }
+    frameToInput =
+        ImageUtils.getTransformationMatrix(
+            frameWidth, frameHeight, inputSize, inputSize, rotation, false);
+  }
+
+  public int getTileCount() {
+    return crops.length;
+  }
+
+  /** The converter that fills the model input for tile {@code tile}. */
+  public YuvToTensor getConverter(final int tile) {
+    return converters[tile];
+  }
+
+  /**
+   * Records the detections of the last delivered frame, in frame pixels. Tiles they overlap are
+   * scheduled even without motion, so tracked objects keep being refreshed.
+   */
+  public synchronized void setTracks(final DetectionBuffer frameDetections) {
+    tracks.copyFrom(frameDetections);
+  }
+
+  /**
+   * Picks the tiles to run on the current frame.
+   *
+   * @param luma The frame's Y plane.
+   * @param rowStride Row stride of {@code luma}.
+   * @param out Receives the tile indices; must hold {@link #getTileCount()} entries.
+   * @return the number of tiles written to {@code out}.
+   */
+  public int schedule(final byte[] luma, final int rowStride, final int[] out) {
+    return schedule(luma, rowStride, 1, out);
+  }
+
+  /**
+   * Like {@link #schedule(byte[], int, int[])}, for luma samples {@code pixelStride} bytes apart,
+   * such as the Y bytes of a packed YUYV frame.
+   */
+  public int schedule(
+      final byte[] luma, final int rowStride, final int pixelStride, final int[] out) {
+    final boolean fullScan = frames++ % FULL_SCAN_INTERVAL == 0;
+    int n = 0;
+    for (int t = 0; t < crops.length; ++t) {
+      // Sample every tile so its reference is fresh whenever motion is next checked.
+      final boolean moved = updateMotion(t, luma, rowStride, pixelStride);
+      if (fullScan || (includeFullFrame && t == 0) || moved || hasTracks(crops[t])) {
+        out[n++] = t;
+      }
+    }
+    return n;
+  }
+
+  /** Creates the per-frame state for one inference slot. */
+  public Job newJob(final float iouThreshold, final int maxDetections) {
+    return new Job(iouThreshold, maxDetections);
+  }
+
+  private static float[] bounds(
+      final Rect crop,
+      final boolean innerLeft,
+      final boolean innerTop,
+      final boolean innerRight,
+      final boolean innerBottom) {
+    return new float[] {
+      innerLeft ? crop.left + EDGE_MARGIN : Float.NEGATIVE_INFINITY,
+      innerTop ? crop.top + EDGE_MARGIN : Float.NEGATIVE_INFINITY,
+      innerRight ? crop.right - EDGE_MARGIN : Float.POSITIVE_INFINITY,
+      innerBottom ? crop.bottom - EDGE_MARGIN : Float.POSITIVE_INFINITY
+    };
+  }
+
+  // Compares the tile's sparse luminance samples against the previous ones, then stores them.
+  private boolean updateMotion(
+      final int tile, final byte[] luma, final int rowStride, final int pixelStride) {
+    final Rect crop = crops[tile];
+    final int columns = Math.max(1, crop.width() / MOTION_SAMPLE_STEP);
+    final int rows = Math.max(1, crop.height() / MOTION_SAMPLE_STEP);
+    byte[] samples = lastSamples[tile];
+    final boolean first = samples == null;
+    if (first) {
+      samples = lastSamples[tile] = new byte[columns * rows];
+    }
+    long difference = 0;
+    for (int r = 0, i = 0; r < rows; ++r) {
+      final int row = (crop.top + r * MOTION_SAMPLE_STEP + MOTION_SAMPLE_STEP / 2) * rowStride;
+      for (int c = 0; c < columns; ++c, ++i) {
+        final int x =
+            Math.min(frameWidth - 1, crop.left + c * MOTION_SAMPLE_STEP + MOTION_SAMPLE_STEP / 2);
+        final byte value = luma[Math.min(row, (frameHeight - 1) * rowStride) + x * pixelStride];
+        difference += Math.abs((value & 0xff) - (samples[i] & 0xff));
+        samples[i] = value;
+      }
+    }
+    return first || difference > (long) MOTION_THRESHOLD * samples.length;
+  }
+
+  private synchronized boolean hasTracks(final Rect crop) {
+    for (int i = 0; i < tracks.size(); ++i) {
+      if (tracks.left(i) < crop.right && tracks.right(i) > crop.left
+          && tracks.top(i) < crop.bottom && tracks.bottom(i) > crop.top) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Inputs and scratch for one frame in flight. Fill {@link #getInput} for each scheduled tile on
+   * the camera thread, then hand {@link #run} to the inference pool; a job must not be refilled
+   * before its previous run has finished, so keep one per pool slot.
+   */
+  public final class Job {
+    private final ByteBuffer[] inputs = new ByteBuffer[crops.length];
+    private final int[] tiles = new int[crops.length];
+    private int tileCount;
+    private final DetectionBuffer tileDetections = new DetectionBuffer();
+    private final NonMaxSuppression nms;
+    private final int maxDetections;
+
+    private Job(final float iouThreshold, final int maxDetections) {
+      this.nms = new NonMaxSuppression().setClassAware(true).setIouThreshold(iouThreshold);
+      this.maxDetections = maxDetections;
+    }
+
+    /** Sets the tiles this frame will run, as returned by {@link #schedule}. */
+    public void setTiles(final int[] scheduled, final int count) {
+      System.arraycopy(scheduled, 0, tiles, 0, count);
+      tileCount = count;
+    }
+
+    /** The buffer to fill with {@link #getConverter} for tile {@code tile}. */
+    public ByteBuffer getInput(final int tile) {
+      if (inputs[tile] == null) {
+        inputs[tile] =
+            ByteBuffer.allocateDirect(converters[tile].getByteSize()).order(ByteOrder.nativeOrder());
+      }
+      return inputs[tile];
+    }
+
+    /**
+     * Runs every scheduled tile and writes the merged detections to {@code out}, in the pixels of
+     * the whole-frame model input, like an untiled run.
+     */
+    public void run(final Classifier classifier, final DetectionBuffer out) {
+      out.clear();
+      final ByteBuffer modelInput = classifier.getInputBuffer();
+      for (int k = 0; k < tileCount; ++k) {
+        final int t = tiles[k];
+        final ByteBuffer input = inputs[t];
+        modelInput.rewind();
+        input.rewind();
+        modelInput.put(input);
+        modelInput.rewind();
+        classifier.recognizeInputBuffer(tileDetections);
+        tileDetections.mapBoxes(inputToFrame[t]);
+        final float[] b = keepBounds[t];
+        tileDetections.retainInside(b[0], b[1], b[2], b[3]);
+        out.append(tileDetections);
+      }
+      if (tileCount > 1) {
+        out.suppress(nms, maxDetections);
+      }
+      out.mapBoxes(frameToInput);
+      out.setInputSize(inputSize);
+    }
+  }
+}
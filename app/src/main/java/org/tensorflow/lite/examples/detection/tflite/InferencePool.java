@@ -0,0 +1,461 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import org.tensorflow.lite.examples.detection.env.Logger;
+
+/**
+ * Runs several interpreters of the same model side by side so consecutive frames overlap.
+ *
+ * <p>Each slot owns a model instance (its own interpreter, thread count and I/O buffers, sharing
+ * the memory-mapped model file and labels) and a worker thread. The camera thread {@link
+ * #acquire()}s a free slot, fills its input buffer and {@link #submit}s it; while that frame is
+ * inferring, the next frame can go to another slot. Results are handed to the callback on a
+ * single delivery thread strictly in submission order, so downstream tracking sees frames in
+ * sequence even when a later frame finishes first.
+ *
+ * <p>Each queued frame owns a {@link DetectionBuffer} from a fixed ring, written by the worker and
+ * read by the callback, so steady-state delivery does not allocate.
+ */
+public final class InferencePool {
+  private static final Logger LOGGER = new Logger();
+
+  /** Work run on a slot's thread against its classifier, writing its detections to {@code out}. */
+  public interface Task {
+    void run(Classifier classifier, DetectionBuffer out);
+  }
+
+  /**
+   * Receives results in submission order, on the delivery thread. {@code detections} is reused
+   * once the callback returns; it may be modified in place but must not be kept. {@code late} is
+   * set when the frame was submitted with a deadline that had passed by the time of delivery.
+   */
+  public interface ResultCallback {
+    void onResult(long frameId, DetectionBuffer detections, long inferenceMs, boolean late);
+  }
+
+  /** One interpreter per input resolution plus the thread that drives them. */
+  public final class Slot {
+    private final int id;
+    // Indexed by resolution level; level 0 is the model's own input size.
+    private volatile TFLiteObjectDetectionAPIModel[] models;
+    private final HandlerThread thread;
+    private final Handler handler;
+    // Guarded by the pool lock.
+    private boolean busy;
+    private long busyNanos;
+    private long frames;
+    // Resolution of the frame this slot was acquired for.
+    private TFLiteObjectDetectionAPIModel model;
+
+    private Slot(final int id, final TFLiteObjectDetectionAPIModel model) {
+      this.id = id;
+      this.models = new TFLiteObjectDetectionAPIModel[] {model};
+      this.model = model;
+      this.thread = new HandlerThread("inference-" + id);
+      this.thread.start();
+      this.handler = new Handler(thread.getLooper());
+    }
+
+    /** Position of this slot in the pool, for keeping per-slot state alongside it. */
+    public int getIndex() {
+      return id;
+    }
+
+    /** The input buffer to fill before {@link #submit}, sized for {@link #getInputSize()}. */
+    public ByteBuffer getInputBuffer() {
+      return model.getInputBuffer();
+    }
+
+    /**
+     * The slot's interpreter for resolution {@code level}, for tasks that run more than one model
+     * per frame. Only use it from a task running on this slot.
+     */
+    public Classifier getClassifier(final int level) {
+      return models[level];
+    }
+
+    /** Input size of the interpreter this frame will run on. */
+    public int getInputSize() {
+      return model.getInputSize();
+    }
+  }
+
+  // Results waiting for earlier frames, indexed by sequence number modulo the ring size.
+  private static final class Pending {
+    final DetectionBuffer detections = new DetectionBuffer();
+    long frameId;
+    long inferenceMs;
+    boolean hasDeadline;
+    long deadlineNanos;
+    boolean ready;
+  }
+
+  private final Slot[] slots;
+  private final Pending[] pending;
+  private final ResultCallback callback;
+  private final HandlerThread deliveryThread;
+  private final Handler delivery;
+  private final Runnable drain = this::drain;
+
+  private long nextSequence;
+  private long nextDelivery;
+  private long windowStartNanos = System.nanoTime();
+  private long lateFrames;
+  private boolean closed;
+  private int resolutionLevel;
+
+  // Detection parameters, re-applied to interpreters added later. NaN or 0 when unset.
+  private volatile float confidenceThreshold = Float.NaN;
+  private volatile float iouThreshold = Float.NaN;
+  private volatile int maxDetections;
+  private volatile Collection<String> classFilter;
+
+  /**
+   * @param primary the model created by {@link TFLiteObjectDetectionAPIModel#create}; becomes
+   *     slot 0, and the other slots are siblings of it.
+   * @param size number of interpreters.
+   * @param threadsPerInterpreter CPU threads given to each interpreter.
+   */
+  public InferencePool(
+      final TFLiteObjectDetectionAPIModel primary,
+      final int size,
+      final int threadsPerInterpreter,
+      final ResultCallback callback) {
+    final int n = Math.max(1, size);
+    this.callback = callback;
+    this.slots = new Slot[n];
+    // A slow consumer can leave at most one extra round of finished frames undelivered.
+    this.pending = new Pending[2 * n];
+    for (int i = 0; i < pending.length; ++i) {
+      pending[i] = new Pending();
+    }
+
+    slots[0] = new Slot(0, primary);
+    slots[0].handler.post(() -> primary.setNumThreads(threadsPerInterpreter));
+    for (int i = 1; i < n; ++i) {
+      slots[i] = new Slot(i, primary.createSibling(threadsPerInterpreter));
+    }
+
+    deliveryThread = new HandlerThread("inference-results");
+    deliveryThread.start();
+    delivery = new Handler(deliveryThread.getLooper());
+    LOGGER.i("Inference pool: %d interpreters x %d threads", n, threadsPerInterpreter);
+  }
+
+  public int size() {
+    return slots.length;
+  }
+
+  /**
+   * Reserves an idle slot, or returns null if every interpreter is busy or too many results are
+   * still waiting to be delivered; the caller should drop the frame in that case.
+   */
+  public synchronized Slot acquire() {
+    if (closed || nextSequence - nextDelivery >= pending.length) {
+      return null;
+    }
+    for (final Slot slot : slots) {
+      if (!slot.busy) {
+        slot.busy = true;
+        // The resolution is fixed here, at the frame boundary, before the input is filled.
+        final TFLiteObjectDetectionAPIModel[] models = slot.models;
+        slot.model = models[Math.min(resolutionLevel, models.length - 1)];
+        return slot;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Adds interpreters for {@code inputSizes}, smaller than the model's own, to every slot. This
+   * builds and allocates them all up front on the calling thread. Sizes the model cannot run at
+   * are skipped.
+   *
+   * @return the input size of each resolution level, level 0 being the model's own.
+   */
+  public int[] addResolutions(final int[] inputSizes) {
+    final int slotCount = slots.length;
+    final List<TFLiteObjectDetectionAPIModel[]> added = new ArrayList<>();
+    final List<Integer> sizes = new ArrayList<>();
+    sizes.add(slots[0].models[0].getInputSize());
+    for (final int size : inputSizes) {
+      final TFLiteObjectDetectionAPIModel[] level = new TFLiteObjectDetectionAPIModel[slotCount];
+      boolean ok = true;
+      for (int i = 0; i < slotCount && ok; ++i) {
+        level[i] = slots[i].models[0].createResized(size);
+        ok = level[i] != null;
+      }
+      if (!ok) {
+        for (final TFLiteObjectDetectionAPIModel model : level) {
+          if (model != null) {
+            model.close();
+          }
+        }
+        continue;
+      }
+      for (final TFLiteObjectDetectionAPIModel model : level) {
+        applyDetectionParameters(model);
+      }
+      added.add(level);
+      sizes.add(size);
+    }
+
+    for (int i = 0; i < slotCount; ++i) {
+      final TFLiteObjectDetectionAPIModel[] models =
+          new TFLiteObjectDetectionAPIModel[added.size() + 1];
+      models[0] = slots[i].models[0];
+      for (int l = 0; l < added.size(); ++l) {
+        models[l + 1] = added.get(l)[i];
+      }
+      slots[i].models = models;
+    }
+    final int[] result = new int[sizes.size()];
+    for (int l = 0; l < result.length; ++l) {
+      result[l] = sizes.get(l);
+    }
+    LOGGER.i("Inference pool input sizes: %s", Arrays.toString(result));
+    return result;
+  }
+
+  /** Selects the resolution level used for frames acquired from now on. */
+  public synchronized void setResolutionLevel(final int level) {
+    resolutionLevel = Math.max(0, level);
+  }
+
+  /** Returns a slot obtained from {@link #acquire()} without running anything on it. */
+  public synchronized void release(final Slot slot) {
+    slot.busy = false;
+  }
+
+  /** Runs {@code task} on the slot's thread. The result is delivered in submission order. */
+  public void submit(final Slot slot, final long frameId, final Task task) {
+    submit(slot, frameId, false, 0, task);
+  }
+
+  /**
+   * Like {@link #submit(Slot, long, Task)}, flagging the result as late if it is delivered after
+   * {@code deadlineNanos}, a {@link System#nanoTime()} value.
+   */
+  public void submit(
+      final Slot slot, final long frameId, final long deadlineNanos, final Task task) {
+    submit(slot, frameId, true, deadlineNanos, task);
+  }
+
+  private void submit(
+      final Slot slot,
+      final long frameId,
+      final boolean hasDeadline,
+      final long deadlineNanos,
+      final Task task) {
+    final long sequence;
+    final TFLiteObjectDetectionAPIModel model;
+    synchronized (this) {
+      sequence = nextSequence++;
+      model = slot.model;
+    }
+    slot.handler.post(
+        () -> {
+          // acquire() keeps the ring from wrapping, so this entry is ours until it is delivered.
+          final Pending p = pending[(int) (sequence % pending.length)];
+          final long start = System.nanoTime();
+          try {
+            task.run(model, p.detections);
+          } catch (final RuntimeException e) {
+            LOGGER.e(e, "Inference failed on slot %d", slot.id);
+            p.detections.clear();
+          }
+          final long elapsed = System.nanoTime() - start;
+          synchronized (InferencePool.this) {
+            slot.busy = false;
+            slot.busyNanos += elapsed;
+            ++slot.frames;
+            p.frameId = frameId;
+            p.inferenceMs = elapsed / 1000000;
+            p.hasDeadline = hasDeadline;
+            p.deadlineNanos = deadlineNanos;
+            p.ready = true;
+          }
+          delivery.post(drain);
+        });
+  }
+
+  /** Delivers every consecutive finished result, oldest first. Runs on the delivery thread. */
+  private void drain() {
+    while (true) {
+      final Pending p;
+      synchronized (this) {
+        p = pending[(int) (nextDelivery % pending.length)];
+        if (!p.ready) {
+          return;
+        }
+      }
+      // Waiting for an earlier frame counts against the deadline too.
+      final boolean late = p.hasDeadline && System.nanoTime() - p.deadlineNanos > 0;
+      if (late) {
+        synchronized (this) {
+          ++lateFrames;
+        }
+      }
+      callback.onResult(p.frameId, p.detections, p.inferenceMs, late);
+      // Only now may acquire() hand this entry to a new frame.
+      synchronized (this) {
+        p.ready = false;
+        ++nextDelivery;
+      }
+    }
+  }
+
+  /**
+   * Switches every interpreter to {@code processorType} without stalling detection: replacements
+   * are built and warmed up on the calling thread, and each slot swaps its own in before its next
+   * frame, closing the old interpreter and delegate. If any slot fails, none of them switch.
+   */
+  public boolean prepareProcessorType(final ProcessorType processorType) {
+    for (final Slot slot : slots) {
+      for (final TFLiteObjectDetectionAPIModel model : slot.models) {
+        if (!model.prepareProcessorType(processorType)) {
+          for (final Slot other : slots) {
+            for (final TFLiteObjectDetectionAPIModel m : other.models) {
+              m.cancelStandby();
+            }
+          }
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /** Changes the thread count of every interpreter, each on its own thread between frames. */
+  public void setNumThreads(final int numThreads) {
+    for (final Slot slot : slots) {
+      for (final TFLiteObjectDetectionAPIModel model : slot.models) {
+        slot.handler.post(() -> model.setNumThreads(numThreads));
+      }
+    }
+  }
+
+  /**
+   * Sets the decoding confidence threshold of every interpreter. Decoders read it once per frame,
+   * so it can be changed from any thread.
+   */
+  public void setConfidenceThreshold(final float confidence) {
+    confidenceThreshold = confidence;
+    for (final Slot slot : slots) {
+      for (final TFLiteObjectDetectionAPIModel model : slot.models) {
+        model.setConfidenceThreshold(confidence);
+      }
+    }
+  }
+
+  /** Sets the NMS overlap threshold of every interpreter. */
+  public void setIouThreshold(final float iouThreshold) {
+    this.iouThreshold = iouThreshold;
+    for (final Slot slot : slots) {
+      for (final TFLiteObjectDetectionAPIModel model : slot.models) {
+        model.setIouThreshold(iouThreshold);
+      }
+    }
+  }
+
+  /** Sets the per-frame detection limit of every interpreter. */
+  public void setMaxDetections(final int maxDetections) {
+    this.maxDetections = maxDetections;
+    for (final Slot slot : slots) {
+      for (final TFLiteObjectDetectionAPIModel model : slot.models) {
+        model.setMaxDetections(maxDetections);
+      }
+    }
+  }
+
+  /** Restricts every interpreter to the given labels; null reports every class again. */
+  public void setClassFilter(final Collection<String> labels) {
+    classFilter = labels;
+    for (final Slot slot : slots) {
+      for (final TFLiteObjectDetectionAPIModel model : slot.models) {
+        model.setClassFilter(labels);
+      }
+    }
+  }
+
+  private void applyDetectionParameters(final TFLiteObjectDetectionAPIModel model) {
+    if (!Float.isNaN(confidenceThreshold)) {
+      model.setConfidenceThreshold(confidenceThreshold);
+    }
+    if (!Float.isNaN(iouThreshold)) {
+      model.setIouThreshold(iouThreshold);
+    }
+    if (maxDetections > 0) {
+      model.setMaxDetections(maxDetections);
+    }
+    if (classFilter != null) {
+      model.setClassFilter(classFilter);
+    }
+  }
+
+  /**
+   * Per-slot utilisation since the last call: the share of wall time each interpreter spent
+   * inferring, and how many frames it ran, plus the number of results delivered late.
+   */
+  public synchronized String getStatString() {
+    final long now = System.nanoTime();
+    final long window = Math.max(1, now - windowStartNanos);
+    final StringBuilder sb = new StringBuilder();
+    for (final Slot slot : slots) {
+      if (sb.length() > 0) {
+        sb.append(", ");
+      }
+      sb.append("slot").append(slot.id).append(' ')
+          .append(100 * slot.busyNanos / window).append("% ")
+          .append(slot.frames).append(" frames");
+      slot.busyNanos = 0;
+      slot.frames = 0;
+    }
+    sb.append(", ").append(lateFrames).append(" late");
+    lateFrames = 0;
+    windowStartNanos = now;
+    return sb.toString();
+  }
+
+  /** Stops the worker threads after their queued frames and closes every model. */
+  public void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    for (final Slot slot : slots) {
+      for (final TFLiteObjectDetectionAPIModel model : slot.models) {
+        slot.handler.post(model::close);
+      }
+      slot.thread.quitSafely();
+    }
+    for (final Slot slot : slots) {
+      try {
+        slot.thread.join();
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    deliveryThread.quitSafely();
+  }
+}
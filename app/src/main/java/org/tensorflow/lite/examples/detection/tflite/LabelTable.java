@@ -0,0 +1,139 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.tensorflow.lite.examples.detection.env.Logger;
+
+/**
+ * The model's labels, immutable once loaded, plus how the model's class ids line up with them.
+ *
+ * <p>Detections carry an int class id through the pipeline, which is an index into this table;
+ * {@link #get} turns it into a display string only where one is needed. Heads disagree on whether
+ * their class ids count a background class and whether the label file lists one, so the offset
+ * from model class id to label index is worked out once per model by {@link #calibrate}, from the
+ * size of the model's class axis, rather than guessed per detection.
+ */
+public final class LabelTable {
+  private static final Logger LOGGER = new Logger();
+  private static final String UNKNOWN = "unknown";
+
+  private final String[] labels;
+  private final Map<String, Integer> ids;
+  // Label index = model class id + classOffset.
+  private final int classOffset;
+
+  private LabelTable(final String[] labels, final Map<String, Integer> ids, final int classOffset) {
+    this.labels = labels;
+    this.ids = ids;
+    this.classOffset = classOffset;
+  }
+
+  /** Reads one label per line, in class order. */
+  public static LabelTable read(final InputStream input) throws IOException {
+    final List<String> lines = new ArrayList<>();
+    try (BufferedReader br = new BufferedReader(new InputStreamReader(input))) {
+      String line;
+      while ((line = br.readLine()) != null) {
+        lines.add(line);
+      }
+    }
+    final String[] labels = lines.toArray(new String[0]);
+    final Map<String, Integer> ids = new HashMap<>();
+    for (int i = labels.length - 1; i >= 0; --i) {
+      ids.put(labels[i], i);
+    }
+    LOGGER.i("Loaded %d labels", labels.length);
+    return new LabelTable(labels, Collections.unmodifiableMap(ids), 0);
+  }
+
+  /**
+   * Returns a table aligned with a head whose class axis has {@code modelClassCount} entries, or
+   * -1 for heads that report 0-based ids of real classes only (the TF-OD-API postprocessing op).
+   */
+  LabelTable calibrate(final int modelClassCount) {
+    final int offset;
+    if (modelClassCount < 0) {
+      // The op never reports background, so a placeholder first label is skipped over.
+      offset = labels.length > 0 && isPlaceholder(0) ? 1 : 0;
+    } else if (modelClassCount == labels.length + 1) {
+      // Class 0 is an unlabelled background.
+      offset = -1;
+    } else {
+      if (modelClassCount != labels.length) {
+        LOGGER.w("Model has %d classes but %d labels", modelClassCount, labels.length);
+      }
+      offset = 0;
+    }
+    return new LabelTable(labels, ids, offset);
+  }
+
+  /** Label index minus model class id, as worked out by {@link #calibrate}. */
+  public int getClassOffset() {
+    return classOffset;
+  }
+
+  public int size() {
+    return labels.length;
+  }
+
+  /** Display label for a pipeline class id. */
+  public String get(final int classId) {
+    return classId >= 0 && classId < labels.length ? labels[classId] : UNKNOWN;
+  }
+
+  /** Pipeline class id of {@code label}, or -1 if there is no such label. */
+  public int indexOf(final String label) {
+    final Integer id = ids.get(label);
+    return id != null ? id : -1;
+  }
+
+  /**
+   * Maps each model class id to a pipeline class id, or -1 for classes that must not be reported:
+   * background, placeholders, ids without a label and, if {@code enabled} is not null, classes
+   * it does not enable.
+   *
+   * @param modelClassCount As in {@link #calibrate}.
+   * @param enabled Indexed by pipeline class id, or null to report every labelled class.
+   */
+  int[] classMap(final int modelClassCount, final boolean[] enabled) {
+    final int n = modelClassCount >= 0 ? modelClassCount : Math.max(0, labels.length - classOffset);
+    final int[] map = new int[n];
+    for (int m = 0; m < n; ++m) {
+      final int id = m + classOffset;
+      final boolean valid =
+          id >= 0
+              && id < labels.length
+              && !isPlaceholder(id)
+              && (enabled == null || (id < enabled.length && enabled[id]));
+      map[m] = valid ? id : -1;
+    }
+    return map;
+  }
+
+  // Label files for background-inclusive heads name the background "???" or "background".
+  private boolean isPlaceholder(final int id) {
+    return "???".equals(labels[id]) || "background".equalsIgnoreCase(labels[id]);
+  }
+}
@@ -0,0 +1,339 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Arrays;
+
+/**
+ * Non-max suppression over struct-of-arrays box data.
+ *
+ * <p>Boxes are rows of four floats [ymin, xmin, ymax, xmax] in any consistent coordinate space,
+ * with parallel score and class arrays indexed the same way. Only the candidate indices passed to
+ * {@link #run} are considered, so callers should prefilter and order them (see {@link
+ * TopKSelector}). Scratch space grows to the largest candidate count seen and is then reused, so
+ * steady-state runs do not allocate. Instances are not thread-safe.
+ */
+public final class NonMaxSuppression {
+  /** Suppression strategy. */
+  public enum Method {
+    /** Classic greedy NMS: drop every candidate overlapping a kept box above the IoU threshold. */
+    GREEDY,
+    /** Gaussian Soft-NMS: decay overlapping scores instead of dropping them outright. */
+    SOFT,
+    /** Greedy NMS that only compares candidates sharing a cell of a uniform spatial grid. */
+    GRID
+  }
+
+  private Method method = Method.GREEDY;
+  private boolean classAware = false;
+  private float iouThreshold = 0.5f;
+  private float scoreThreshold = 0f;
+  private float softSigma = 0.5f;
+  private int gridSize = 8;
+
+  // Scratch, indexed by candidate position rather than by box index.
+  private boolean[] removed = new boolean[0];
+  private float[] working = new float[0];
+  private int[] visited = new int[0];
+  private int[] cellStart = new int[0];
+  private int[] cellFill = new int[0];
+  private int[] cellEntries = new int[0];
+
+  public NonMaxSuppression setMethod(final Method method) {
+    this.method = method;
+    return this;
+  }
+
+  /** If true, boxes only suppress boxes of the same class. */
+  public NonMaxSuppression setClassAware(final boolean classAware) {
+    this.classAware = classAware;
+    return this;
+  }
+
+  public NonMaxSuppression setIouThreshold(final float iouThreshold) {
+    this.iouThreshold = iouThreshold;
+    return this;
+  }
+
+  /** Minimum score for a box to be kept. Soft-NMS drops boxes decayed below it. */
+  public NonMaxSuppression setScoreThreshold(final float scoreThreshold) {
+    this.scoreThreshold = scoreThreshold;
+    return this;
+  }
+
+  /** Gaussian decay parameter for {@link Method#SOFT}. */
+  public NonMaxSuppression setSoftSigma(final float softSigma) {
+    this.softSigma = softSigma;
+    return this;
+  }
+
+  /** Cells per side for {@link Method#GRID}. */
+  public NonMaxSuppression setGridSize(final int gridSize) {
+    this.gridSize = Math.max(1, gridSize);
+    return this;
+  }
+
+  /**
+   * Runs suppression.
+   *
+   * @param boxes box rows, four floats per box index.
+   * @param scores score per box index.
+   * @param classes class per box index; may be null unless class-aware.
+   * @param candidates box indices to consider, best score first.
+   * @param candidateCount number of valid entries in {@code candidates}.
+   * @param maxOut maximum number of boxes to keep.
+   * @param out receives kept box indices, in the order they were kept.
+   * @param outScores receives the final score of each kept box (decayed for Soft-NMS).
+   * @return number of kept boxes.
+   */
+  public int run(
+      final float[] boxes,
+      final float[] scores,
+      final int[] classes,
+      final int[] candidates,
+      final int candidateCount,
+      final int maxOut,
+      final int[] out,
+      final float[] outScores) {
+    if (candidateCount <= 0 || maxOut <= 0) {
+      return 0;
+    }
+    ensureCapacity(candidateCount);
+    Arrays.fill(removed, 0, candidateCount, false);
+    switch (method) {
+      case SOFT:
+        return runSoft(boxes, scores, classes, candidates, candidateCount, maxOut, out, outScores);
+      case GRID:
+        if (buildGrid(boxes, candidates, candidateCount)) {
+          return runGrid(boxes, scores, classes, candidates, candidateCount, maxOut, out, outScores);
+        }
+        // Degenerate extent: every box sits in one cell, which is plain greedy NMS.
+        return runGreedy(boxes, scores, classes, candidates, candidateCount, maxOut, out, outScores);
+      case GREEDY:
+      default:
+        return runGreedy(boxes, scores, classes, candidates, candidateCount, maxOut, out, outScores);
+    }
+  }
+
+  private int runGreedy(
+      final float[] boxes,
+      final float[] scores,
+      final int[] classes,
+      final int[] candidates,
+      final int n,
+      final int maxOut,
+      final int[] out,
+      final float[] outScores) {
+    int count = 0;
+    for (int k = 0; k < n && count < maxOut; ++k) {
+      if (removed[k]) continue;
+      final int id = candidates[k];
+      if (scores[id] < scoreThreshold) continue;
+      out[count] = id;
+      outScores[count] = scores[id];
+      ++count;
+      final int ia = id * 4;
+      for (int m = k + 1; m < n; ++m) {
+        if (removed[m]) continue;
+        final int jd = candidates[m];
+        if (classAware && classes[jd] != classes[id]) continue;
+        if (iou(boxes, ia, jd * 4) > iouThreshold) removed[m] = true;
+      }
+    }
+    return count;
+  }
+
+  private int runSoft(
+      final float[] boxes,
+      final float[] scores,
+      final int[] classes,
+      final int[] candidates,
+      final int n,
+      final int maxOut,
+      final int[] out,
+      final float[] outScores) {
+    for (int k = 0; k < n; ++k) {
+      working[k] = scores[candidates[k]];
+    }
+    final float denominator = softSigma > 0f ? softSigma : 1e-6f;
+    int count = 0;
+    while (count < maxOut) {
+      // Decayed scores lose their ordering, so look for the current best each round.
+      int best = -1;
+      float bestScore = scoreThreshold;
+      for (int k = 0; k < n; ++k) {
+        if (!removed[k] && working[k] >= bestScore && (best < 0 || working[k] > bestScore)) {
+          best = k;
+          bestScore = working[k];
+        }
+      }
+      if (best < 0) break;
+      removed[best] = true;
+      final int id = candidates[best];
+      out[count] = id;
+      outScores[count] = bestScore;
+      ++count;
+      final int ia = id * 4;
+      for (int m = 0; m < n; ++m) {
+        if (removed[m]) continue;
+        final int jd = candidates[m];
+        if (classAware && classes[jd] != classes[id]) continue;
+        final float overlap = iou(boxes, ia, jd * 4);
+        if (overlap <= 0f) continue;
+        working[m] *= (float) Math.exp(-(overlap * overlap) / denominator);
+        if (working[m] < scoreThreshold) removed[m] = true;
+      }
+    }
+    return count;
+  }
+
+  // Grid geometry from the last buildGrid() call.
+  private float gridMinY;
+  private float gridMinX;
+  private float cellHeight;
+  private float cellWidth;
+
+  /** Buckets each candidate into every cell its box covers. Returns false if degenerate. */
+  private boolean buildGrid(final float[] boxes, final int[] candidates, final int n) {
+    float minY = Float.POSITIVE_INFINITY;
+    float minX = Float.POSITIVE_INFINITY;
+    float maxY = Float.NEGATIVE_INFINITY;
+    float maxX = Float.NEGATIVE_INFINITY;
+    for (int k = 0; k < n; ++k) {
+      final int o = candidates[k] * 4;
+      minY = Math.min(minY, boxes[o]);
+      minX = Math.min(minX, boxes[o + 1]);
+      maxY = Math.max(maxY, boxes[o + 2]);
+      maxX = Math.max(maxX, boxes[o + 3]);
+    }
+    if (!(maxY > minY) || !(maxX > minX)) {
+      return false;
+    }
+    gridMinY = minY;
+    gridMinX = minX;
+    cellHeight = (maxY - minY) / gridSize;
+    cellWidth = (maxX - minX) / gridSize;
+
+    final int cells = gridSize * gridSize;
+    if (cellStart.length < cells + 1) {
+      cellStart = new int[cells + 1];
+      cellFill = new int[cells];
+    }
+    Arrays.fill(cellStart, 0, cells + 1, 0);
+    // Counting pass, then prefix sums, then fill: a CSR layout with no per-cell lists.
+    for (int k = 0; k < n; ++k) {
+      final int o = candidates[k] * 4;
+      final int r0 = row(boxes[o]), r1 = row(boxes[o + 2]);
+      final int c0 = col(boxes[o + 1]), c1 = col(boxes[o + 3]);
+      for (int r = r0; r <= r1; ++r) {
+        for (int c = c0; c <= c1; ++c) {
+          ++cellStart[r * gridSize + c + 1];
+        }
+      }
+    }
+    for (int i = 0; i < cells; ++i) {
+      cellStart[i + 1] += cellStart[i];
+    }
+    if (cellEntries.length < cellStart[cells]) {
+      cellEntries = new int[cellStart[cells]];
+    }
+    System.arraycopy(cellStart, 0, cellFill, 0, cells);
+    for (int k = 0; k < n; ++k) {
+      final int o = candidates[k] * 4;
+      final int r0 = row(boxes[o]), r1 = row(boxes[o + 2]);
+      final int c0 = col(boxes[o + 1]), c1 = col(boxes[o + 3]);
+      for (int r = r0; r <= r1; ++r) {
+        for (int c = c0; c <= c1; ++c) {
+          cellEntries[cellFill[r * gridSize + c]++] = k;
+        }
+      }
+    }
+    return true;
+  }
+
+  private int runGrid(
+      final float[] boxes,
+      final float[] scores,
+      final int[] classes,
+      final int[] candidates,
+      final int n,
+      final int maxOut,
+      final int[] out,
+      final float[] outScores) {
+    Arrays.fill(visited, 0, n, 0);
+    int count = 0;
+    for (int k = 0; k < n && count < maxOut; ++k) {
+      if (removed[k]) continue;
+      final int id = candidates[k];
+      if (scores[id] < scoreThreshold) continue;
+      out[count] = id;
+      outScores[count] = scores[id];
+      ++count;
+      final int ia = id * 4;
+      final int stamp = k + 1;
+      final int r0 = row(boxes[ia]), r1 = row(boxes[ia + 2]);
+      final int c0 = col(boxes[ia + 1]), c1 = col(boxes[ia + 3]);
+      // Boxes with IoU > 0 must share at least one cell with the kept box.
+      for (int r = r0; r <= r1; ++r) {
+        for (int c = c0; c <= c1; ++c) {
+          final int cell = r * gridSize + c;
+          for (int e = cellStart[cell], end = cellStart[cell + 1]; e < end; ++e) {
+            final int m = cellEntries[e];
+            if (m <= k || removed[m] || visited[m] == stamp) continue;
+            visited[m] = stamp;
+            final int jd = candidates[m];
+            if (classAware && classes[jd] != classes[id]) continue;
+            if (iou(boxes, ia, jd * 4) > iouThreshold) removed[m] = true;
+          }
+        }
+      }
+    }
+    return count;
+  }
+
+  private int row(final float y) {
+    final int r = (int) ((y - gridMinY) / cellHeight);
+    return r < 0 ? 0 : (r >= gridSize ? gridSize - 1 : r);
+  }
+
+  private int col(final float x) {
+    final int c = (int) ((x - gridMinX) / cellWidth);
+    return c < 0 ? 0 : (c >= gridSize ? gridSize - 1 : c);
+  }
+
+  private void ensureCapacity(final int n) {
+    if (removed.length < n) {
+      removed = new boolean[n];
+      working = new float[n];
+      visited = new int[n];
+    }
+  }
+
+  /** IoU of two [ymin, xmin, ymax, xmax] rows stored at offsets ia and ib of {@code boxes}. */
+  public static float iou(final float[] boxes, final int ia, final int ib) {
+    final float ay1 = boxes[ia], ax1 = boxes[ia + 1], ay2 = boxes[ia + 2], ax2 = boxes[ia + 3];
+    final float by1 = boxes[ib], bx1 = boxes[ib + 1], by2 = boxes[ib + 2], bx2 = boxes[ib + 3];
+    final float interH = Math.min(ay2, by2) - Math.max(ay1, by1);
+    final float interW = Math.min(ax2, bx2) - Math.max(ax1, bx1);
+    if (interH <= 0 || interW <= 0) return 0f;
+    final float interArea = interH * interW;
+    final float areaA = Math.max(0f, ay2 - ay1) * Math.max(0f, ax2 - ax1);
+    final float areaB = Math.max(0f, by2 - by1) * Math.max(0f, bx2 - bx1);
+    final float union = areaA + areaB - interArea;
+    if (union <= 0f) return 0f;
+    return interArea / union;
+  }
+}
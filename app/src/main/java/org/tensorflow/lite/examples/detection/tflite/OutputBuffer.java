@@ -0,0 +1,132 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import org.tensorflow.lite.DataType;
+
+/**
+ * A preallocated direct buffer bound to one interpreter output tensor by index.
+ *
+ * <p>The interpreter copies the tensor bytes straight into {@link #buffer}, and {@link
+ * #dequantize()} expands them into the reused {@link #values} array, so reading an output never
+ * allocates. Decoders that understand the raw encoding can skip dequantization and use {@link
+ * #raw(int)} instead.
+ */
+final class OutputBuffer {
+  /** Output tensor index in the interpreter. */
+  final int index;
+  /** Tensor shape, e.g. [1, anchors, 4]. */
+  final int[] shape;
+
+  final DataType dataType;
+  final float scale;
+  final int zeroPoint;
+
+  /** Raw tensor bytes in native order, filled by the interpreter. */
+  final ByteBuffer buffer;
+  /** Flattened, dequantized values. Only valid after {@link #dequantize()}. */
+  final float[] values;
+
+  private final FloatBuffer floatView;
+  private final IntBuffer intView;
+
+  OutputBuffer(final OutputSchema schema, final int index) {
+    this.index = index;
+    this.shape = schema.shapes[index];
+    this.dataType = schema.dataTypes[index];
+    this.scale = schema.scales[index];
+    this.zeroPoint = schema.zeroPoints[index];
+
+    this.buffer = ByteBuffer.allocateDirect(schema.numBytes(index));
+    this.buffer.order(ByteOrder.nativeOrder());
+    this.values = new float[schema.numElements(index)];
+    // Views are created once; asFloatBuffer()/asIntBuffer() allocate on every call.
+    this.floatView = dataType == DataType.FLOAT32 ? buffer.asFloatBuffer() : null;
+    this.intView = dataType == DataType.INT32 ? buffer.asIntBuffer() : null;
+  }
+
+  boolean isQuantized() {
+    return dataType == DataType.UINT8 || dataType == DataType.INT8;
+  }
+
+  /** Number of elements in the tensor. */
+  int size() {
+    return values.length;
+  }
+
+  /** Size of the innermost dimension, e.g. 4 for a box tensor or num_classes for logits. */
+  int innerSize() {
+    return shape.length > 0 ? shape[shape.length - 1] : 1;
+  }
+
+  /** Must be called before every run: the interpreter writes from the current position. */
+  void rewind() {
+    buffer.rewind();
+  }
+
+  /** Raw quantized value of element {@code i} (unsigned for UINT8, signed for INT8). */
+  int raw(final int i) {
+    final byte b = buffer.get(i);
+    return dataType == DataType.UINT8 ? (b & 0xFF) : b;
+  }
+
+  /** Dequantized value of a single element, read directly from the raw buffer. */
+  float get(final int i) {
+    switch (dataType) {
+      case UINT8:
+      case INT8:
+        return (raw(i) - zeroPoint) * scale;
+      case INT32:
+        return intView.get(i);
+      default:
+        return floatView.get(i);
+    }
+  }
+
+  /** Expands the whole tensor into {@link #values}. */
+  void dequantize() {
+    dequantize(0, values.length);
+  }
+
+  /** Expands elements [from, to) into {@link #values}. */
+  void dequantize(final int from, final int to) {
+    switch (dataType) {
+      case UINT8:
+        for (int i = from; i < to; ++i) {
+          values[i] = ((buffer.get(i) & 0xFF) - zeroPoint) * scale;
+        }
+        break;
+      case INT8:
+        for (int i = from; i < to; ++i) {
+          values[i] = (buffer.get(i) - zeroPoint) * scale;
+        }
+        break;
+      case INT32:
+        for (int i = from; i < to; ++i) {
+          values[i] = intView.get(i);
+        }
+        break;
+      default:
+        floatView.position(from);
+        floatView.get(values, from, to - from);
+        break;
+    }
+  }
+}
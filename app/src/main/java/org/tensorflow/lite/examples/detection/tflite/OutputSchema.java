@@ -0,0 +1,290 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+import org.tensorflow.lite.examples.detection.env.Logger;
+
+/**
+ * Everything the detector needs to know about a model's output tensors: their names, shapes,
+ * types and quantization, and which one plays which role in the detection head.
+ *
+ * <p>Working this out means several JNI calls per tensor plus the name/shape heuristics below, so
+ * it is done once per model file and cached in a small binary sidecar. The sidecar records the
+ * model fingerprint and is ignored if it does not match, so replacing the model re-inspects it.
+ */
+final class OutputSchema {
+  private static final Logger LOGGER = new Logger();
+
+  private static final int MAGIC = 0x4f534348; // "OSCH"
+  private static final int VERSION = 1;
+
+  /** Fingerprint of the model file this schema describes. */
+  final String modelFingerprint;
+
+  final String[] names;
+  final int[][] shapes;
+  final DataType[] dataTypes;
+  final float[] scales;
+  final int[] zeroPoints;
+
+  // Output index per role, or -1 if the head has no such tensor.
+  final int locations;
+  final int classes;
+  final int scores;
+  final int numDetections;
+  // Some models (raw SSD) return logits/probabilities with shape [1, anchors, num_classes]
+  // e.g. [1,12804,2] -> logits for background/foreground per anchor.
+  final int logits;
+
+  private OutputSchema(
+      final String modelFingerprint,
+      final String[] names,
+      final int[][] shapes,
+      final DataType[] dataTypes,
+      final float[] scales,
+      final int[] zeroPoints,
+      final int[] roles) {
+    this.modelFingerprint = modelFingerprint;
+    this.names = names;
+    this.shapes = shapes;
+    this.dataTypes = dataTypes;
+    this.scales = scales;
+    this.zeroPoints = zeroPoints;
+    this.locations = roles[0];
+    this.classes = roles[1];
+    this.scores = roles[2];
+    this.numDetections = roles[3];
+    this.logits = roles[4];
+  }
+
+  int size() {
+    return names.length;
+  }
+
+  int numElements(final int index) {
+    int n = 1;
+    for (int d : shapes[index]) {
+      n *= d;
+    }
+    return n;
+  }
+
+  int numBytes(final int index) {
+    return numElements(index) * dataTypes[index].byteSize();
+  }
+
+  /** Output index by tensor name. */
+  Map<String, Integer> indexByName() {
+    final Map<String, Integer> map = new HashMap<>();
+    for (int i = 0; i < names.length; ++i) {
+      map.put(names[i], i);
+    }
+    return map;
+  }
+
+  /** Reads the output tensors of {@code interpreter} and assigns their roles. */
+  static OutputSchema inspect(final Interpreter interpreter, final String modelFingerprint) {
+    final int count = interpreter.getOutputTensorCount();
+    final String[] names = new String[count];
+    final int[][] shapes = new int[count][];
+    final DataType[] dataTypes = new DataType[count];
+    final float[] scales = new float[count];
+    final int[] zeroPoints = new int[count];
+    for (int i = 0; i < count; i++) {
+      final Tensor tensor = interpreter.getOutputTensor(i);
+      names[i] = tensor.name();
+      shapes[i] = tensor.shape();
+      dataTypes[i] = tensor.dataType();
+      if (dataTypes[i] == DataType.UINT8 || dataTypes[i] == DataType.INT8) {
+        try {
+          scales[i] = tensor.quantizationParams().getScale();
+          zeroPoints[i] = tensor.quantizationParams().getZeroPoint();
+        } catch (Exception ignored) {}
+      }
+      LOGGER.i("Output tensor " + i + " name=" + names[i] + " shape=" + Arrays.toString(shapes[i])
+          + " dtype=" + dataTypes[i]);
+    }
+    return new OutputSchema(
+        modelFingerprint, names, shapes, dataTypes, scales, zeroPoints, assignRoles(names, shapes));
+  }
+
+  /** Returns {locations, classes, scores, numDetections, logits}, -1 where absent. */
+  private static int[] assignRoles(final String[] names, final int[][] shapes) {
+    int idxLocations = -1;
+    int idxClasses = -1;
+    int idxScores = -1;
+    int idxNumDetections = -1;
+    int idxLogits = -1;
+    for (int i = 0; i < names.length; i++) {
+      final String outName = names[i] != null ? names[i] : "";
+      final int[] shape = shapes[i];
+
+      // Shape-based mapping (more robust than relying on names/order)
+      if (shape != null) {
+        if (shape.length == 3 && shape[0] == 1 && shape[2] == 4) {
+          // [1, N, 4] => boxes
+          idxLocations = i;
+          continue;
+        }
+        // common SSD logits/prob output shape: [1, anchors, classes]
+        if (shape.length == 3 && shape[0] == 1 && shape[2] > 1) {
+          // treat as logits/probabilities per-anchor
+          idxLogits = i;
+          continue;
+        }
+        if (shape.length == 2 && shape[0] == 1) {
+          // [1, N] => either scores or classes. Many exported models use N != NUM_DETECTIONS
+          // (e.g. 25). Decide by name if possible, otherwise assign to the first unassigned
+          // (prefer scores then classes). Don't rely on dtype (UINT8 is a valid quantized scores tensor).
+          String nlow = outName.toLowerCase();
+          if (nlow.contains("score")) {
+            idxScores = i;
+            continue;
+          } else if (nlow.contains("class")) {
+            idxClasses = i;
+            continue;
+          }
+          // fallback: prefer assigning to scores if free, else classes
+          if (idxScores == -1) {
+            idxScores = i;
+            continue;
+          }
+          if (idxClasses == -1) {
+            idxClasses = i;
+            continue;
+          }
+        }
+        // num_detections often has shape [1] or [1,1]
+        if ((shape.length == 1 && shape[0] == 1) || (shape.length == 2 && shape[0] == 1 && shape[1] == 1)) {
+          idxNumDetections = i;
+          continue;
+        }
+      }
+      // Name-based fallback
+      final String nlow = outName.toLowerCase();
+      if (nlow.contains("detection_boxes")) idxLocations = i;
+      if (nlow.contains("detection_classes")) idxClasses = i;
+      if (nlow.contains("detection_scores")) idxScores = i;
+      if (nlow.contains("num_detections")) idxNumDetections = i;
+    }
+    // If none of the outputs could be identified, assume the stable TF-OD-API ordering.
+    if (idxLocations == -1 && idxClasses == -1 && idxScores == -1
+        && idxNumDetections == -1 && idxLogits == -1) {
+      idxLocations = 0;
+      idxClasses = 1;
+      idxScores = 2;
+      idxNumDetections = 3;
+    }
+    return new int[] {idxLocations, idxClasses, idxScores, idxNumDetections, idxLogits};
+  }
+
+  /**
+   * Reads a schema written by {@link #save}, or returns null if the file is missing, unreadable,
+   * from another format version or for a different model.
+   */
+  static OutputSchema load(final File file, final String modelFingerprint) {
+    if (file == null || !file.isFile()) {
+      return null;
+    }
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        return null;
+      }
+      final String fingerprint = in.readUTF();
+      if (!fingerprint.equals(modelFingerprint)) {
+        LOGGER.i("Output schema cache is for another model, re-inspecting");
+        return null;
+      }
+      final int count = in.readInt();
+      final String[] names = new String[count];
+      final int[][] shapes = new int[count][];
+      final DataType[] dataTypes = new DataType[count];
+      final float[] scales = new float[count];
+      final int[] zeroPoints = new int[count];
+      for (int i = 0; i < count; ++i) {
+        names[i] = in.readUTF();
+        shapes[i] = new int[in.readInt()];
+        for (int d = 0; d < shapes[i].length; ++d) {
+          shapes[i][d] = in.readInt();
+        }
+        dataTypes[i] = DataType.valueOf(in.readUTF());
+        scales[i] = in.readFloat();
+        zeroPoints[i] = in.readInt();
+      }
+      final int[] roles = new int[5];
+      for (int r = 0; r < roles.length; ++r) {
+        roles[r] = in.readInt();
+      }
+      return new OutputSchema(fingerprint, names, shapes, dataTypes, scales, zeroPoints, roles);
+    } catch (IOException | RuntimeException e) {
+      LOGGER.w("Ignoring unreadable output schema cache: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /** Writes the schema to {@code file}, replacing it only once fully written. */
+  void save(final File file) {
+    final File tmp = new File(file.getPath() + ".tmp");
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(modelFingerprint);
+        out.writeInt(names.length);
+        for (int i = 0; i < names.length; ++i) {
+          out.writeUTF(names[i] != null ? names[i] : "");
+          out.writeInt(shapes[i].length);
+          for (int d : shapes[i]) {
+            out.writeInt(d);
+          }
+          out.writeUTF(dataTypes[i].name());
+          out.writeFloat(scales[i]);
+          out.writeInt(zeroPoints[i]);
+        }
+        for (int role : new int[] {locations, classes, scores, numDetections, logits}) {
+          out.writeInt(role);
+        }
+      }
+      if (!tmp.renameTo(file)) {
+        throw new IOException("rename to " + file + " failed");
+      }
+    } catch (IOException e) {
+      LOGGER.w("Could not cache output schema: " + e.getMessage());
+      tmp.delete();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return indexByName().toString();
+  }
+}
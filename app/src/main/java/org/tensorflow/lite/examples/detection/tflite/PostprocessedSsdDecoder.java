@@ -0,0 +1,127 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+/**
+ * Decoder for models exported with the TF Object Detection API postprocessing op, which already
+ * returns NMS-filtered boxes, classes, scores and a detection count.
+ */
+final class PostprocessedSsdDecoder implements DetectionDecoder {
+  private final OutputBuffer locations;
+  private final OutputBuffer classes;
+  private final OutputBuffer scores;
+  private final OutputBuffer numDetections;
+  private final int inputSize;
+  private final int maxDetectionsLimit;
+
+  private volatile float scoreThreshold;
+  private volatile int maxDetections;
+  private volatile int[] classMap;
+
+  PostprocessedSsdDecoder(
+      final OutputBuffer locations,
+      final OutputBuffer classes,
+      final OutputBuffer scores,
+      final OutputBuffer numDetections,
+      final int inputSize,
+      final int maxDetections) {
+    this.locations = locations;
+    this.classes = classes;
+    this.scores = scores;
+    this.numDetections = numDetections;
+    this.inputSize = inputSize;
+    this.maxDetectionsLimit = maxDetections;
+    this.maxDetections = maxDetections;
+  }
+
+  @Override
+  public int getClassCount() {
+    // The op reports 0-based ids of real classes and does not expose how many there are.
+    return -1;
+  }
+
+  @Override
+  public void setClassMap(final int[] classMap) {
+    this.classMap = classMap;
+  }
+
+  @Override
+  public void setScoreThreshold(final float scoreThreshold) {
+    this.scoreThreshold = scoreThreshold;
+  }
+
+  @Override
+  public float getScoreThreshold() {
+    return scoreThreshold;
+  }
+
+  @Override
+  public void setIouThreshold(final float iouThreshold) {
+    // Suppression already happened inside the model.
+  }
+
+  @Override
+  public void setMaxDetections(final int maxDetections) {
+    this.maxDetections = Math.max(1, Math.min(maxDetectionsLimit, maxDetections));
+  }
+
+  @Override
+  public void decode(final DetectionBuffer out) {
+    decode(out, scoreThreshold);
+  }
+
+  @Override
+  public void decode(final DetectionBuffer out, final float threshold) {
+    if (numDetections != null) {
+      numDetections.dequantize();
+    }
+
+    // You need to use the number of detections from the output and not the NUM_DETECTONS
+    // variable, because on some models they don't always output the same total number of
+    // detections. For example, your model's NUM_DETECTIONS = 20, but sometimes it only outputs
+    // 16 predictions. If you don't use the output's numDetections, you'll get nonsensical data.
+    int count = numDetections != null ? (int) numDetections.values[0] : scores.size();
+    count = Math.min(count, Math.min(scores.size(), locations.size() / 4));
+
+    // The op returns detections best first, so decoding stops at the first one below the
+    // threshold and the rest of the boxes are never read.
+    final int limit = maxDetections;
+    final int[] map = classMap;
+    out.clear();
+    for (int i = 0; i < count && out.size() < limit; ++i) {
+      final float score = scores.get(i);
+      if (score < threshold) {
+        break;
+      }
+      int classId = (int) classes.get(i);
+      if (map != null) {
+        classId = classId >= 0 && classId < map.length ? map[classId] : -1;
+        if (classId < 0) {
+          continue;
+        }
+      }
+      final int o = i * 4;
+      out.add(
+          locations.get(o + 1) * inputSize,
+          locations.get(o) * inputSize,
+          locations.get(o + 3) * inputSize,
+          locations.get(o + 2) * inputSize,
+          score,
+          classId,
+          i);
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import org.tensorflow.lite.examples.detection.env.Logger;
+
+/**
+ * Chooses the model input resolution from measured inference latency.
+ *
+ * <p>Levels are ordered from the largest input size (level 0) to the smallest. Latency is smoothed
+ * with an exponential moving average. The controller steps down one level when the average stays
+ * above the budget, and steps back up only when the average, scaled by the pixel ratio to the
+ * larger size, would still fit comfortably. After every switch it waits for the average to settle
+ * on the new resolution, so it does not oscillate between two levels.
+ */
+public final class ResolutionController {
+  private static final Logger LOGGER = new Logger();
+
+  // Weight of the newest sample in the moving average.
+  private static final float SMOOTHING = 0.1f;
+  // Step down above this fraction of the budget, step up if the larger size is predicted below
+  // the lower one.
+  private static final float DOWN_FRACTION = 1.1f;
+  private static final float UP_FRACTION = 0.8f;
+  // Frames to ignore after a switch while the average adapts.
+  private static final int SETTLE_FRAMES = 30;
+  // Consecutive frames a condition must hold before acting on it.
+  private static final int CONFIRM_FRAMES = 15;
+
+  private final int[] inputSizes;
+  private final float budgetMs;
+
+  private int level;
+  private float averageMs = Float.NaN;
+  private int settle = SETTLE_FRAMES;
+  private int overBudget;
+  private int underBudget;
+
+  /**
+   * @param inputSizes available input sizes, largest first.
+   * @param budgetMs target inference latency per frame.
+   */
+  public ResolutionController(final int[] inputSizes, final float budgetMs) {
+    this.inputSizes = inputSizes.clone();
+    this.budgetMs = budgetMs;
+  }
+
+  /** Current level, an index into the input sizes. */
+  public synchronized int getLevel() {
+    return level;
+  }
+
+  /**
+   * Records the latency of a frame that ran at {@code inputSize} and returns the level to use for
+   * the next frames. Samples from another level than the current one (frames already in flight
+   * when the level changed) are ignored.
+   */
+  public synchronized int onFrame(final int inputSize, final long inferenceMs) {
+    if (inputSize != inputSizes[level]) {
+      return level;
+    }
+    averageMs =
+        Float.isNaN(averageMs) ? inferenceMs : averageMs + SMOOTHING * (inferenceMs - averageMs);
+    if (settle > 0) {
+      --settle;
+      return level;
+    }
+
+    overBudget = averageMs > budgetMs * DOWN_FRACTION ? overBudget + 1 : 0;
+    underBudget = level > 0 && predictedMs(level - 1) < budgetMs * UP_FRACTION ? underBudget + 1 : 0;
+
+    if (overBudget >= CONFIRM_FRAMES && level < inputSizes.length - 1) {
+      switchTo(level + 1);
+    } else if (underBudget >= CONFIRM_FRAMES) {
+      switchTo(level - 1);
+    }
+    return level;
+  }
+
+  // Latency at another level, assuming it scales with the number of input pixels.
+  private float predictedMs(final int target) {
+    final float ratio = inputSizes[target] / (float) inputSizes[level];
+    return averageMs * ratio * ratio;
+  }
+
+  private void switchTo(final int next) {
+    LOGGER.i(
+        "Input size %d -> %d (average %.1f ms, budget %.1f ms)",
+        inputSizes[level], inputSizes[next], averageMs, budgetMs);
+    averageMs = predictedMs(next);
+    level = next;
+    settle = SETTLE_FRAMES;
+    overBudget = 0;
+    underBudget = 0;
+  }
+}
@@ -0,0 +1,271 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import android.graphics.Matrix;
+import android.os.SystemClock;
+import java.util.Locale;
+import org.tensorflow.lite.examples.detection.env.ImageUtils;
+import org.tensorflow.lite.examples.detection.env.YuvFrame;
+import org.tensorflow.lite.examples.detection.env.YuvToTensor;
+
+/**
+ * Coarse-to-fine detection for small targets.
+ *
+ * <p>Stage 1 runs the detector on the whole frame at a reduced input size with a permissive
+ * threshold, to find candidates. Stage 2 cuts a fixed-size crop around each of the best {@code
+ * maxCrops} candidates out of the full-resolution frame and runs the full-size model on it, which
+ * sees the candidate with many more pixels and either confirms it with a precise box or drops it.
+ * Candidates too large for a crop already had enough pixels and keep their stage 1 box. Stage 2
+ * stops early once its time budget is spent; candidates left over also keep their stage 1 box.
+ */
+public final class RoiCascade {
+  // Boxes ending this close to a crop edge inside the frame are cut off by the crop.
+  private static final float EDGE_MARGIN = 2f;
+  // A candidate whose centre is this far inside an existing crop is covered by it.
+  private static final float COVERED_MARGIN = 0.25f;
+
+  private final int frameWidth;
+  private final int frameHeight;
+  private final int cropSize;
+  private final int inputSize;
+  private final int rotation;
+  private final boolean quantized;
+  private final float mean;
+  private final float std;
+  private final int maxCrops;
+  private final float candidateThreshold;
+  private final float stage2BudgetMs;
+  // Crop model input pixels to crop pixels; translated by the crop origin per crop.
+  private final Matrix cropInputToCrop;
+  // Frame pixels to the full-size model input, the space results are delivered in.
+  private final Matrix frameToInput;
+
+  // Totals for getStatString(), guarded by this.
+  private long frames;
+  private long stage1Ms;
+  private long stage2Ms;
+  private long crops;
+  private volatile long lastStage1Ms;
+  private volatile long lastStage2Ms;
+
+  /**
+   * @param frameWidth Width of the camera frame.
+   * @param frameHeight Height of the camera frame.
+   * @param cropSize Side of the stage 2 crops, in frame pixels.
+   * @param inputSize Side of the full-size model input used by stage 2.
+   * @param rotation Rotation to apply, a multiple of 90.
+   * @param quantized As in {@link YuvToTensor}.
+   * @param maxCrops Stage 2 budget: maximum number of crops per frame.
+   * @param candidateThreshold Stage 1 score threshold for candidates, capped at the coarse model's
+   *     own threshold.
+   * @param stage2BudgetMs Stage 2 budget: no new crop is started after this much time.
+   */
+  public RoiCascade(
+      final int frameWidth,
+      final int frameHeight,
+      final int cropSize,
+      final int inputSize,
+      final int rotation,
+      final boolean quantized,
+      final float mean,
+      final float std,
+      final int maxCrops,
+      final float candidateThreshold,
+      final float stage2BudgetMs) {
+    this.frameWidth = frameWidth;
+    this.frameHeight = frameHeight;
+    this.cropSize = Math.min(cropSize, Math.min(frameWidth, frameHeight));
+    this.inputSize = inputSize;
+    this.rotation = rotation;
+    this.quantized = quantized;
+    this.mean = mean;
+    this.std = std;
+    this.maxCrops = maxCrops;
+    this.candidateThreshold = candidateThreshold;
+    this.stage2BudgetMs = stage2BudgetMs;
+
+    cropInputToCrop = new Matrix();
+    ImageUtils.getTransformationMatrix(
+            this.cropSize, this.cropSize, inputSize, inputSize, rotation, false)
+        .invert(cropInputToCrop);
+    frameToInput =
+        ImageUtils.getTransformationMatrix(
+            frameWidth, frameHeight, inputSize, inputSize, rotation, false);
+  }
+
+  /**
+   * Creates the per-frame state for one inference slot.
+   *
+   * @param coarseToFrame Maps the stage 1 model input to frame pixels.
+   */
+  public Job newJob(final Matrix coarseToFrame, final float iouThreshold, final int maxDetections) {
+    return new Job(coarseToFrame, iouThreshold, maxDetections);
+  }
+
+  /** Stage 1 latency of the most recent frame, in ms. */
+  public long getLastStage1Ms() {
+    return lastStage1Ms;
+  }
+
+  /** Stage 2 latency of the most recent frame, in ms. */
+  public long getLastStage2Ms() {
+    return lastStage2Ms;
+  }
+
+  /** Average latency per stage and crops per frame since creation. */
+  public synchronized String getStatString() {
+    if (frames == 0) {
+      return "no frames";
+    }
+    return String.format(
+        Locale.US,
+        "stage 1 %.1f ms, stage 2 %.1f ms, %.2f crops per frame",
+        stage1Ms / (float) frames, stage2Ms / (float) frames, crops / (float) frames);
+  }
+
+  private synchronized void record(final long stage1, final long stage2, final int cropCount) {
+    ++frames;
+    stage1Ms += stage1;
+    stage2Ms += stage2;
+    crops += cropCount;
+    lastStage1Ms = stage1;
+    lastStage2Ms = stage2;
+  }
+
+  /**
+   * Inputs and scratch for one frame in flight. Copy the frame into {@link #getFrame()} and fill
+   * the stage 1 model's input on the camera thread, then run {@link #run} on the inference slot;
+   * keep one job per pool slot.
+   */
+  public final class Job {
+    private final YuvFrame frame = new YuvFrame();
+    // One converter serves every crop: only its origin moves.
+    private final YuvToTensor cropConverter =
+        new YuvToTensor(
+            frameWidth, frameHeight,
+            0, 0, cropSize, cropSize,
+            inputSize, inputSize,
+            rotation, false,
+            quantized, mean, std);
+    private final Matrix coarseToFrame;
+    private final Matrix cropToFrame = new Matrix();
+    private final DetectionBuffer candidates = new DetectionBuffer();
+    private final DetectionBuffer cropDetections = new DetectionBuffer();
+    private final int[] cropLefts;
+    private final int[] cropTops;
+    private final NonMaxSuppression nms;
+    private final int maxDetections;
+
+    private Job(final Matrix coarseToFrame, final float iouThreshold, final int maxDetections) {
+      this.coarseToFrame = new Matrix(coarseToFrame);
+      this.cropLefts = new int[maxCrops];
+      this.cropTops = new int[maxCrops];
+      this.nms = new NonMaxSuppression().setClassAware(true).setIouThreshold(iouThreshold);
+      this.maxDetections = maxDetections;
+    }
+
+    /** Where to copy the frame before {@link #run}. */
+    public YuvFrame getFrame() {
+      return frame;
+    }
+
+    /**
+     * Runs both stages and writes the detections to {@code out}, in the pixels of the full-size
+     * model input, like a single full-size run.
+     *
+     * @param coarse Stage 1 model, its input already filled from the frame.
+     * @param fine Full-size model for stage 2; may be {@code coarse}'s sibling on the same thread.
+     */
+    public void run(final Classifier coarse, final Classifier fine, final DetectionBuffer out) {
+      final long start = SystemClock.uptimeMillis();
+      // Per call, so the shared model keeps the user's threshold, and never stricter than it.
+      coarse.recognizeInputBuffer(
+          candidates, Math.min(candidateThreshold, coarse.getConfidenceThreshold()));
+      candidates.mapBoxes(coarseToFrame);
+      final long stage1End = SystemClock.uptimeMillis();
+
+      out.clear();
+      int cropCount = 0;
+      for (int i = 0; i < candidates.size(); ++i) {
+        final float w = candidates.width(i);
+        final float h = candidates.height(i);
+        final float cx = candidates.left(i) + w / 2;
+        final float cy = candidates.top(i) + h / 2;
+        if (w > cropSize - 2 * EDGE_MARGIN || h > cropSize - 2 * EDGE_MARGIN) {
+          // Already large in the frame; a crop would not add detail.
+          keepCandidate(i, out);
+          continue;
+        }
+        if (covered(cx, cy, cropCount)) {
+          continue;
+        }
+        if (cropCount == maxCrops || SystemClock.uptimeMillis() - stage1End > stage2BudgetMs) {
+          keepCandidate(i, out);
+          continue;
+        }
+        final int left = clamp(Math.round(cx - cropSize / 2f), frameWidth - cropSize);
+        final int top = clamp(Math.round(cy - cropSize / 2f), frameHeight - cropSize);
+        cropLefts[cropCount] = left;
+        cropTops[cropCount] = top;
+        ++cropCount;
+
+        cropConverter.moveCrop(left, top);
+        frame.convert(cropConverter, fine.getInputBuffer());
+        fine.recognizeInputBuffer(cropDetections);
+        cropToFrame.set(cropInputToCrop);
+        cropToFrame.postTranslate(left, top);
+        cropDetections.mapBoxes(cropToFrame);
+        cropDetections.retainInside(
+            left > 0 ? left + EDGE_MARGIN : Float.NEGATIVE_INFINITY,
+            top > 0 ? top + EDGE_MARGIN : Float.NEGATIVE_INFINITY,
+            left + cropSize < frameWidth ? left + cropSize - EDGE_MARGIN : Float.POSITIVE_INFINITY,
+            top + cropSize < frameHeight ? top + cropSize - EDGE_MARGIN : Float.POSITIVE_INFINITY);
+        out.append(cropDetections);
+      }
+      if (cropCount > 0) {
+        // Neighbouring crops can see the same object.
+        out.suppress(nms, maxDetections);
+      }
+      out.mapBoxes(frameToInput);
+      out.setInputSize(inputSize);
+      record(stage1End - start, SystemClock.uptimeMillis() - stage1End, cropCount);
+    }
+
+    // Keeps stage 1 candidate i as a final detection, in frame pixels.
+    private void keepCandidate(final int i, final DetectionBuffer out) {
+      out.add(
+          candidates.left(i), candidates.top(i), candidates.right(i), candidates.bottom(i),
+          candidates.score(i), candidates.classId(i), candidates.id(i));
+    }
+
+    // Whether the point lies well inside one of the first cropCount crops.
+    private boolean covered(final float x, final float y, final int cropCount) {
+      final float margin = cropSize * COVERED_MARGIN;
+      for (int c = 0; c < cropCount; ++c) {
+        if (x >= cropLefts[c] + margin && x < cropLefts[c] + cropSize - margin
+            && y >= cropTops[c] + margin && y < cropTops[c] + cropSize - margin) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private static int clamp(final int value, final int max) {
+    return Math.max(0, Math.min(value, max));
+  }
+}
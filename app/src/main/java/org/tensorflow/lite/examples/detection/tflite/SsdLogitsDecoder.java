@@ -0,0 +1,179 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.nio.ByteBuffer;
+import org.tensorflow.lite.DataType;
+
+/**
+ * Decoder for raw SSD heads: per-anchor boxes [1, anchors, 4] alongside per-anchor class logits
+ * [1, anchors, num_classes] (e.g. [1,12804,2] for background/foreground). Boxes are read as
+ * normalized [ymin, xmin, ymax, xmax]; scores are the softmax over the class logits.
+ *
+ * <p>For quantized logits the zero point cancels out of the softmax, so the winning probability
+ * depends only on the byte gaps {@code qmax - q_c}. Those take at most 256 values, so they are
+ * scored through tables built once from the tensor's quantization scale instead of {@code
+ * Math.exp}. With two classes the probability is exactly {@code sigmoid(scale * |q1 - q0|)}.
+ */
+final class SsdLogitsDecoder extends DenseHeadDecoder {
+  private final OutputBuffer locations;
+  private final OutputBuffer logits;
+  private final int numClasses;
+  private final double[] exps;
+
+  // Raw-byte scoring tables, null for float logits. expNeg[d] = exp(-scale * d) and
+  // sigmoid[d] = 1 / (1 + expNeg[d]) for byte gaps d in [0, 255].
+  private final float[] expNeg;
+  private final float[] sigmoid;
+  // Masks a raw byte to its unsigned value for UINT8; keeps the sign for INT8.
+  private final int byteMask;
+  // Smallest gap between the best and second-best byte that can reach the threshold.
+  private int minGap;
+  private float minGapThreshold = Float.NaN;
+
+  SsdLogitsDecoder(
+      final OutputBuffer locations,
+      final OutputBuffer logits,
+      final int inputSize,
+      final int maxDetections) {
+    super(logits.shape[1], inputSize, maxDetections);
+    this.locations = locations;
+    this.logits = logits;
+    this.numClasses = logits.innerSize();
+    this.exps = new double[numClasses];
+
+    if (logits.isQuantized() && logits.scale > 0f) {
+      expNeg = new float[256];
+      sigmoid = new float[256];
+      for (int d = 0; d < 256; ++d) {
+        final double e = Math.exp(-(double) logits.scale * d);
+        expNeg[d] = (float) e;
+        sigmoid[d] = (float) (1.0 / (1.0 + e));
+      }
+      byteMask = logits.dataType == DataType.UINT8 ? 0xFF : ~0;
+    } else {
+      expNeg = null;
+      sigmoid = null;
+      byteMask = ~0;
+    }
+  }
+
+  @Override
+  public int getClassCount() {
+    return numClasses;
+  }
+
+  /**
+   * The best probability is at most sigmoid(scale * gap), gap being the distance from the best
+   * byte to the runner-up, so any anchor with a smaller gap than this can be rejected without
+   * touching the tables.
+   */
+  private int minGap(final float threshold) {
+    if (threshold != minGapThreshold) {
+      int d = 0;
+      while (d < 255 && sigmoid[d] < threshold) {
+        ++d;
+      }
+      minGap = sigmoid[d] < threshold ? 256 : d;
+      minGapThreshold = threshold;
+    }
+    return minGap;
+  }
+
+  @Override
+  protected float[] boxes() {
+    return locations.values;
+  }
+
+  @Override
+  protected void scoreCandidates() {
+    locations.dequantize();
+    if (expNeg != null) {
+      scoreQuantized();
+    } else {
+      scoreFloat();
+    }
+  }
+
+  private void scoreQuantized() {
+    final ByteBuffer raw = logits.buffer;
+    final int mask = byteMask;
+    final int gapLimit = minGap(scoreThreshold());
+
+    for (int a = 0; a < anchors; ++a) {
+      final int base = a * numClasses;
+      // Best and runner-up bytes; ties keep the lowest class, as the float argmax does.
+      int best = raw.get(base) & mask;
+      int bestC = 0;
+      int second = Integer.MIN_VALUE;
+      for (int c = 1; c < numClasses; ++c) {
+        final int q = raw.get(base + c) & mask;
+        if (q > best) {
+          second = best;
+          best = q;
+          bestC = c;
+        } else if (q > second) {
+          second = q;
+        }
+      }
+      classes[a] = bestC;
+      final int gap = numClasses > 1 ? best - second : 255;
+      if (gap < gapLimit) {
+        scores[a] = 0f;
+        classes[a] = -1;
+        continue;
+      }
+      if (numClasses == 2) {
+        scores[a] = sigmoid[gap];
+        continue;
+      }
+      float sum = 0f;
+      for (int c = 0; c < numClasses; ++c) {
+        sum += expNeg[best - (raw.get(base + c) & mask)];
+      }
+      scores[a] = 1f / sum;
+    }
+  }
+
+  private void scoreFloat() {
+    logits.dequantize();
+    final float[] values = logits.values;
+
+    // For each anchor, compute softmax over classes and pick best class & score.
+    for (int a = 0; a < anchors; ++a) {
+      final int base = a * numClasses;
+      float max = Float.NEGATIVE_INFINITY;
+      for (int c = 0; c < numClasses; ++c) {
+        float v = values[base + c];
+        if (v > max) max = v;
+      }
+      double sum = 0.0;
+      for (int c = 0; c < numClasses; ++c) {
+        double e = Math.exp(values[base + c] - max);
+        exps[c] = e;
+        sum += e;
+      }
+      int bestC = 0;
+      double bestP = -1.0;
+      for (int c = 0; c < numClasses; ++c) {
+        double p = exps[c] / sum;
+        if (p > bestP) { bestP = p; bestC = c; }
+      }
+      scores[a] = (float) bestP;
+      classes[a] = bestC;
+    }
+  }
+}
@@ -15,30 +15,34 @@ limitations under the License.
 
 package org.tensorflow.lite.examples.detection.tflite;
 
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
-import android.graphics.RectF;
+import android.os.Build;
 import android.os.Trace;
-import android.util.Log;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Arrays;
-import java.util.Vector;
+import java.util.concurrent.atomic.AtomicReference;
+import org.tensorflow.lite.Delegate;
 import org.tensorflow.lite.Interpreter;
-import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Tensor;
 import org.tensorflow.lite.examples.detection.env.Logger;
 import org.tensorflow.lite.gpu.GpuDelegate;
 import org.tensorflow.lite.nnapi.NnApiDelegate;
@@ -59,65 +63,61 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
   // New model returns up to 50 detections
   private static final int NUM_DETECTIONS = 50;
   // Float model
-  private static final float IMAGE_MEAN = 127.5f;
-  private static final float IMAGE_STD = 127.5f;
+  public static final float IMAGE_MEAN = 127.5f;
+  public static final float IMAGE_STD = 127.5f;
   // Number of threads in the java app
   private static final int NUM_THREADS = 4;
+  // Upper bound for recognizeBatch(), a power of two; each batch size in use keeps its own
+  // resized interpreter.
+  private static final int MAX_BATCH = 4;
+  // recognizeBatch() calls after which a size the model failed to run is tried again.
+  private static final int BATCH_RETRY_CALLS = 64;
   private boolean isModelQuantized;
   // Config values.
   private int inputSize;
+  // True if inputSize differs from the size the model file was exported with, so every
+  // interpreter built for this instance needs its input resized.
+  private boolean resizedInput;
   // Pre-allocated buffers.
-  private Vector<String> labels = new Vector<String>();
+  // Calibrated to this instance's head in bindOutputs(); immutable, so siblings share it.
+  private LabelTable labels;
+  // Enabled label indices from setClassFilter(), or null for all; survives interpreter rebuilds.
+  private boolean[] classFilter;
   private int[] intValues;
-  // outputLocations: array of shape [Batchsize, NUM_DETECTIONS,4]
-  // contains the location of detected boxes
-  private float[][][] outputLocations;
-  // If the model's output is quantized (e.g. UINT8) we keep the raw buffer here
-  private Object outputLocationsRaw = null;
-  private float outputLocationsScale = 0f;
-  private int outputLocationsZeroPoint = 0;
-  // outputClasses: array of shape [Batchsize, NUM_DETECTIONS]
-  // contains the classes of detected boxes
-  private float[][] outputClasses;
-  private Object outputClassesRaw = null;
-  private float outputClassesScale = 0f;
-  private int outputClassesZeroPoint = 0;
-  // outputScores: array of shape [Batchsize, NUM_DETECTIONS]
-  // contains the scores of detected boxes
-  private float[][] outputScores;
-  private Object outputScoresRaw = null;
-  private float outputScoresScale = 0f;
-  private int outputScoresZeroPoint = 0;
-  // numDetections: array of shape [Batchsize]
-  // contains the number of detected boxes
-  private float[] numDetections;
-  private Object numDetectionsRaw = null;
-  private float numDetectionsScale = 0f;
-  private int numDetectionsZeroPoint = 0;
-
   private ByteBuffer imgData;
 
   private Interpreter tfLite;
+  // Delegate owned by tfLite, closed right after it.
+  private Delegate delegate;
+  private volatile int numThreads = NUM_THREADS;
+  // Interpreter built and warmed up off the inference thread, swapped in before the next frame.
+  private final AtomicReference<Standby> standby = new AtomicReference<>();
+  private AtomicReference<String> modelFingerprint = new AtomicReference<>();
   private MappedByteBuffer modelFileBuffer;
+  // Largest batch recognizeBatch() may try; lowered when the model rejects a size and raised back
+  // to MAX_BATCH by restoreMaxBatch().
+  private int maxBatch = MAX_BATCH;
+  // Processor and thread count maxBatch was lowered under, and recognizeBatch() calls since.
+  private ProcessorType maxBatchProcessorType;
+  private int maxBatchThreads;
+  private int callsSinceBatchFailure;
+  // Resized interpreters indexed by log2(batch size), built on first use.
+  private final BatchRun[] batchRuns = new BatchRun[Integer.numberOfTrailingZeros(MAX_BATCH) + 1];
   private ProcessorType currentProcessorType = ProcessorType.CPU;
 
-  // Enable a full dump of output tensors to logcat. Set to false in production.
-  private static final boolean FULL_DUMP_OUTPUTS = true;
-
-  // Output tensor index mapping (by tensor name) for robust handling of models that
-  // return a dict / named outputs.
-  private int idxLocations = -1;
-  private int idxClasses = -1;
-  private int idxScores = -1;
-  private int idxNumDetections = -1;
-  // Some models (raw SSD) return logits/probabilities with shape [1, anchors, num_classes]
-  // e.g. [1,12804,2] -> logits for background/foreground per anchor.
-  private int idxLogits = -1;
-  private float[][][] outputLogits = null; // [1, anchors, num_classes]
-  private Object outputLogitsRaw = null;
-  private float outputLogitsScale = 0f;
-  private int outputLogitsZeroPoint = 0;
-  private Map<String, Integer> outputIndexMap = new HashMap<>();
+  // Output tensor roles and layout, shared by siblings.
+  private OutputSchema schema;
+  // Interpreter I/O, built once in create() and reused for every frame. Each output tensor is
+  // bound by index to a preallocated direct buffer.
+  private final Object[] inputArray = new Object[1];
+  private final Map<Integer, Object> outputMap = new HashMap<>();
+  private OutputBuffer[] outputBuffers = new OutputBuffer[0];
+  // Head-specific decoder, chosen once from the output tensor shapes.
+  private DetectionDecoder decoder;
+  // Reused by the List-based API and the batch path; the DetectionBuffer API writes to the caller's.
+  private final DetectionBuffer detections = new DetectionBuffer(NUM_DETECTIONS);
+  // Off by default; see getDiagnostics().
+  private DiagnosticsRecorder diagnostics;
 
   private TFLiteObjectDetectionAPIModel() {}
 
@@ -141,7 +141,7 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
    * @param inputSize The size of image input
    * @param isQuantized Boolean representing model is quantized or not
    */
-  public static Classifier create(
+  public static TFLiteObjectDetectionAPIModel create(
       final AssetManager assetManager,
       final String modelFilename,
       final String labelFilename,
@@ -150,218 +150,499 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
       final ProcessorType processType
       )
       throws IOException {
+    return create(
+        assetManager, modelFilename, labelFilename, inputSize, isQuantized, processType, null, null);
+  }
+
+  /**
+   * Like {@link #create(AssetManager, String, String, int, boolean, ProcessorType)}, caching the
+   * model's {@link OutputSchema} in the app's cache directory so later launches skip inspecting
+   * the output tensors. The cache is keyed on the model's size and the APK install, which are
+   * known without reading the model file.
+   */
+  public static TFLiteObjectDetectionAPIModel create(
+      final Context context,
+      final String modelFilename,
+      final String labelFilename,
+      final int inputSize,
+      final boolean isQuantized,
+      final ProcessorType processType)
+      throws IOException {
+    return create(
+        context.getAssets(),
+        modelFilename,
+        labelFilename,
+        inputSize,
+        isQuantized,
+        processType,
+        context.getCacheDir(),
+        installFingerprint(context));
+  }
+
+  private static TFLiteObjectDetectionAPIModel create(
+      final AssetManager assetManager,
+      final String modelFilename,
+      final String labelFilename,
+      final int inputSize,
+      final boolean isQuantized,
+      final ProcessorType processType,
+      final File schemaCacheDir,
+      final String installFingerprint)
+      throws IOException {
+    final long startNanos = System.nanoTime();
     final TFLiteObjectDetectionAPIModel d = new TFLiteObjectDetectionAPIModel();
 
     String actualFilename = labelFilename.split("file:///android_asset/")[1];
-    InputStream labelsInput = assetManager.open(actualFilename);
-    BufferedReader br = new BufferedReader(new InputStreamReader(labelsInput));
-    String line;
-    while ((line = br.readLine()) != null) {
-      LOGGER.w(line);
-      d.labels.add(line);
-    }
-    br.close();
+    d.labels = LabelTable.read(assetManager.open(actualFilename));
 
     d.inputSize = inputSize;
 
-  Interpreter.Options options = new Interpreter.Options();
-    try {
-      switch (processType) {
-        case CPU:   // cpu
-          Log.i("LUONG", "Đang dùng cpu");
-          break;
-        case NPU:   // npu
-          NnApiDelegate nnApiDelegate = new NnApiDelegate(); // Khởi tạo NNAPI delegate
-          options.addDelegate(nnApiDelegate);
-          Log.i("LUONG", "Đang dùng NNAPI, đăng kí delegate NNAPI delegate created: " + (nnApiDelegate != null));
-          break;
-        case GPU: // gpu
-          Log.i("LUONG", "Đang dùng gpu");
-          GpuDelegate delegate = new GpuDelegate();
-          options.addDelegate(delegate);
-          break;
-        default:
-          // Default to CPU (no delegate) to avoid unexpected NNAPI usage on devices
-          Log.i("LUONG", "ProcessorType default: using CPU (no delegate)");
-          break;
+    // Kept so the interpreter can be rebuilt at runtime for another processor or thread count.
+    d.modelFileBuffer = loadModelFile(assetManager, modelFilename);
+    d.install(d.openInterpreter(processType, d.numThreads));
+
+    d.isModelQuantized = isQuantized;
+    d.allocateInput();
+
+    // Output tensor roles, shapes and quantization come from the sidecar when it matches this
+    // model; otherwise they are inspected through the interpreter once and cached. Assets only
+    // change with the APK, so its install stamp plus the model's size identifies the model file
+    // without hashing it.
+    if (installFingerprint != null) {
+      d.modelFingerprint.set(
+          modelFilename + ":" + d.modelFileBuffer.capacity() + ":" + installFingerprint);
+    }
+    final File schemaFile =
+        schemaCacheDir != null
+            ? new File(schemaCacheDir, modelFilename.replace('/', '_') + ".schema")
+            : null;
+    final String fingerprint = schemaFile != null ? d.getModelFingerprint() : null;
+    d.schema = OutputSchema.load(schemaFile, fingerprint);
+    final boolean schemaCached = d.schema != null;
+    if (!schemaCached) {
+      d.schema = OutputSchema.inspect(d.tfLite, fingerprint);
+      if (schemaFile != null) {
+        d.schema.save(schemaFile);
       }
-      // Load model file into a buffer and keep it so we can recreate the interpreter at runtime
-      MappedByteBuffer modelBuffer = loadModelFile(assetManager, modelFilename);
-      d.modelFileBuffer = modelBuffer;
-      d.currentProcessorType = processType;
-      // Ensure thread count is set on options (Interpreter.setNumThreads removed in newer TF versions)
-      try {
-        options.setNumThreads(NUM_THREADS);
-      } catch (Exception ignored) {}
-      d.tfLite = new Interpreter(d.modelFileBuffer, options);
+    }
+    d.bindOutputs();
+    LOGGER.i("Using decoder " + d.decoder.getClass().getSimpleName());
+    LOGGER.i("Model classes %d, labels %d, label index = class id %+d",
+        d.decoder.getClassCount(), d.labels.size(), d.labels.getClassOffset());
+    LOGGER.i(
+        "Classifier created in %d ms (output schema %s)",
+        (System.nanoTime() - startNanos) / 1000000,
+        schemaCached ? "cached" : "inspected");
+    return d;
+  }
 
-    } catch (Exception e) {
-      throw new RuntimeException(e);
+  /**
+   * Creates another instance that shares this one's memory-mapped model file, labels and output
+   * layout, but owns its interpreter, thread count and I/O buffers, so the two can run
+   * concurrently on different threads.
+   */
+  TFLiteObjectDetectionAPIModel createSibling(final int numThreads) {
+    final TFLiteObjectDetectionAPIModel s = new TFLiteObjectDetectionAPIModel();
+    s.labels = labels;
+    s.classFilter = classFilter;
+    s.inputSize = inputSize;
+    s.isModelQuantized = isModelQuantized;
+    s.modelFileBuffer = modelFileBuffer;
+    s.modelFingerprint = modelFingerprint;
+    s.currentProcessorType = currentProcessorType;
+    s.schema = schema;
+    s.install(s.openInterpreter(currentProcessorType, numThreads));
+    s.allocateInput();
+    s.bindOutputs();
+    return s;
+  }
+
+  /**
+   * Creates another instance that runs the same model at a different square input size, with its
+   * own interpreter, I/O buffers and decoder. Output shapes are re-inspected after resizing, as
+   * anchor and grid counts usually scale with the input.
+   *
+   * @return null if the model or delegate cannot run at {@code size}.
+   */
+  TFLiteObjectDetectionAPIModel createResized(final int size) {
+    final TFLiteObjectDetectionAPIModel r = new TFLiteObjectDetectionAPIModel();
+    r.labels = labels;
+    r.classFilter = classFilter;
+    r.inputSize = size;
+    r.resizedInput = true;
+    r.isModelQuantized = isModelQuantized;
+    r.modelFileBuffer = modelFileBuffer;
+    r.modelFingerprint = modelFingerprint;
+    try {
+      r.install(r.openInterpreter(currentProcessorType, numThreads));
+      r.schema = OutputSchema.inspect(r.tfLite, schema.modelFingerprint);
+      r.allocateInput();
+      r.bindOutputs();
+    } catch (RuntimeException e) {
+      LOGGER.w("Model cannot run at input size " + size + ": " + e.getMessage());
+      r.close();
+      return null;
     }
+    return r;
+  }
 
-    d.isModelQuantized = isQuantized;
-    // Pre-allocate buffers.
-    int numBytesPerChannel;
-    if (isQuantized) {
-      numBytesPerChannel = 1; // Quantized
-    } else {
-      numBytesPerChannel = 4; // Floating point
+  /** Side of the square input image this instance expects. */
+  public int getInputSize() {
+    return inputSize;
+  }
+
+  /** An interpreter together with the delegate it owns. */
+  private static final class Standby {
+    final Interpreter interpreter;
+    final Delegate delegate;
+    final ProcessorType processorType;
+    final int numThreads;
+
+    Standby(
+        final Interpreter interpreter,
+        final Delegate delegate,
+        final ProcessorType processorType,
+        final int numThreads) {
+      this.interpreter = interpreter;
+      this.delegate = delegate;
+      this.processorType = processorType;
+      this.numThreads = numThreads;
     }
-    d.imgData = ByteBuffer.allocateDirect(1 * d.inputSize * d.inputSize * 3 * numBytesPerChannel);
-    d.imgData.order(ByteOrder.nativeOrder());
-    d.intValues = new int[d.inputSize * d.inputSize];
 
-  // set threads via options before creating interpreter
-  // (Interpreter.setNumThreads was removed in newer TF Lite versions)
-  // options will be created/configured above; ensure default thread count
-  // was already applied to options earlier.
-    // Discover output tensor names and map them to indices so callers can use
-    // named outputs (detection_scores, detection_boxes, detection_classes, num_detections).
-    try {
-      int outCount = d.tfLite.getOutputTensorCount();
-      for (int i = 0; i < outCount; i++) {
-        String outName = d.tfLite.getOutputTensor(i).name();
-        d.outputIndexMap.put(outName, i);
-        int[] shape = d.tfLite.getOutputTensor(i).shape();
-        DataType dt = d.tfLite.getOutputTensor(i).dataType();
-        Log.i("TFLiteModel", "Output tensor " + i + " name=" + outName + " shape=" + java.util.Arrays.toString(shape) + " dtype=" + dt);
-
-        // Shape-based mapping (more robust than relying on names/order)
-        if (shape != null) {
-          if (shape.length == 3 && shape[0] == 1 && shape[2] == 4) {
-            // [1, N, 4] => boxes
-            d.idxLocations = i;
-            continue;
-          }
-          // common SSD logits/prob output shape: [1, anchors, classes]
-          if (shape.length == 3 && shape[0] == 1 && shape[2] > 1) {
-            // treat as logits/probabilities per-anchor
-            d.idxLogits = i;
-            continue;
-          }
-          if (shape.length == 2 && shape[0] == 1) {
-            // [1, N] => either scores or classes. Many exported models use N != NUM_DETECTIONS
-            // (e.g. 25). Decide by name if possible, otherwise assign to the first unassigned
-            // (prefer scores then classes). Don't rely on dtype (UINT8 is a valid quantized scores tensor).
-            String nlow = outName.toLowerCase();
-            if (nlow.contains("score") || nlow.contains("scores") || nlow.contains("detection_scores")) {
-              d.idxScores = i;
-              continue;
-            } else if (nlow.contains("class") || nlow.contains("classes") || nlow.contains("detection_classes")) {
-              d.idxClasses = i;
-              continue;
-            }
-            // fallback: prefer assigning to scores if free, else classes
-            if (d.idxScores == -1) {
-              d.idxScores = i;
-              continue;
-            }
-            if (d.idxClasses == -1) {
-              d.idxClasses = i;
-              continue;
-            }
-          }
-          // num_detections often has shape [1] or [1,1]
-          if ((shape.length == 1 && shape[0] == 1) || (shape.length == 2 && shape[0] == 1 && shape[1] == 1)) {
-            d.idxNumDetections = i;
-            continue;
-          }
+    void close() {
+      closeQuietly(interpreter, delegate);
+    }
+  }
+
+  /** An interpreter resized to a batch of images, with its packed input and output buffers. */
+  private static final class BatchRun {
+    final Standby standby;
+    final ByteBuffer input;
+    // Parallel to outputBuffers.
+    final ByteBuffer[] outputs;
+    final Map<Integer, Object> outputMap;
+
+    BatchRun(
+        final Standby standby,
+        final ByteBuffer input,
+        final ByteBuffer[] outputs,
+        final Map<Integer, Object> outputMap) {
+      this.standby = standby;
+      this.input = input;
+      this.outputs = outputs;
+      this.outputMap = outputMap;
+    }
+  }
+
+  /** Creates the delegate for a processor type, or null for CPU or if the delegate fails. */
+  private static Delegate createDelegate(final ProcessorType processorType) {
+    switch (processorType) {
+      case NPU:
+        try {
+          return new NnApiDelegate();
+        } catch (Exception e) {
+          LOGGER.i("Failed to add NNAPI delegate: " + e.getMessage());
         }
-        // Name-based fallback
-        if (outName.toLowerCase().contains("detection_boxes")) d.idxLocations = i;
-        if (outName.toLowerCase().contains("detection_classes")) d.idxClasses = i;
-        if (outName.toLowerCase().contains("detection_scores")) d.idxScores = i;
-        if (outName.toLowerCase().contains("num_detections") || outName.toLowerCase().contains("num_detections")) d.idxNumDetections = i;
+        break;
+      case GPU:
+        try {
+          return new GpuDelegate();
+        } catch (Exception e) {
+          LOGGER.i("Failed to add GPU delegate: " + e.getMessage());
+        }
+        break;
+      case CPU:
+      default:
+        // no delegate
+        break;
+    }
+    return null;
+  }
+
+  /** Builds an interpreter on the shared model file, falling back to CPU if the delegate fails. */
+  private Standby openInterpreter(final ProcessorType processorType, final int numThreads) {
+    final Delegate delegate = createDelegate(processorType);
+    final Interpreter.Options options = new Interpreter.Options();
+    if (delegate != null) {
+      options.addDelegate(delegate);
+    }
+    try { options.setNumThreads(numThreads); } catch (Exception ignored) {}
+    Interpreter interpreter = null;
+    try {
+      interpreter = new Interpreter(modelFileBuffer, options);
+      if (resizedInput) {
+        interpreter.resizeInput(0, new int[] {1, inputSize, inputSize, 3});
+        interpreter.allocateTensors();
       }
+      return new Standby(
+          interpreter,
+          delegate,
+          delegate != null ? processorType : ProcessorType.CPU,
+          numThreads);
+    } catch (RuntimeException e) {
+      closeQuietly(interpreter, delegate);
+      throw e;
+    }
+  }
+
+  /** Makes {@code next} the running interpreter and releases the previous one and its delegate. */
+  private void install(final Standby next) {
+    final Interpreter oldInterpreter = tfLite;
+    final Delegate oldDelegate = delegate;
+    tfLite = next.interpreter;
+    delegate = next.delegate;
+    currentProcessorType = next.processorType;
+    numThreads = next.numThreads;
+    closeQuietly(oldInterpreter, oldDelegate);
+  }
+
+  // The interpreter must be closed before the delegate it was built with.
+  private static void closeQuietly(final Interpreter interpreter, final Delegate delegate) {
+    if (interpreter != null) {
+      try { interpreter.close(); } catch (Exception ignored) {}
+    }
+    if (delegate != null) {
+      try { delegate.close(); } catch (Exception ignored) {}
+    }
+  }
+
+  /** Fresh output buffers matching the bound outputs, for runs that must not touch live ones. */
+  private Map<Integer, Object> scratchOutputs() {
+    final Map<Integer, Object> outputs = new HashMap<>();
+    for (OutputBuffer out : outputBuffers) {
+      final ByteBuffer scratch = ByteBuffer.allocateDirect(out.buffer.capacity());
+      scratch.order(ByteOrder.nativeOrder());
+      outputs.put(out.index, scratch);
+    }
+    return outputs;
+  }
+
+  /** Runs one inference on zeroed scratch buffers so delegate setup happens before going live. */
+  private boolean warmUp(final Interpreter interpreter) {
+    try {
+      final ByteBuffer input = ByteBuffer.allocateDirect(imgData.capacity());
+      input.order(ByteOrder.nativeOrder());
+      interpreter.runForMultipleInputsOutputs(new Object[] {input}, scratchOutputs());
+      return true;
     } catch (Exception e) {
-      Log.i("TFLiteModel", "Could not inspect output tensors by name/shape: " + e.getMessage());
+      LOGGER.w("Warm-up inference failed: " + e.getMessage());
+      return false;
     }
-    // Allocate output buffers based on discovered output tensor shapes when possible.
+  }
+
+  /**
+   * Times a throwaway interpreter for one configuration on {@code input}, which must be laid out
+   * like {@link #getInputBuffer()}. After {@code warmupRuns} untimed runs, runs are timed until
+   * {@code maxRuns} samples or {@code budgetMs} elapse, whichever comes first.
+   *
+   * @return per-run latencies in milliseconds, or null if the delegate is unavailable or fails.
+   */
+  float[] benchmark(
+      final ProcessorType processorType,
+      final int threads,
+      final ByteBuffer input,
+      final int warmupRuns,
+      final int maxRuns,
+      final long budgetMs) {
+    final Standby candidate;
     try {
-      if (d.idxLocations != -1) {
-        int[] s = d.tfLite.getOutputTensor(d.idxLocations).shape();
-        // shape expected [batch, num, 4]
-        DataType dt = d.tfLite.getOutputTensor(d.idxLocations).dataType();
-        if (dt == DataType.UINT8) {
-          // allocate raw byte buffer matching tensor shape
-          d.outputLocationsRaw = new byte[s[0]][s[1]][s[2]];
-          try {
-            d.outputLocationsScale = d.tfLite.getOutputTensor(d.idxLocations).quantizationParams().getScale();
-            d.outputLocationsZeroPoint = d.tfLite.getOutputTensor(d.idxLocations).quantizationParams().getZeroPoint();
-          } catch (Exception ignored) {}
-        } else {
-          d.outputLocations = new float[s[0]][s[1]][s[2]];
-        }
-      }
-      if (d.idxLogits != -1) {
-        int[] s = d.tfLite.getOutputTensor(d.idxLogits).shape();
-        DataType dt = d.tfLite.getOutputTensor(d.idxLogits).dataType();
-        if (dt == DataType.UINT8) {
-          d.outputLogitsRaw = new byte[s[0]][s[1]][s[2]];
-          try {
-            d.outputLogitsScale = d.tfLite.getOutputTensor(d.idxLogits).quantizationParams().getScale();
-            d.outputLogitsZeroPoint = d.tfLite.getOutputTensor(d.idxLogits).quantizationParams().getZeroPoint();
-          } catch (Exception ignored) {}
-        } else {
-          d.outputLogits = new float[s[0]][s[1]][s[2]];
-        }
+      candidate = openInterpreter(processorType, threads);
+    } catch (Exception e) {
+      LOGGER.w("Benchmark: cannot build " + processorType + " interpreter: " + e.getMessage());
+      return null;
+    }
+    try {
+      if (candidate.processorType != processorType) {
+        // The delegate did not initialise and this would only measure the CPU again.
+        return null;
       }
-      if (d.idxScores != -1) {
-        int[] s = d.tfLite.getOutputTensor(d.idxScores).shape();
-        DataType dt = d.tfLite.getOutputTensor(d.idxScores).dataType();
-        if (dt == DataType.UINT8) {
-          d.outputScoresRaw = new byte[s[0]][s[1]];
-          try {
-            d.outputScoresScale = d.tfLite.getOutputTensor(d.idxScores).quantizationParams().getScale();
-            d.outputScoresZeroPoint = d.tfLite.getOutputTensor(d.idxScores).quantizationParams().getZeroPoint();
-          } catch (Exception ignored) {}
-        } else {
-          d.outputScores = new float[s[0]][s[1]];
-        }
+      final Object[] inputs = {input};
+      final Map<Integer, Object> outputs = scratchOutputs();
+      for (int i = 0; i < warmupRuns; ++i) {
+        runOnce(candidate.interpreter, inputs, outputs);
       }
-      if (d.idxClasses != -1) {
-        int[] s = d.tfLite.getOutputTensor(d.idxClasses).shape();
-        DataType dt = d.tfLite.getOutputTensor(d.idxClasses).dataType();
-        if (dt == DataType.UINT8) {
-          d.outputClassesRaw = new byte[s[0]][s[1]];
-          try {
-            d.outputClassesScale = d.tfLite.getOutputTensor(d.idxClasses).quantizationParams().getScale();
-            d.outputClassesZeroPoint = d.tfLite.getOutputTensor(d.idxClasses).quantizationParams().getZeroPoint();
-          } catch (Exception ignored) {}
-        } else {
-          d.outputClasses = new float[s[0]][s[1]];
-        }
+      final float[] samples = new float[maxRuns];
+      final long deadline = System.nanoTime() + budgetMs * 1000000L;
+      int count = 0;
+      while (count < maxRuns && (count == 0 || System.nanoTime() < deadline)) {
+        final long start = System.nanoTime();
+        runOnce(candidate.interpreter, inputs, outputs);
+        samples[count++] = (System.nanoTime() - start) / 1e6f;
       }
-      if (d.idxNumDetections != -1) {
-        int[] s = d.tfLite.getOutputTensor(d.idxNumDetections).shape();
-        DataType dt = d.tfLite.getOutputTensor(d.idxNumDetections).dataType();
-        if (dt == DataType.UINT8) {
-          // numDetections often shape [1] or [1,1]
-          if (s.length == 1) d.numDetectionsRaw = new byte[s[0]];
-          else if (s.length == 2) d.numDetectionsRaw = new byte[s[0]][s[1]];
-          try {
-            d.numDetectionsScale = d.tfLite.getOutputTensor(d.idxNumDetections).quantizationParams().getScale();
-            d.numDetectionsZeroPoint = d.tfLite.getOutputTensor(d.idxNumDetections).quantizationParams().getZeroPoint();
-          } catch (Exception ignored) {}
-        } else {
-          d.numDetections = new float[s[0]];
+      return Arrays.copyOf(samples, count);
+    } catch (Exception e) {
+      LOGGER.w("Benchmark: " + processorType + " x" + threads + " failed: " + e.getMessage());
+      return null;
+    } finally {
+      candidate.close();
+    }
+  }
+
+  private static void runOnce(
+      final Interpreter interpreter, final Object[] inputs, final Map<Integer, Object> outputs) {
+    ((ByteBuffer) inputs[0]).rewind();
+    for (Object out : outputs.values()) {
+      ((ByteBuffer) out).rewind();
+    }
+    interpreter.runForMultipleInputsOutputs(inputs, outputs);
+  }
+
+  /**
+   * Identifies the model file, shared with siblings. Built from the model's size and the APK
+   * install when created from a {@link Context}; otherwise the hex SHA-1 of the file, computed on
+   * first use.
+   */
+  public String getModelFingerprint() {
+    String hash = modelFingerprint.get();
+    if (hash == null) {
+      try {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        digest.update(modelFileBuffer.duplicate());
+        final StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+          sb.append(String.format("%02x", b & 0xFF));
         }
+        hash = sb.toString();
+      } catch (NoSuchAlgorithmException e) {
+        // Fall back to something that still changes with the model.
+        hash = "size" + modelFileBuffer.capacity();
       }
+      modelFingerprint.compareAndSet(null, hash);
+    }
+    return modelFingerprint.get();
+  }
+
+  /** Version code and last update time of the installed APK, or null if unavailable. */
+  private static String installFingerprint(final Context context) {
+    try {
+      final PackageInfo info =
+          context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+      final long versionCode =
+          Build.VERSION.SDK_INT >= Build.VERSION_CODES.P
+              ? info.getLongVersionCode()
+              : info.versionCode;
+      return versionCode + ":" + info.lastUpdateTime;
+    } catch (PackageManager.NameNotFoundException e) {
+      LOGGER.w("Cannot read package info, hashing the model instead: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Builds and warms up an interpreter for {@code processorType} on the calling thread, without
+   * touching the one in use. The next inference swaps it in and closes the old interpreter and
+   * its delegate. Labels, output buffers and the decoder are reused as they are.
+   *
+   * @return false if the interpreter could not be built or failed its warm-up run.
+   */
+  public boolean prepareProcessorType(final ProcessorType processorType) {
+    final Standby next;
+    try {
+      next = openInterpreter(processorType, numThreads);
     } catch (Exception e) {
-      // Fallback to conservative defaults if shape inspection fails
-      d.outputLocations = new float[1][NUM_DETECTIONS][4];
-      d.outputClasses = new float[1][NUM_DETECTIONS];
-      d.outputScores = new float[1][NUM_DETECTIONS];
-      d.numDetections = new float[1];
+      LOGGER.w("Failed to build interpreter for " + processorType + ": " + e.getMessage());
+      return false;
     }
-    return d;
+    if (!warmUp(next.interpreter)) {
+      next.close();
+      return false;
+    }
+    final Standby replaced = standby.getAndSet(next);
+    if (replaced != null) {
+      replaced.close();
+    }
+    return true;
+  }
+
+  /** Drops a prepared interpreter that has not been swapped in yet. */
+  public void cancelStandby() {
+    final Standby replaced = standby.getAndSet(null);
+    if (replaced != null) {
+      replaced.close();
+    }
+  }
+
+  /** Allocates the input buffers for this instance's interpreter. */
+  private void allocateInput() {
+    // Pre-allocate buffers.
+    int numBytesPerChannel;
+    if (isModelQuantized) {
+      numBytesPerChannel = 1; // Quantized
+    } else {
+      numBytesPerChannel = 4; // Floating point
+    }
+    imgData = ByteBuffer.allocateDirect(1 * inputSize * inputSize * 3 * numBytesPerChannel);
+    imgData.order(ByteOrder.nativeOrder());
+    intValues = new int[inputSize * inputSize];
+  }
+
+  /**
+   * Binds output buffers for this instance's interpreter and picks the decoder, using the output
+   * schema resolved in create().
+   */
+  private void bindOutputs() {
+    // Bind a preallocated direct buffer to every discovered output tensor.
+    final OutputBuffer locations = bindOutput(schema.locations);
+    final OutputBuffer classes = bindOutput(schema.classes);
+    final OutputBuffer scores = bindOutput(schema.scores);
+    final OutputBuffer numDetections = bindOutput(schema.numDetections);
+    final OutputBuffer logits = bindOutput(schema.logits);
+    inputArray[0] = imgData;
+    final List<OutputBuffer> bound = new ArrayList<>();
+    for (OutputBuffer out : new OutputBuffer[] {locations, classes, scores, numDetections, logits}) {
+      if (out != null) {
+        outputMap.put(out.index, out.buffer);
+        bound.add(out);
+      }
+    }
+    outputBuffers = bound.toArray(new OutputBuffer[0]);
+    diagnostics = new DiagnosticsRecorder(outputBuffers);
+
+    // Pick the decoder for this head once, so the per-frame path is a single call.
+    if (logits != null && locations != null) {
+      decoder = new SsdLogitsDecoder(locations, logits, inputSize, NUM_DETECTIONS);
+    } else if (logits != null && YoloGridDecoder.matches(logits.shape)) {
+      decoder = new YoloGridDecoder(logits, inputSize, NUM_DETECTIONS);
+    } else if (locations != null && classes != null && scores != null) {
+      decoder =
+          new PostprocessedSsdDecoder(
+              locations, classes, scores, numDetections, inputSize, NUM_DETECTIONS);
+    } else {
+      throw new IllegalStateException(
+          "Unsupported detection head, output tensors: " + schema);
+    }
+    // Line class ids up with the labels once, instead of guessing the base per detection.
+    labels = labels.calibrate(decoder.getClassCount());
+    decoder.setClassMap(labels.classMap(decoder.getClassCount(), classFilter));
+  }
+
+  /** Allocates a direct buffer matching the output tensor at {@code index}, or null if absent. */
+  private OutputBuffer bindOutput(final int index) {
+    if (index < 0 || index >= schema.size()) {
+      return null;
+    }
+    return new OutputBuffer(schema, index);
   }
 
   @Override
   public List<Recognition> recognizeImage(final Bitmap bitmap) {
+    recognizeImage(bitmap, detections);
+    return detections.toRecognitions(labels);
+  }
+
+  @Override
+  public void recognizeImage(final Bitmap bitmap, final DetectionBuffer out) {
     // Log this method so that it can be analyzed with systrace.
     Trace.beginSection("recognizeImage");
 
+    preprocess(bitmap);
+
+    runInference(out, decoder.getScoreThreshold());
+    Trace.endSection(); // "recognizeImage"
+  }
+
+  /** Writes {@code bitmap} into imgData in the model's input format. */
+  private void preprocess(final Bitmap bitmap) {
     Trace.beginSection("preprocessBitmap");
     // Preprocess the image data from 0-255 int to normalized float based
     // on the provided parameters.
@@ -384,486 +665,254 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
       }
     }
     Trace.endSection(); // preprocessBitmap
+  }
 
-  // Copy the input data into TensorFlow.
-  Trace.beginSection("feed");
-  // Allocate conservative defaults only if neither raw nor float buffers were set.
-  if (outputLocations == null && outputLocationsRaw == null) outputLocations = new float[1][NUM_DETECTIONS][4];
-  if (outputClasses == null && outputClassesRaw == null) outputClasses = new float[1][NUM_DETECTIONS];
-  if (outputScores == null && outputScoresRaw == null) outputScores = new float[1][NUM_DETECTIONS];
-  if (numDetections == null && numDetectionsRaw == null) numDetections = new float[1];
-
-    Object[] inputArray = {imgData};
-    Map<Integer, Object> outputMap = new HashMap<>();
+  @Override
+  public List<List<Recognition>> recognizeBatch(final List<Bitmap> bitmaps) {
+    Trace.beginSection("recognizeBatch");
+    final List<List<Recognition>> results = new ArrayList<>(bitmaps.size());
+    restoreMaxBatch();
+    int next = 0;
+    while (next < bitmaps.size()) {
+      final int size = batchSizeFor(bitmaps.size() - next);
+      if (size > 1 && runBatch(bitmaps.subList(next, next + size), results)) {
+        next += size;
+      } else {
+        results.add(recognizeImage(bitmaps.get(next++)));
+      }
+    }
+    Trace.endSection();
+    return results;
+  }
 
-    // Use discovered indices when available, otherwise fall back to typical ordering.
-    // Put the appropriate buffer type (raw byte buffer for UINT8, float buffer otherwise)
-    if (idxLocations != -1) {
-      outputMap.put(idxLocations, outputLocationsRaw != null ? outputLocationsRaw : outputLocations);
+  /**
+   * Batch size for the next {@code remaining} images of a call: the largest power of two that fits
+   * and that the model has not rejected. Powers of two keep the number of resized interpreters
+   * small across calls with different list lengths.
+   */
+  private int batchSizeFor(final int remaining) {
+    final int limit = Math.min(remaining, maxBatch);
+    int size = 1;
+    while (size * 2 <= limit) {
+      size *= 2;
     }
-    if (idxClasses != -1) {
-      outputMap.put(idxClasses, outputClassesRaw != null ? outputClassesRaw : outputClasses);
+    return size;
+  }
+
+  /**
+   * Lets recognizeBatch() try MAX_BATCH again once the processor or thread count a smaller limit
+   * was set under has changed, since a delegate that rejected a size says nothing about another,
+   * or after BATCH_RETRY_CALLS calls, in case the failure was transient.
+   */
+  private void restoreMaxBatch() {
+    if (maxBatch == MAX_BATCH) {
+      return;
     }
-    if (idxScores != -1) {
-      outputMap.put(idxScores, outputScoresRaw != null ? outputScoresRaw : outputScores);
+    if (maxBatchProcessorType != currentProcessorType
+        || maxBatchThreads != numThreads
+        || ++callsSinceBatchFailure >= BATCH_RETRY_CALLS) {
+      maxBatch = MAX_BATCH;
     }
-    if (idxNumDetections != -1) {
-      outputMap.put(idxNumDetections, numDetectionsRaw != null ? numDetectionsRaw : numDetections);
+  }
+
+  /** Keeps recognizeBatch() below {@code size} until restoreMaxBatch() raises the limit. */
+  private void lowerMaxBatch(final int size) {
+    maxBatch = size / 2;
+    maxBatchProcessorType = currentProcessorType;
+    maxBatchThreads = numThreads;
+    callsSinceBatchFailure = 0;
+  }
+
+  /**
+   * Runs {@code batch} through one invocation of an interpreter resized to its size and appends
+   * each image's recognitions to {@code results}.
+   *
+   * @return false, with nothing appended, if the model cannot run at this batch size.
+   */
+  private boolean runBatch(final List<Bitmap> batch, final List<List<Recognition>> results) {
+    swapInStandby();
+    final int size = batch.size();
+    final int slot = Integer.numberOfTrailingZeros(size);
+    BatchRun run = batchRuns[slot];
+    if (run == null
+        || run.standby.processorType != currentProcessorType
+        || run.standby.numThreads != numThreads) {
+      closeBatchRun(slot);
+      run = openBatchRun(size);
+      if (run == null) {
+        lowerMaxBatch(size);
+        return false;
+      }
+      batchRuns[slot] = run;
     }
 
-    // Fallback: if none of the named indices were detected, assume stable ordering
-    if (outputMap.isEmpty()) {
-      outputMap.put(0, outputLocations);
-      outputMap.put(1, outputClasses);
-      outputMap.put(2, outputScores);
-      outputMap.put(3, numDetections);
+    Trace.beginSection("packBatch");
+    run.input.clear();
+    for (final Bitmap bitmap : batch) {
+      preprocess(bitmap);
+      imgData.rewind();
+      run.input.put(imgData);
+    }
+    run.input.rewind();
+    for (final ByteBuffer out : run.outputs) {
+      out.clear();
     }
     Trace.endSection();
 
-    // Run the inference call.
     Trace.beginSection("run");
-    // Ensure logits buffer is included in output map if present so interpreter will fill it
-    if (idxLogits != -1) {
-      outputMap.put(idxLogits, outputLogitsRaw != null ? outputLogitsRaw : outputLogits);
-    }
-    tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
-    // Diagnostic: log output tensor dtypes and quant params, and a small raw-byte sample
     try {
-      LOGGER.i("POST-RUN diagnostics:");
-      for (Map.Entry<String, Integer> e : outputIndexMap.entrySet()) {
-        String name = e.getKey();
-        int idx = e.getValue();
-        try {
-          DataType dt = tfLite.getOutputTensor(idx).dataType();
-          float qs = 0f; int qz = 0;
-          try {
-            qs = tfLite.getOutputTensor(idx).quantizationParams().getScale();
-            qz = tfLite.getOutputTensor(idx).quantizationParams().getZeroPoint();
-          } catch (Exception ignored) {}
-          LOGGER.i("OUT postrun name=" + name + " idx=" + idx + " dtype=" + dt + " scale=" + qs + " zeroPoint=" + qz);
-        } catch (Exception ex) {
-          LOGGER.i("OUT postrun name=" + name + " idx=" + idx + " error=" + ex.getMessage());
-        }
-      }
-      // If raw buffers were allocated, print a small raw sample before dequant to ensure interpreter wrote bytes
-      if (outputScoresRaw != null) {
-        try {
-          byte[][] raw = (byte[][]) outputScoresRaw;
-          int n = raw[0].length;
-          int sample = Math.min(8, n);
-          StringBuilder sb = new StringBuilder();
-          sb.append("RAW_SCORE_BYTES[0][0.." + sample + "]=\n[");
-          for (int i = 0; i < sample; ++i) { sb.append(raw[0][i] & 0xFF); if (i < sample-1) sb.append(','); }
-          sb.append(']');
-          LOGGER.i(sb.toString());
-        } catch (ClassCastException ignored) { LOGGER.i("RAW_SCORE_BYTES: cast error"); }
-      }
-      if (outputClassesRaw != null) {
-        try {
-          byte[][] raw = (byte[][]) outputClassesRaw;
-          int n = raw[0].length;
-          int sample = Math.min(8, n);
-          StringBuilder sb = new StringBuilder();
-          sb.append("RAW_CLASS_BYTES[0][0.." + sample + "]=\n[");
-          for (int i = 0; i < sample; ++i) { sb.append(raw[0][i] & 0xFF); if (i < sample-1) sb.append(','); }
-          sb.append(']');
-          LOGGER.i(sb.toString());
-        } catch (ClassCastException ignored) { LOGGER.i("RAW_CLASS_BYTES: cast error"); }
-      }
-      if (outputLocationsRaw != null) {
-        try {
-          byte[][][] raw = (byte[][][]) outputLocationsRaw;
-          if (raw[0].length > 0 && raw[0][0].length >= 4) {
-            StringBuilder sb = new StringBuilder();
-            sb.append("RAW_BOX_BYTES[0][0][0..3]=[");
-            for (int i = 0; i < 4; ++i) { sb.append(raw[0][0][i] & 0xFF); if (i < 3) sb.append(','); }
-            sb.append(']');
-            LOGGER.i(sb.toString());
-          }
-        } catch (ClassCastException ignored) { LOGGER.i("RAW_BOX_BYTES: cast error"); }
-      }
-      if (numDetectionsRaw != null) {
-        try {
-          if (numDetectionsRaw instanceof byte[]) {
-            byte[] raw = (byte[]) numDetectionsRaw;
-            LOGGER.i("RAW_NUMDETS_BYTE[0]=" + (raw.length>0 ? (raw[0] & 0xFF) : -1));
-          } else if (numDetectionsRaw instanceof byte[][]) {
-            byte[][] raw = (byte[][]) numDetectionsRaw;
-            LOGGER.i("RAW_NUMDETS_BYTE[0][0]=" + (raw.length>0 && raw[0].length>0 ? (raw[0][0] & 0xFF) : -1));
-          }
-        } catch (Exception ignored) { LOGGER.i("RAW_NUMDETS: read error"); }
+      run.standby.interpreter.runForMultipleInputsOutputs(new Object[] {run.input}, run.outputMap);
+    } catch (RuntimeException e) {
+      LOGGER.w("Batched inference failed at batch size " + size + ": " + e.getMessage());
+      closeBatchRun(slot);
+      lowerMaxBatch(size);
+      return false;
+    } finally {
+      Trace.endSection();
+    }
+
+    // Copy each image's slice into the single-image output buffers and decode as usual.
+    Trace.beginSection("demux");
+    for (int i = 0; i < size; ++i) {
+      for (int k = 0; k < outputBuffers.length; ++k) {
+        final ByteBuffer src = run.outputs[k];
+        final ByteBuffer dst = outputBuffers[k].buffer;
+        final int bytes = dst.capacity();
+        src.limit((i + 1) * bytes).position(i * bytes);
+        dst.clear();
+        dst.put(src);
+        dst.rewind();
+        src.clear();
       }
-    } catch (Exception ignored) {}
-    // Diagnostic: always log whether raw buffers exist and current quant params
-    try {
-      LOGGER.i("DIAG_FLAGS outputScoresRawNull=" + (outputScoresRaw == null) + " outputClassesRawNull=" + (outputClassesRaw == null) + " outputLocationsRawNull=" + (outputLocationsRaw == null) + " numDetectionsRawNull=" + (numDetectionsRaw == null));
-      LOGGER.i("DIAG_QP scores_scale=" + outputScoresScale + " scores_zp=" + outputScoresZeroPoint + " classes_scale=" + outputClassesScale + " classes_zp=" + outputClassesZeroPoint);
-      if (outputScores != null && outputScores.length > 0) {
-        int show = Math.min(8, outputScores[0].length);
-        LOGGER.i("DIAG_SCOREFLOAT sample=" + Arrays.toString(Arrays.copyOfRange(outputScores[0], 0, show)));
-      } else {
-        LOGGER.i("DIAG_SCOREFLOAT sample=null");
+      decoder.decode(detections);
+      detections.setInputSize(inputSize);
+      if (diagnostics.isEnabled()) {
+        diagnostics.onFrame(detections);
       }
-    } catch (Exception ignored) {}
+      results.add(detections.toRecognitions(labels));
+    }
+    Trace.endSection();
+    return true;
+  }
 
-    // If any outputs were quantized (UINT8) we need to dequantize into float arrays
+  /**
+   * Builds an interpreter with the input resized to {@code size} images, or returns null if the
+   * model or delegate does not support it, or its outputs do not scale with the batch.
+   */
+  private BatchRun openBatchRun(final int size) {
+    final Standby standby;
     try {
-      // dequantize locations
-      if (outputLocationsRaw != null) {
-        try {
-          byte[][][] raw = (byte[][][]) outputLocationsRaw;
-          int b0 = raw.length;
-          int a = raw[0].length;
-          int c = raw[0][0].length;
-          outputLocations = new float[b0][a][c];
-          for (int bi = 0; bi < b0; ++bi) {
-            for (int ai = 0; ai < a; ++ai) {
-              for (int ci = 0; ci < c; ++ci) {
-                int unsigned = raw[bi][ai][ci] & 0xFF;
-                outputLocations[bi][ai][ci] = (unsigned - outputLocationsZeroPoint) * outputLocationsScale;
-              }
-            }
-          }
-        } catch (ClassCastException ignored) {}
-      }
-      // dequantize logits
-      if (outputLogitsRaw != null) {
-        try {
-          byte[][][] raw = (byte[][][]) outputLogitsRaw;
-          int b0 = raw.length;
-          int anchors = raw[0].length;
-          int classes = raw[0][0].length;
-          outputLogits = new float[b0][anchors][classes];
-          for (int bi = 0; bi < b0; ++bi) {
-            for (int ai = 0; ai < anchors; ++ai) {
-              for (int ci = 0; ci < classes; ++ci) {
-                int unsigned = raw[bi][ai][ci] & 0xFF;
-                outputLogits[bi][ai][ci] = (unsigned - outputLogitsZeroPoint) * outputLogitsScale;
-              }
-            }
-          }
-        } catch (ClassCastException ignored) {}
-      }
-      // dequantize scores
-      if (outputScoresRaw != null) {
-        try {
-          byte[][] raw = (byte[][]) outputScoresRaw;
-          int b0 = raw.length;
-          int n = raw[0].length;
-          outputScores = new float[b0][n];
-          for (int bi = 0; bi < b0; ++bi) {
-            for (int i = 0; i < n; ++i) {
-              int unsigned = raw[bi][i] & 0xFF;
-              outputScores[bi][i] = (unsigned - outputScoresZeroPoint) * outputScoresScale;
-            }
-          }
-          // Diagnostic logging: quantization params and simple statistics for scores
-          try {
-            // Log quantization params so we can verify dequant formula
-            LOGGER.i("SCORES_QUANT scale=" + outputScoresScale + " zeroPoint=" + outputScoresZeroPoint);
-            // Log a small raw sample (first 8 anchors)
-            int sampleLen = Math.min(8, n);
-            StringBuilder rawSampleSb = new StringBuilder();
-            rawSampleSb.append("raw[0][0.." + sampleLen + "]=\n[");
-            for (int si = 0; si < sampleLen; ++si) {
-              rawSampleSb.append((raw[0][si] & 0xFF));
-              if (si < sampleLen - 1) rawSampleSb.append(',');
-            }
-            rawSampleSb.append(']');
-            LOGGER.i(rawSampleSb.toString());
-
-            // Compute min/max/mean of dequantized scores for the first batch
-            float min = Float.POSITIVE_INFINITY;
-            float max = Float.NEGATIVE_INFINITY;
-            double sum = 0.0;
-            for (int i = 0; i < n; ++i) {
-              float v = outputScores[0][i];
-              if (v < min) min = v;
-              if (v > max) max = v;
-              sum += v;
-            }
-            double mean = n > 0 ? sum / n : 0.0;
-            LOGGER.i("SCORES_STATS min=" + min + " max=" + max + " mean=" + mean + " count=" + n);
-          } catch (Exception ex) {
-            LOGGER.i("SCORES_STATS error: " + ex.getMessage());
-          }
-        } catch (ClassCastException ignored) {}
-      }
-      // dequantize classes
-      if (outputClassesRaw != null) {
-        try {
-          byte[][] raw = (byte[][]) outputClassesRaw;
-          int b0 = raw.length;
-          int n = raw[0].length;
-          outputClasses = new float[b0][n];
-          for (int bi = 0; bi < b0; ++bi) {
-            for (int i = 0; i < n; ++i) {
-              int unsigned = raw[bi][i] & 0xFF;
-              outputClasses[bi][i] = (unsigned - outputClassesZeroPoint) * outputClassesScale;
-            }
-          }
-        } catch (ClassCastException ignored) {}
-      }
-      // dequantize numDetections
-      if (numDetectionsRaw != null) {
-        try {
-          if (numDetectionsRaw instanceof byte[]) {
-            byte[] raw = (byte[]) numDetectionsRaw;
-            numDetections = new float[raw.length];
-            for (int i = 0; i < raw.length; ++i) {
-              int unsigned = raw[i] & 0xFF;
-              numDetections[i] = (unsigned - numDetectionsZeroPoint) * numDetectionsScale;
-            }
-          } else if (numDetectionsRaw instanceof byte[][]) {
-            byte[][] raw = (byte[][]) numDetectionsRaw;
-            int b0 = raw.length;
-            numDetections = new float[b0];
-            for (int bi = 0; bi < b0; ++bi) {
-              int unsigned = raw[bi][0] & 0xFF;
-              numDetections[bi] = (unsigned - numDetectionsZeroPoint) * numDetectionsScale;
-            }
-          }
-        } catch (ClassCastException ignored) {}
-      }
-    } catch (Exception ignored) {}
-  // Log outputs for debugging to verify interpreter populated all expected tensors.
-  LOGGER.i("Model numDetections (raw): " + (numDetections != null && numDetections.length > 0 ? numDetections[0] : -1));
-  LOGGER.i("Model first output score: " + (outputScores != null && outputScores.length > 0 && outputScores[0].length > 0 ? outputScores[0][0] : -1f));
-
-  // Additional debug: print a map of all discovered output tensors and a small sample of their values.
-  try {
-    for (Map.Entry<String, Integer> e : outputIndexMap.entrySet()) {
-      String name = e.getKey();
-      int idx = e.getValue();
-      int[] shape = tfLite.getOutputTensor(idx).shape();
-      String sample = "";
-      // Print a few representative values depending on shape/known names
-      if (name.toLowerCase().contains("score") && outputScores != null) {
-        sample = Arrays.toString(java.util.Arrays.copyOfRange(outputScores[0], 0, Math.min(8, outputScores[0].length)));
-      } else if (name.toLowerCase().contains("class") && outputClasses != null) {
-        sample = Arrays.toString(java.util.Arrays.copyOfRange(outputClasses[0], 0, Math.min(8, outputClasses[0].length)));
-      } else if (name.toLowerCase().contains("box") && outputLocations != null) {
-        // flatten and show first box
-        if (outputLocations[0].length > 0) {
-          sample = Arrays.toString(outputLocations[0][0]);
+      standby = openInterpreter(currentProcessorType, numThreads);
+    } catch (Exception e) {
+      LOGGER.w("Failed to build batch interpreter: " + e.getMessage());
+      return null;
+    }
+    try {
+      standby.interpreter.resizeInput(0, new int[] {size, inputSize, inputSize, 3});
+      standby.interpreter.allocateTensors();
+      final ByteBuffer[] outputs = new ByteBuffer[outputBuffers.length];
+      final Map<Integer, Object> outputMap = new HashMap<>();
+      for (int k = 0; k < outputBuffers.length; ++k) {
+        final OutputBuffer single = outputBuffers[k];
+        final Tensor tensor = standby.interpreter.getOutputTensor(single.index);
+        if (tensor.numBytes() != size * single.buffer.capacity()) {
+          throw new IllegalStateException(
+              "output " + single.index + " has shape " + Arrays.toString(tensor.shape()));
         }
-      } else if (name.toLowerCase().contains("num") && numDetections != null) {
-        sample = Arrays.toString(numDetections);
+        outputs[k] = ByteBuffer.allocateDirect(tensor.numBytes());
+        outputs[k].order(ByteOrder.nativeOrder());
+        outputMap.put(single.index, outputs[k]);
       }
-      LOGGER.i("Output tensor: " + name + " idx=" + idx + " shape=" + java.util.Arrays.toString(shape) + " sample=" + sample);
+      final ByteBuffer input = ByteBuffer.allocateDirect(size * imgData.capacity());
+      input.order(ByteOrder.nativeOrder());
+      LOGGER.i("Batched inference at batch size %d", size);
+      return new BatchRun(standby, input, outputs, outputMap);
+    } catch (Exception e) {
+      LOGGER.i("Model does not support batch size " + size + ": " + e.getMessage());
+      standby.close();
+      return null;
     }
-  } catch (Exception ignored) {}
-    Trace.endSection();
+  }
 
-    // Full dump of output tensors to logcat (verbose). Controlled by FULL_DUMP_OUTPUTS.
-    if (FULL_DUMP_OUTPUTS) {
-      try {
-        int fullCount = 0;
-        if (numDetections != null && numDetections.length > 0) {
-          fullCount = Math.min(NUM_DETECTIONS, (int) numDetections[0]);
-        }
-        LOGGER.i("FULL_DUMP numDetections(raw)=" + (numDetections != null && numDetections.length > 0 ? numDetections[0] : -1) + " count=" + fullCount);
+  private void closeBatchRun(final int slot) {
+    if (batchRuns[slot] != null) {
+      batchRuns[slot].standby.close();
+      batchRuns[slot] = null;
+    }
+  }
 
-        if (outputScores != null && outputScores.length > 0) {
-          int len = Math.min(fullCount, outputScores[0].length);
-          LOGGER.i("FULL_DUMP scores[0.." + len + "]=" + Arrays.toString(Arrays.copyOfRange(outputScores[0], 0, len)));
-        }
-        if (outputClasses != null && outputClasses.length > 0) {
-          int len = Math.min(fullCount, outputClasses[0].length);
-          LOGGER.i("FULL_DUMP classes[0.." + len + "]=" + Arrays.toString(Arrays.copyOfRange(outputClasses[0], 0, len)));
-        }
-        if (outputLocations != null && outputLocations.length > 0) {
-          int boxCount = Math.min(fullCount, outputLocations[0].length);
-          for (int b = 0; b < boxCount; ++b) {
-            LOGGER.i("FULL_DUMP box[" + b + "]=" + Arrays.toString(outputLocations[0][b]));
-          }
-        }
-      } catch (Exception ex) {
-        LOGGER.i("FULL_DUMP error: " + ex.getMessage());
-      }
+  @Override
+  public ByteBuffer getInputBuffer() {
+    return imgData;
+  }
+
+  @Override
+  public List<Recognition> recognizeInputBuffer() {
+    recognizeInputBuffer(detections);
+    return detections.toRecognitions(labels);
+  }
+
+  @Override
+  public void recognizeInputBuffer(final DetectionBuffer out) {
+    recognizeInputBuffer(out, decoder.getScoreThreshold());
+  }
+
+  @Override
+  public void recognizeInputBuffer(final DetectionBuffer out, final float confidence) {
+    Trace.beginSection("recognizeInputBuffer");
+    runInference(out, confidence);
+    Trace.endSection();
+  }
+
+  /**
+   * Runs the interpreter on the current contents of imgData and decodes the outputs into out,
+   * keeping detections scoring at least {@code confidence}.
+   */
+  private void runInference(final DetectionBuffer out, final float confidence) {
+    swapInStandby();
+    imgData.rewind();
+    // Copy the input data into TensorFlow.
+    Trace.beginSection("feed");
+    // The interpreter writes outputs from the current buffer position.
+    for (OutputBuffer output : outputBuffers) {
+      output.rewind();
     }
+    Trace.endSection();
 
-    // If the model produced raw logits per-anchor (e.g. [1, anchors, classes]),
-    // compute per-anchor scores (softmax) and classes, then perform top-k + NMS
-    // to produce final detections.
-    int[] selectedIndices = null;
-    if (outputLogits != null) {
-      // Dump a small sample of raw logits to help debug unexpected uniform scores.
-      if (FULL_DUMP_OUTPUTS) {
-        try {
-          int sampleAnchors = Math.min(5, outputLogits[0].length);
-          StringBuilder sb = new StringBuilder();
-          for (int a = 0; a < sampleAnchors; ++a) {
-            sb.append("anchor").append(a).append(":");
-            for (int c = 0; c < outputLogits[0][a].length; ++c) {
-              sb.append(outputLogits[0][a][c]).append(",");
-            }
-            sb.append(";");
-          }
-          LOGGER.i("RAW_LOGITS sample=" + sb.toString());
-          try {
-            if (idxLogits != -1) {
-              DataType dt = tfLite.getOutputTensor(idxLogits).dataType();
-              LOGGER.i("RAW_LOGITS dtype=" + dt);
-            }
-          } catch (Exception ignored) {}
-        } catch (Exception ex) {
-          LOGGER.i("RAW_LOGITS dump error: " + ex.getMessage());
-        }
-      }
-      try {
-        final int anchors = outputLogits[0].length;
-        final int numClasses = outputLogits[0][0].length;
-        // allocate scores/classes per-anchor
-        outputScores = new float[1][anchors];
-        outputClasses = new float[1][anchors];
-
-        // For each anchor, compute softmax over classes and pick best class & score.
-        for (int a = 0; a < anchors; ++a) {
-          // compute softmax for this anchor
-          float max = Float.NEGATIVE_INFINITY;
-          for (int c = 0; c < numClasses; ++c) {
-            float v = outputLogits[0][a][c];
-            if (v > max) max = v;
-          }
-          double sum = 0.0;
-          double[] exps = new double[numClasses];
-          for (int c = 0; c < numClasses; ++c) {
-            double e = Math.exp(outputLogits[0][a][c] - max);
-            exps[c] = e;
-            sum += e;
-          }
-          int bestC = 0;
-          double bestP = -1.0;
-          for (int c = 0; c < numClasses; ++c) {
-            double p = exps[c] / sum;
-            if (p > bestP) { bestP = p; bestC = c; }
-          }
-          outputScores[0][a] = (float) bestP;
-          outputClasses[0][a] = (float) bestC;
-        }
+    // Run the inference call.
+    Trace.beginSection("run");
+    tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
+    Trace.endSection();
 
-        // Now select top candidates by score and apply NMS.
-        // Build index array
-        Integer[] idxs = new Integer[anchors];
-        for (int i = 0; i < anchors; ++i) idxs[i] = i;
-        java.util.Arrays.sort(idxs, (i1, i2) -> Float.compare(outputScores[0][i2], outputScores[0][i1]));
-
-        final float scoreThreshold = 0.01f; // allow low threshold for debugging
-        final float iouThreshold = 0.5f;
-        boolean[] removed = new boolean[anchors];
-        java.util.ArrayList<Integer> picks = new java.util.ArrayList<>();
-        for (int id : idxs) {
-          if (outputScores[0][id] < scoreThreshold) break; // remaining scores are too low
-          if (removed[id]) continue;
-          // pick this box
-          picks.add(id);
-          // suppress overlaps
-          for (int j = 0; j < anchors; ++j) {
-            if (removed[j]) continue;
-            if (j == id) continue;
-            // compute IoU between box id and j
-            float[] boxA = outputLocations[0][id];
-            float[] boxB = outputLocations[0][j];
-            float iou = computeIoU(boxA, boxB);
-            if (iou > iouThreshold) removed[j] = true;
-          }
-          if (picks.size() >= NUM_DETECTIONS) break;
-        }
+    Trace.beginSection("decode");
+    decoder.decode(out, confidence);
+    out.setInputSize(inputSize);
+    Trace.endSection();
 
-        selectedIndices = new int[picks.size()];
-        for (int i = 0; i < picks.size(); ++i) selectedIndices[i] = picks.get(i);
-        // Update reported numDetections for downstream code/diagnostics
-        if (numDetections == null || numDetections.length == 0) numDetections = new float[1];
-        numDetections[0] = selectedIndices.length;
-        // Log postprocessing summary so we can verify selected detections and scores.
-        try {
-          LOGGER.i("POSTPROC selectedCount=" + selectedIndices.length);
-          int toShow = Math.min(selectedIndices.length, 5);
-          for (int k = 0; k < toShow; ++k) {
-            int id = selectedIndices[k];
-            String lbl = resolveLabel((int) outputClasses[0][id]);
-            LOGGER.i("POSTPROC[" + k + "] idx=" + id + " label=" + lbl + " score=" + outputScores[0][id] + " box=" + Arrays.toString(outputLocations[0][id]));
-          }
-        } catch (Exception ignored) {}
-      } catch (Exception ex) {
-        LOGGER.i("Postprocess logits error: " + ex.getMessage());
-      }
+    if (diagnostics.isEnabled()) {
+      diagnostics.onFrame(out);
     }
+  }
 
-    // Show the best detections.
-    // after scaling them back to the input size.
-      
-    // You need to use the number of detections from the output and not the NUM_DETECTONS variable declared on top
-      // because on some models, they don't always output the same total number of detections
-      // For example, your model's NUM_DETECTIONS = 20, but sometimes it only outputs 16 predictions
-      // If you don't use the output's numDetections, you'll get nonsensical data
-    // Decide which indices to use for final detections. If we performed
-    // SSD-style postprocessing we have selectedIndices filled; otherwise
-    // we fall back to model's reported numDetections and first N entries.
-    final ArrayList<Recognition> recognitions = new ArrayList<>();
-    if (selectedIndices != null && selectedIndices.length > 0) {
-      int count = Math.min(NUM_DETECTIONS, selectedIndices.length);
-      for (int k = 0; k < count; ++k) {
-        int i = selectedIndices[k];
-        final RectF detection =
-            new RectF(
-                outputLocations[0][i][1] * inputSize,
-                outputLocations[0][i][0] * inputSize,
-                outputLocations[0][i][3] * inputSize,
-                outputLocations[0][i][2] * inputSize);
-        int classIndex = (int) outputClasses[0][i];
-        String label = resolveLabel(classIndex);
-        recognitions.add(new Recognition("" + i, label, outputScores[0][i], detection));
-      }
-    } else {
-      int numDetectionsOutput = Math.min(NUM_DETECTIONS, (int) numDetections[0]); // cast from float to integer, use min for safety
-      for (int i = 0; i < numDetectionsOutput; ++i) {
-        final RectF detection =
-            new RectF(
-                outputLocations[0][i][1] * inputSize,
-                outputLocations[0][i][0] * inputSize,
-                outputLocations[0][i][3] * inputSize,
-                outputLocations[0][i][2] * inputSize);
-        int classIndex = (int) outputClasses[0][i];
-        String label = resolveLabel(classIndex);
-        recognitions.add(new Recognition("" + i, label, outputScores[0][i], detection));
+  /** Installs an interpreter prepared by {@link #prepareProcessorType}, if there is one. */
+  private void swapInStandby() {
+    if (standby.get() != null) {
+      final Standby next = standby.getAndSet(null);
+      if (next != null) {
+        install(next);
       }
     }
-    Trace.endSection(); // "recognizeImage"
-    return recognitions;
-  }
-
-  // Resolve label robustly (try 1-based then 0-based then fallback)
-  private String resolveLabel(int classIndex) {
-    int labelIndex = classIndex - 1; // many TF models output 1-based class ids
-    if (labelIndex >= 0 && labelIndex < labels.size()) {
-      return labels.get(labelIndex);
-    } else if (classIndex >= 0 && classIndex < labels.size()) {
-      return labels.get(classIndex);
-    } else if (!labels.isEmpty()) {
-      return labels.get(0);
-    }
-    return "unknown";
-  }
-
-  // Compute IoU for boxes in [ymin, xmin, ymax, xmax] normalized coordinates
-  private static float computeIoU(final float[] a, final float[] b) {
-    float ay1 = a[0], ax1 = a[1], ay2 = a[2], ax2 = a[3];
-    float by1 = b[0], bx1 = b[1], by2 = b[2], bx2 = b[3];
-    float interY1 = Math.max(ay1, by1);
-    float interX1 = Math.max(ax1, bx1);
-    float interY2 = Math.min(ay2, by2);
-    float interX2 = Math.min(ax2, bx2);
-    float interH = interY2 - interY1;
-    float interW = interX2 - interX1;
-    if (interH <= 0 || interW <= 0) return 0f;
-    float interArea = interH * interW;
-    float areaA = Math.max(0f, ay2 - ay1) * Math.max(0f, ax2 - ax1);
-    float areaB = Math.max(0f, by2 - by1) * Math.max(0f, bx2 - bx1);
-    float union = areaA + areaB - interArea;
-    if (union <= 0f) return 0f;
-    return interArea / union;
+  }
+
+  /** Output tensor capture for debugging, disabled until {@link DiagnosticsRecorder#enable}. */
+  public DiagnosticsRecorder getDiagnostics() {
+    return diagnostics;
+  }
+
+  /** Labels for the class ids this model reports. */
+  @Override
+  public LabelTable getLabels() {
+    return labels;
   }
 
   @Override
@@ -875,7 +924,56 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
   }
 
   @Override
-  public void close() {}
+  public void close() {
+    if (diagnostics != null) {
+      diagnostics.disable();
+    }
+    cancelStandby();
+    for (int i = 0; i < batchRuns.length; ++i) {
+      closeBatchRun(i);
+    }
+    closeQuietly(tfLite, delegate);
+    tfLite = null;
+    delegate = null;
+  }
+
+  @Override
+  public void setConfidenceThreshold(final float confidence) {
+    decoder.setScoreThreshold(confidence);
+  }
+
+  @Override
+  public float getConfidenceThreshold() {
+    return decoder.getScoreThreshold();
+  }
+
+  @Override
+  public void setIouThreshold(final float iouThreshold) {
+    decoder.setIouThreshold(iouThreshold);
+  }
+
+  @Override
+  public void setMaxDetections(final int maxDetections) {
+    decoder.setMaxDetections(maxDetections);
+  }
+
+  @Override
+  public void setClassFilter(final Collection<String> classLabels) {
+    boolean[] enabled = null;
+    if (classLabels != null) {
+      enabled = new boolean[labels.size()];
+      for (final String label : classLabels) {
+        final int id = labels.indexOf(label);
+        if (id >= 0) {
+          enabled[id] = true;
+        } else {
+          LOGGER.w("Class filter: no label " + label);
+        }
+      }
+    }
+    classFilter = enabled;
+    decoder.setClassMap(labels.classMap(decoder.getClassCount(), enabled));
+  }
 
   public void setNumThreads(int num_threads) {
     // Recreate the interpreter with the requested thread count and the current processor type.
@@ -884,35 +982,8 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
       return;
     }
     try {
-      Interpreter.Options options = new Interpreter.Options();
       // Re-apply delegate selection based on currentProcessorType
-      switch (currentProcessorType) {
-        case NPU:
-          try {
-            NnApiDelegate nnApiDelegate = new NnApiDelegate();
-            options.addDelegate(nnApiDelegate);
-          } catch (Exception e) {
-            LOGGER.i("Failed to add NNAPI delegate: " + e.getMessage());
-          }
-          break;
-        case GPU:
-          try {
-            GpuDelegate gpuDelegate = new GpuDelegate();
-            options.addDelegate(gpuDelegate);
-          } catch (Exception e) {
-            LOGGER.i("Failed to add GPU delegate: " + e.getMessage());
-          }
-          break;
-        case CPU:
-        default:
-          // no delegate
-          break;
-      }
-      try { options.setNumThreads(num_threads); } catch (Exception ignored) {}
-      if (tfLite != null) {
-        try { tfLite.close(); } catch (Exception ignored) {}
-      }
-      tfLite = new Interpreter(modelFileBuffer, options);
+      install(openInterpreter(currentProcessorType, num_threads));
     } catch (Exception e) {
       LOGGER.i("Failed to recreate interpreter with new thread count: " + e.getMessage());
     }
@@ -926,23 +997,7 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
       return;
     }
     try {
-      Interpreter.Options options = new Interpreter.Options();
-      if (isChecked) {
-        try {
-          NnApiDelegate nnApiDelegate = new NnApiDelegate();
-          options.addDelegate(nnApiDelegate);
-          currentProcessorType = ProcessorType.NPU;
-        } catch (Exception e) {
-          LOGGER.i("Failed to create NNAPI delegate: " + e.getMessage());
-        }
-      } else {
-        currentProcessorType = ProcessorType.CPU;
-      }
-      try { options.setNumThreads(NUM_THREADS); } catch (Exception ignored) {}
-      if (tfLite != null) {
-        try { tfLite.close(); } catch (Exception ignored) {}
-      }
-      tfLite = new Interpreter(modelFileBuffer, options);
+      install(openInterpreter(isChecked ? ProcessorType.NPU : ProcessorType.CPU, numThreads));
     } catch (Exception e) {
       LOGGER.i("Failed to recreate interpreter for NNAPI change: " + e.getMessage());
     }
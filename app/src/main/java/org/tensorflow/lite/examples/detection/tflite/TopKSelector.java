@@ -0,0 +1,129 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+/**
+ * Picks the K highest-scoring candidates out of a primitive score array without boxing or sorting
+ * the whole array.
+ *
+ * <p>Candidates below the threshold are rejected up front; the rest go through a bounded min-heap
+ * of size K, which is then drained into descending order. Equal scores keep ascending index order,
+ * the same order a stable sort would give. Instances are not thread-safe; reuse one per decoder.
+ */
+final class TopKSelector {
+  private final int capacity;
+  private final int[] heapIndices;
+  private final float[] heapScores;
+
+  TopKSelector(final int capacity) {
+    this.capacity = capacity;
+    this.heapIndices = new int[capacity];
+    this.heapScores = new float[capacity];
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  /**
+   * Selects up to {@link #capacity()} indices in [0, count) whose score is at least {@code
+   * threshold}.
+   *
+   * @param out receives the selected indices, best first; must hold at least capacity() entries.
+   * @return the number of indices written to {@code out}.
+   */
+  int select(final float[] scores, final int count, final float threshold, final int[] out) {
+    return select(scores, null, count, threshold, out);
+  }
+
+  /**
+   * As {@link #select(float[], int, float, int[])}, also skipping every index whose label is
+   * negative, whatever its score. Decoders mark rejected and background candidates that way, so
+   * they stay out even at a threshold of 0.
+   *
+   * @param labels class per index, or null to consider every index.
+   */
+  int select(
+      final float[] scores,
+      final int[] labels,
+      final int count,
+      final float threshold,
+      final int[] out) {
+    int size = 0;
+    for (int i = 0; i < count; ++i) {
+      final float s = scores[i];
+      if (s < threshold || (labels != null && labels[i] < 0)) {
+        continue;
+      }
+      if (size < capacity) {
+        siftUp(size++, i, s);
+      } else if (s > heapScores[0]) {
+        // Later indices never beat an equal score, so only strictly better ones replace the root.
+        siftDown(0, size, i, s);
+      }
+    }
+
+    // Drain the min-heap from the back so the output ends up in descending order.
+    for (int n = size; n > 0; --n) {
+      out[n - 1] = heapIndices[0];
+      final int lastIndex = heapIndices[n - 1];
+      final float lastScore = heapScores[n - 1];
+      siftDown(0, n - 1, lastIndex, lastScore);
+    }
+    return size;
+  }
+
+  // Heap order: a is "smaller" than b if it scores lower, or scores the same with a later index.
+  private static boolean less(final float sa, final int ia, final float sb, final int ib) {
+    return sa < sb || (sa == sb && ia > ib);
+  }
+
+  private void siftUp(int pos, final int index, final float score) {
+    while (pos > 0) {
+      final int parent = (pos - 1) >>> 1;
+      if (!less(score, index, heapScores[parent], heapIndices[parent])) {
+        break;
+      }
+      heapScores[pos] = heapScores[parent];
+      heapIndices[pos] = heapIndices[parent];
+      pos = parent;
+    }
+    heapScores[pos] = score;
+    heapIndices[pos] = index;
+  }
+
+  private void siftDown(int pos, final int size, final int index, final float score) {
+    final int half = size >>> 1;
+    while (pos < half) {
+      int child = 2 * pos + 1;
+      final int right = child + 1;
+      if (right < size
+          && less(heapScores[right], heapIndices[right], heapScores[child], heapIndices[child])) {
+        child = right;
+      }
+      if (!less(heapScores[child], heapIndices[child], score, index)) {
+        break;
+      }
+      heapScores[pos] = heapScores[child];
+      heapIndices[pos] = heapIndices[child];
+      pos = child;
+    }
+    if (size > 0) {
+      heapScores[pos] = score;
+      heapIndices[pos] = index;
+    }
+  }
+}
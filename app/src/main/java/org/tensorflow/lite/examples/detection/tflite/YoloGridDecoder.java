@@ -0,0 +1,119 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+/**
+ * Decoder for YOLO-style single-tensor heads, one row per grid cell and anchor. Two layouts are
+ * supported:
+ *
+ * <ul>
+ *   <li>[1, cells, 5 + C]: cx, cy, w, h, objectness, then C class scores (YOLOv5 style).
+ *   <li>[1, 4 + C, cells]: cx, cy, w, h, then C class scores, channel-major (YOLOv8 style).
+ * </ul>
+ *
+ * <p>Coordinates are expected normalized to [0, 1] and scores already activated, as produced by
+ * the standard TFLite exports.
+ */
+final class YoloGridDecoder extends DenseHeadDecoder {
+  private final OutputBuffer output;
+  private final boolean channelMajor;
+  private final int channels;
+  private final int firstClass;
+  private final int numClasses;
+  private final float[] boxes;
+
+  YoloGridDecoder(
+      final OutputBuffer output,
+      final int inputSize,
+      final int maxDetections) {
+    super(cellCount(output.shape), inputSize, maxDetections);
+    this.output = output;
+    this.channelMajor = isChannelMajor(output.shape);
+    this.channels = channelMajor ? output.shape[1] : output.shape[2];
+    this.firstClass = channelMajor ? 4 : 5;
+    this.numClasses = channels - firstClass;
+    this.boxes = new float[anchors * 4];
+    // Multi-class heads keep overlapping boxes of different classes, as the reference exports do.
+    nms().setClassAware(numClasses > 1);
+  }
+
+  @Override
+  public int getClassCount() {
+    return numClasses;
+  }
+
+  /** Whether {@code shape} looks like a YOLO head rather than per-anchor SSD logits. */
+  static boolean matches(final int[] shape) {
+    if (shape == null || shape.length != 3 || shape[0] != 1) {
+      return false;
+    }
+    final int channels = isChannelMajor(shape) ? shape[1] : shape[2];
+    return channels >= 6;
+  }
+
+  private static boolean isChannelMajor(final int[] shape) {
+    return shape[1] < shape[2];
+  }
+
+  private static int cellCount(final int[] shape) {
+    return isChannelMajor(shape) ? shape[2] : shape[1];
+  }
+
+  @Override
+  protected float[] boxes() {
+    return boxes;
+  }
+
+  @Override
+  protected void scoreCandidates() {
+    output.dequantize();
+    final float[] v = output.values;
+    final float threshold = scoreThreshold();
+    // Element (cell, channel) lives at cell * channels + channel, or channel * cells + cell.
+    final int cellStride = channelMajor ? 1 : channels;
+    final int channelStride = channelMajor ? anchors : 1;
+
+    for (int a = 0; a < anchors; ++a) {
+      final int base = a * cellStride;
+      final float cx = v[base];
+      final float cy = v[base + channelStride];
+      final float w = v[base + 2 * channelStride];
+      final float h = v[base + 3 * channelStride];
+      final float objectness = channelMajor ? 1f : v[base + 4 * channelStride];
+      // Class scores are at most 1, so a cell below the threshold on objectness alone is done.
+      if (objectness < threshold) {
+        scores[a] = 0f;
+        classes[a] = -1;
+        continue;
+      }
+
+      int bestC = 0;
+      float bestP = -1f;
+      for (int c = 0; c < numClasses; ++c) {
+        final float p = v[base + (firstClass + c) * channelStride];
+        if (p > bestP) { bestP = p; bestC = c; }
+      }
+      scores[a] = objectness * bestP;
+      classes[a] = bestC;
+
+      final int o = a * 4;
+      boxes[o] = cy - h * 0.5f;
+      boxes[o + 1] = cx - w * 0.5f;
+      boxes[o + 2] = cy + h * 0.5f;
+      boxes[o + 3] = cx + w * 0.5f;
+    }
+  }
+}
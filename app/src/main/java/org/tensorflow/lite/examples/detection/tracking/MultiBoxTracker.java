@@ -25,8 +25,8 @@ import android.graphics.Paint.Join;
 import android.graphics.Paint.Style;
 import android.graphics.RectF;
 import android.text.TextUtils;
-import android.util.Pair;
 import android.util.TypedValue;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
@@ -34,6 +34,8 @@ import org.tensorflow.lite.examples.detection.env.BorderedText;
 import org.tensorflow.lite.examples.detection.env.ImageUtils;
 import org.tensorflow.lite.examples.detection.env.Logger;
 import org.tensorflow.lite.examples.detection.tflite.Classifier.Recognition;
+import org.tensorflow.lite.examples.detection.tflite.DetectionBuffer;
+import org.tensorflow.lite.examples.detection.tflite.LabelTable;
 
 /** A tracker that handles non-max suppression and matches existing objects to new detections. */
 public class MultiBoxTracker {
@@ -56,14 +58,21 @@ public class MultiBoxTracker {
     Color.parseColor("#AA33AA"),
     Color.parseColor("#0D0068")
   };
-  final List<Pair<Float, RectF>> screenRects = new LinkedList<Pair<Float, RectF>>();
+  // Latest detections in canvas coordinates, for drawDebug().
+  final DetectionBuffer screenDetections = new DetectionBuffer();
   private final Logger logger = new Logger();
   private final Queue<Integer> availableColors = new LinkedList<Integer>();
-  private final List<TrackedRecognition> trackedObjects = new LinkedList<TrackedRecognition>();
+  // One preallocated entry per color; the first trackedCount are live.
+  private final TrackedRecognition[] trackedObjects = new TrackedRecognition[COLORS.length];
+  private int trackedCount;
+  private int[] candidates = new int[16];
+  private final DetectionBuffer recognitionAdapter = new DetectionBuffer();
+  private final RectF drawRect = new RectF();
   private final Paint boxPaint = new Paint();
   private final float textSizePx;
   private final BorderedText borderedText;
   private Matrix frameToCanvasMatrix;
+  private LabelTable labels;
   private int frameWidth;
   private int frameHeight;
   private int sensorOrientation;
@@ -73,6 +82,9 @@ public class MultiBoxTracker {
     for (final int color : COLORS) {
       availableColors.add(color);
     }
+    for (int i = 0; i < trackedObjects.length; ++i) {
+      trackedObjects[i] = new TrackedRecognition();
+    }
 
     boxPaint.setColor(Color.RED);
     boxPaint.setStyle(Style.STROKE);
@@ -94,6 +106,11 @@ public class MultiBoxTracker {
     this.sensorOrientation = sensorOrientation;
   }
   
+  /** Labels for the class ids of tracked detections; titles are looked up only when drawing. */
+  public synchronized void setLabels(final LabelTable labels) {
+    this.labels = labels;
+  }
+
   public synchronized void setZoomFactor(float zoom) {
     this.zoomFactor = zoom;
   }
@@ -109,8 +126,9 @@ public class MultiBoxTracker {
     boxPaint.setStyle(Style.STROKE);
     boxPaint.setStrokeWidth(8.0f);    // viền của bounding box
 
-    for (final Pair<Float, RectF> detection : screenRects) {
-      final RectF rect = new RectF(detection.second);
+    for (int i = 0; i < screenDetections.size(); ++i) {
+      final RectF rect = screenDetections.getLocation(i, drawRect);
+      final float score = screenDetections.score(i);
       
       // Mở rộng bounding box thêm 20px về 4 góc
 //       rect.left -= 8;
@@ -119,16 +137,25 @@ public class MultiBoxTracker {
 //       rect.bottom += 10;
       
       canvas.drawRect(rect, boxPaint);
-      canvas.drawText("" + detection.first, rect.left, rect.top, textPaint);
-      borderedText.drawText(canvas, rect.centerX(), rect.centerY(), "" + detection.first);
+      canvas.drawText("" + score, rect.left, rect.top, textPaint);
+      borderedText.drawText(canvas, rect.centerX(), rect.centerY(), "" + score);
     }
   }
 
-  public synchronized void trackResults(final List<Recognition> results, final long timestamp) {
+  /**
+   * Replaces the tracked objects with {@code results}, in frame coordinates. The buffer is only
+   * read during the call.
+   */
+  public synchronized void trackResults(final DetectionBuffer results, final long timestamp) {
     logger.i("Processing %d results from %d", results.size(), timestamp);
     processResults(results);
   }
 
+  public synchronized void trackResults(final List<Recognition> results, final long timestamp) {
+    recognitionAdapter.copyFrom(results, labels);
+    trackResults(recognitionAdapter, timestamp);
+  }
+
   private Matrix getFrameToCanvasMatrix() {
     return frameToCanvasMatrix;
   }
@@ -167,14 +194,17 @@ public class MultiBoxTracker {
             sensorOrientation,
             false);
             
-    for (final TrackedRecognition recognition : trackedObjects) {
-      final RectF trackedPos = new RectF(recognition.location);
+    for (int i = 0; i < trackedCount; ++i) {
+      final TrackedRecognition recognition = trackedObjects[i];
+      final String title = labels != null ? labels.get(recognition.classId) : null;
+      final RectF trackedPos = drawRect;
+      trackedPos.set(recognition.location);
       
       // Debug log - Box coordinates before transformation
       logger.d("Box BEFORE transform: [%.1f, %.1f, %.1f, %.1f] %s", 
                recognition.location.left, recognition.location.top, 
                recognition.location.right, recognition.location.bottom,
-               recognition.title);
+               title);
 
       // Apply the transformation matrix that matches canvas scaling exactly
       getFrameToCanvasMatrix().mapRect(trackedPos);
@@ -195,8 +225,8 @@ public class MultiBoxTracker {
       canvas.drawRoundRect(trackedPos, cornerSize, cornerSize, boxPaint);
 
       final String labelString =
-          !TextUtils.isEmpty(recognition.title)
-              ? String.format("%s %.2f", recognition.title, (100 * recognition.detectionConfidence))
+          !TextUtils.isEmpty(title)
+              ? String.format("%s %.2f", title, (100 * recognition.detectionConfidence))
               : String.format("%.2f", (100 * recognition.detectionConfidence));
       //            borderedText.drawText(canvas, trackedPos.left + cornerSize, trackedPos.top,
       // labelString);
@@ -206,101 +236,85 @@ public class MultiBoxTracker {
     logger.d("======================");
   }
 
-  private void processResults(final List<Recognition> results) {
-    final List<Pair<Float, Recognition>> rectsToTrack = new LinkedList<Pair<Float, Recognition>>();
-
-    screenRects.clear();
-    final Matrix rgbFrameToScreen = new Matrix(getFrameToCanvasMatrix());
+  private void processResults(final DetectionBuffer results) {
+    screenDetections.copyFrom(results);
+    // The canvas matrix only exists once the overlay has been drawn.
+    if (getFrameToCanvasMatrix() != null) {
+      screenDetections.mapBoxes(getFrameToCanvasMatrix());
+    }
 
-    for (final Recognition result : results) {
-      if (result.getLocation() == null) {
+    // Indices into results of the boxes large enough to track.
+    int candidateCount = 0;
+    for (int i = 0; i < results.size(); ++i) {
+      if (results.width(i) < MIN_SIZE || results.height(i) < MIN_SIZE) {
+        logger.w("Degenerate rectangle! [%.1f, %.1f, %.1f, %.1f]",
+                 results.left(i), results.top(i), results.right(i), results.bottom(i));
         continue;
       }
-      final RectF detectionFrameRect = new RectF(result.getLocation());
-
-      final RectF detectionScreenRect = new RectF();
-      rgbFrameToScreen.mapRect(detectionScreenRect, detectionFrameRect);
-
-      logger.v(
-          "Result! Frame: " + result.getLocation() + " mapped to screen:" + detectionScreenRect);
-
-      screenRects.add(new Pair<Float, RectF>(result.getConfidence(), detectionScreenRect));
-
-      if (detectionFrameRect.width() < MIN_SIZE || detectionFrameRect.height() < MIN_SIZE) {
-        logger.w("Degenerate rectangle! " + detectionFrameRect);
-        continue;
+      if (candidateCount == candidates.length) {
+        candidates = Arrays.copyOf(candidates, candidates.length * 2);
       }
-
-      rectsToTrack.add(new Pair<Float, Recognition>(result.getConfidence(), result));
+      candidates[candidateCount++] = i;
     }
 
-    trackedObjects.clear();
-    if (rectsToTrack.isEmpty()) {
+    trackedCount = 0;
+    if (candidateCount == 0) {
       logger.v("Nothing to track, aborting.");
       return;
     }
 
     // xóa vòng for mếu như k cần lọc nested box
     
-    List<Pair<Float, Recognition>> filteredRects = new LinkedList<>();
-    
-    for (int i = 0; i < rectsToTrack.size(); i++) {
-      Pair<Float, Recognition> current = rectsToTrack.get(i);
-      RectF currentRect = current.second.getLocation();
+    int kept = 0;
+    for (int c = 0; c < candidateCount && trackedCount < COLORS.length; c++) {
+      final int i = candidates[c];
       boolean isNested = false;
       
       // Check if current box is completely inside any other box
-      for (int j = 0; j < rectsToTrack.size(); j++) {
-        if (i == j) continue; // Skip self comparison
+      for (int d = 0; d < candidateCount; d++) {
+        if (c == d) continue; // Skip self comparison
         
-        Pair<Float, Recognition> other = rectsToTrack.get(j);
-        RectF otherRect = other.second.getLocation();
+        final int j = candidates[d];
         
         // Check if current box is completely contained within other box
-        if (isCompletelyInside(currentRect, otherRect)) {
-          logger.d("Box %s [%.1f,%.1f,%.1f,%.1f] is nested inside %s [%.1f,%.1f,%.1f,%.1f] - removing nested box",
-                   current.second.getTitle(), currentRect.left, currentRect.top, currentRect.right, currentRect.bottom,
-                   other.second.getTitle(), otherRect.left, otherRect.top, otherRect.right, otherRect.bottom);
+        if (isCompletelyInside(results, i, j)) {
+          logger.d("Box %d [%.1f,%.1f,%.1f,%.1f] is nested inside %d [%.1f,%.1f,%.1f,%.1f] - removing nested box",
+                   results.classId(i), results.left(i), results.top(i), results.right(i), results.bottom(i),
+                   results.classId(j), results.left(j), results.top(j), results.right(j), results.bottom(j));
           isNested = true;
           break;
         }
       }
       
-      if (!isNested) {
-        filteredRects.add(current);
+      if (isNested) {
+        continue;
       }
+      ++kept;
+
+      final TrackedRecognition trackedRecognition = trackedObjects[trackedCount];
+      trackedRecognition.detectionConfidence = results.score(i);
+      results.getLocation(i, trackedRecognition.location);
+      trackedRecognition.classId = results.classId(i);
+      trackedRecognition.color = COLORS[trackedCount];
+      ++trackedCount;
     }
     
     logger.d("Filtered boxes: %d -> %d (removed %d nested boxes)", 
-             rectsToTrack.size(), filteredRects.size(), rectsToTrack.size() - filteredRects.size());
-
-
-    for (final Pair<Float, Recognition> potential : filteredRects) {
-      final TrackedRecognition trackedRecognition = new TrackedRecognition();
-      trackedRecognition.detectionConfidence = potential.first;
-      trackedRecognition.location = new RectF(potential.second.getLocation());
-      trackedRecognition.title = potential.second.getTitle();
-      trackedRecognition.color = COLORS[trackedObjects.size()];
-      trackedObjects.add(trackedRecognition);
-
-      if (trackedObjects.size() >= COLORS.length) {
-        break;
-      }
-    }
+             candidateCount, kept, candidateCount - kept);
   }
 
   // Helper method to check if one rectangle is completely inside another
-  private boolean isCompletelyInside(RectF inner, RectF outer) {
-    return inner.left >= outer.left && 
-           inner.top >= outer.top && 
-           inner.right <= outer.right && 
-           inner.bottom <= outer.bottom;
+  private static boolean isCompletelyInside(DetectionBuffer boxes, int inner, int outer) {
+    return boxes.left(inner) >= boxes.left(outer) && 
+           boxes.top(inner) >= boxes.top(outer) && 
+           boxes.right(inner) <= boxes.right(outer) && 
+           boxes.bottom(inner) <= boxes.bottom(outer);
   }
 
   private static class TrackedRecognition {
-    RectF location;
+    final RectF location = new RectF();
     float detectionConfidence;
     int color;
-    String title;
+    int classId;
   }
 }
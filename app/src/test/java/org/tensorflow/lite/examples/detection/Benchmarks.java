@@ -0,0 +1,50 @@
+/*
+ * Copyright 2020 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Runs JMH benchmarks from the JVM unit test task. Benchmarks are skipped unless the build passes
+ * {@code -Pjmh}, e.g. {@code ./gradlew :app:testDebugUnitTest -Pjmh --tests '*Benchmark'}.
+ * Numbers are from the host JVM, so they rank implementations rather than predict device timings.
+ */
+public final class Benchmarks {
+  private Benchmarks() {}
+
+  /** Runs every {@code @Benchmark} method of {@code benchmark}, printing a results table. */
+  public static void run(final Class<?> benchmark) throws RunnerException {
+    assumeTrue("benchmarks run with -Pjmh", Boolean.getBoolean("jmh"));
+    new Runner(
+            new OptionsBuilder()
+                .include(benchmark.getName() + "\\.")
+                .forks(1)
+                .warmupIterations(3)
+                .warmupTime(TimeValue.seconds(1))
+                .measurementIterations(5)
+                .measurementTime(TimeValue.seconds(1))
+                .timeUnit(TimeUnit.MICROSECONDS)
+                .build())
+        .run();
+  }
+}
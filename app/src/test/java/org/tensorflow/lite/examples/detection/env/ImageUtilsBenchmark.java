@@ -0,0 +1,120 @@
+/*
+ * Copyright 2020 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.env;
+
+import java.util.Random;
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.RunnerException;
+import org.tensorflow.lite.examples.detection.Benchmarks;
+import org.tensorflow.lite.examples.detection.env.YuvReference.Image;
+
+/**
+ * Full-frame YUV to ARGB conversion at common preview sizes: the per-pixel {@link
+ * ImageUtils#YUV2RGB} loop the app shipped with, the table kernel single-threaded, and striped over
+ * the conversion pool. Run with {@code -Pjmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+public class ImageUtilsBenchmark {
+  @Param({"640x480", "1280x720", "1920x1080"})
+  public String size;
+
+  private int width;
+  private int height;
+  private byte[] nv21;
+  private byte[][] planes;
+  private byte[] yuyv;
+  private int[] out;
+
+  @Setup
+  public void setUp() {
+    final String[] dims = size.split("x");
+    width = Integer.parseInt(dims[0]);
+    height = Integer.parseInt(dims[1]);
+    final Random random = new Random(7);
+    final Image image = Image.random420(random, width, height);
+    nv21 = image.toNv21();
+    // Camera2's usual layout: interleaved chroma planes, no row padding.
+    planes = image.toPlanes(width, width, 2);
+    yuyv = Image.random422(random, width, height).toYuyv(width * 2);
+    out = new int[width * height];
+  }
+
+  /** The NV21 loop before the table kernel: YUV2RGB for every pixel. */
+  @Benchmark
+  public int[] nv21PerPixel() {
+    final int frameSize = width * height;
+    for (int j = 0, yp = 0; j < height; j++) {
+      int uvp = frameSize + (j >> 1) * width;
+      int u = 0;
+      int v = 0;
+      for (int i = 0; i < width; i++, yp++) {
+        final int y = 0xff & nv21[yp];
+        if ((i & 1) == 0) {
+          v = 0xff & nv21[uvp++];
+          u = 0xff & nv21[uvp++];
+        }
+        out[yp] = ImageUtils.YUV2RGB(y, u, v);
+      }
+    }
+    return out;
+  }
+
+  @Benchmark
+  public int[] nv21Scalar() {
+    ImageUtils.convertYUV420SPToARGB8888(nv21, width, height, out);
+    return out;
+  }
+
+  @Benchmark
+  public int[] nv21Parallel() {
+    ImageUtils.convertYUV420SPToARGB8888Parallel(nv21, width, height, out);
+    return out;
+  }
+
+  @Benchmark
+  public int[] yuv420Scalar() {
+    ImageUtils.convertYUV420ToARGB8888(
+        planes[0], planes[1], planes[2], width, height, width, width, 2, out);
+    return out;
+  }
+
+  @Benchmark
+  public int[] yuv420Parallel() {
+    ImageUtils.convertYUV420ToARGB8888Parallel(
+        planes[0], planes[1], planes[2], width, height, width, width, 2, out);
+    return out;
+  }
+
+  @Benchmark
+  public int[] yuyvParallel() {
+    ImageUtils.convertYUYVToARGB8888Parallel(yuyv, width, height, width * 2, out);
+    return out;
+  }
+
+  @Test
+  public void run() throws RunnerException {
+    Benchmarks.run(ImageUtilsBenchmark.class);
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2020 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.env;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.tensorflow.lite.examples.detection.env.YuvReference.Image;
+
+/**
+ * Checks the striped full-frame conversions against the single-threaded ones and against per-pixel
+ * {@link ImageUtils#YUV2RGB}, on pools of several sizes so the stripe split is exercised whatever
+ * the host's core count. The output is cleared before each run, so a row no stripe wrote shows.
+ */
+public class ImageUtilsTest {
+  // {width, height}: camera sizes, plus heights that do not split into equal stripes.
+  private static final int[][] SIZES = {
+    {640, 480}, {1280, 720}, {1920, 1080}, {96, 66}, {160, 254},
+  };
+  private static final ForkJoinPool[] POOLS = {
+    new ForkJoinPool(1), new ForkJoinPool(3), new ForkJoinPool(4), new ForkJoinPool(7),
+  };
+
+  private final Random random = new Random(21);
+
+  @AfterClass
+  public static void shutDownPools() {
+    for (final ForkJoinPool pool : POOLS) {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void tableKernelMatchesYuv2RgbForEveryInput() {
+    // Degenerate strides make one call cover every (Y, U) pair for a fixed V: a Y row stride of 0
+    // repeats the row of all 256 Y values on every row, a chroma pixel stride of 0 holds one U per
+    // row pair, and a chroma row stride of 1 steps that U through all 256 values.
+    final int width = 256;
+    final int height = 2 * 256;
+    final byte[] yData = new byte[width];
+    final byte[] uData = new byte[256];
+    final byte[] vData = new byte[256];
+    for (int i = 0; i < 256; ++i) {
+      yData[i] = (byte) i;
+      uData[i] = (byte) i;
+    }
+    final int[] out = new int[width * height];
+    for (int v = 0; v < 256; ++v) {
+      Arrays.fill(vData, (byte) v);
+      ImageUtils.convertYUV420ToARGB8888(yData, uData, vData, width, height, 0, 1, 0, out);
+      for (int row = 0; row < height; ++row) {
+        final int u = row >> 1;
+        for (int y = 0; y < width; ++y) {
+          final int expected = ImageUtils.YUV2RGB(y, u, v);
+          if (out[row * width + y] != expected) {
+            fail(
+                String.format(
+                    "(y, u, v) = (%d, %d, %d): expected %08x, got %08x",
+                    y, u, v, expected, out[row * width + y]));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void tableKernelCoversOddWidthTail() {
+    // The unpaired last pixel of an odd-width row goes through YUV2RGB directly.
+    final byte[] yData = {(byte) 200, 16, (byte) 235};
+    final byte[] uData = {(byte) 90, (byte) 240};
+    final byte[] vData = {(byte) 180, 10};
+    final int[] out = new int[3];
+    ImageUtils.convertYUV420ToARGB8888(yData, uData, vData, 3, 1, 3, 2, 1, out);
+    assertEquals(ImageUtils.YUV2RGB(200, 90, 180), out[0]);
+    assertEquals(ImageUtils.YUV2RGB(16, 90, 180), out[1]);
+    assertEquals(ImageUtils.YUV2RGB(235, 240, 10), out[2]);
+  }
+
+  @Test
+  public void nv21ParallelMatchesScalar() {
+    for (final int[] size : SIZES) {
+      final int width = size[0];
+      final int height = size[1];
+      final Image image = Image.random420(random, width, height);
+      final byte[] nv21 = image.toNv21();
+      final int[] expected = new int[width * height];
+      ImageUtils.convertYUV420SPToARGB8888(nv21, width, height, expected);
+      assertArrayEquals(image.toArgb(), expected);
+
+      final int[] out = new int[width * height];
+      ImageUtils.convertYUV420SPToARGB8888Parallel(nv21, width, height, out);
+      assertArrayEquals(width + "x" + height, expected, out);
+      for (final ForkJoinPool pool : POOLS) {
+        Arrays.fill(out, 0);
+        ImageUtils.convertYUV420SPToARGB8888Parallel(pool, nv21, width, height, out);
+        assertArrayEquals(width + "x" + height + " on " + pool, expected, out);
+      }
+    }
+  }
+
+  @Test
+  public void yuv420ParallelMatchesScalar() {
+    for (final int[] size : SIZES) {
+      checkYuv420(size[0], size[1], 2);
+      checkYuv420(size[0], size[1], 1);
+    }
+    // Odd widths end each row on an unpaired pixel.
+    checkYuv420(159, 121, 2);
+    checkYuv420(159, 121, 1);
+  }
+
+  private void checkYuv420(final int width, final int height, final int uvPixelStride) {
+    final Image image = Image.random420(random, width, height);
+    final int yStride = width + 32;
+    final int uvStride = uvPixelStride == 2 ? width + 32 : (width + 1) / 2 + 16;
+    final byte[][] planes = image.toPlanes(yStride, uvStride, uvPixelStride);
+    final int[] expected = new int[width * height];
+    ImageUtils.convertYUV420ToARGB8888(
+        planes[0], planes[1], planes[2], width, height, yStride, uvStride, uvPixelStride, expected);
+    assertArrayEquals(image.toArgb(), expected);
+
+    final String message = width + "x" + height + " pixel stride " + uvPixelStride;
+    final int[] out = new int[width * height];
+    ImageUtils.convertYUV420ToARGB8888Parallel(
+        planes[0], planes[1], planes[2], width, height, yStride, uvStride, uvPixelStride, out);
+    assertArrayEquals(message, expected, out);
+    for (final ForkJoinPool pool : POOLS) {
+      Arrays.fill(out, 0);
+      ImageUtils.convertYUV420ToARGB8888Parallel(
+          pool,
+          planes[0],
+          planes[1],
+          planes[2],
+          width,
+          height,
+          yStride,
+          uvStride,
+          uvPixelStride,
+          out);
+      assertArrayEquals(message + " on " + pool, expected, out);
+    }
+  }
+
+  @Test
+  public void yuyvParallelMatchesReference() {
+    for (final int[] size : SIZES) {
+      final int width = size[0];
+      final int height = size[1];
+      final Image image = Image.random422(random, width, height);
+      final int stride = width * 2 + 16;
+      final byte[] yuyv = image.toYuyv(stride);
+      final int[] expected = image.toArgb();
+
+      final int[] out = new int[width * height];
+      ImageUtils.convertYUYVToARGB8888Parallel(yuyv, width, height, stride, out);
+      assertArrayEquals(width + "x" + height, expected, out);
+      for (final ForkJoinPool pool : POOLS) {
+        Arrays.fill(out, 0);
+        ImageUtils.convertYUYVToARGB8888Parallel(pool, yuyv, width, height, stride, out);
+        assertArrayEquals(width + "x" + height + " on " + pool, expected, out);
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void yuyvRejectsOddWidth() {
+    // The last pixel of an odd row would have no V byte in its row.
+    final int width = 65;
+    final int height = 4;
+    ImageUtils.convertYUYVToARGB8888Parallel(
+        new byte[width * 2 * height], width, height, width * 2, new int[width * height]);
+  }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2020 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.env;
+
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Slow, obviously correct references for the fused YUV converters: frames built from per-pixel
+ * Y/U/V samples, converted pixel by pixel, then resampled through the transform {@link
+ * ImageUtils#getTransformationMatrix} builds. android.graphics.Matrix is a stub in JVM tests, so
+ * {@link Affine} replays its postTranslate/postRotate/postScale steps in double precision.
+ */
+final class YuvReference {
+  // Byte written into stride padding, so reading it shows up as a wrong colour.
+  private static final byte PADDING = (byte) 0xEB;
+
+  private YuvReference() {}
+
+  /** A frame as full-resolution Y, U and V samples, with chroma shared per 2x2 or 2x1 block. */
+  static final class Image {
+    final int width;
+    final int height;
+    final int[] y;
+    final int[] u;
+    final int[] v;
+
+    private Image(final int width, final int height) {
+      this.width = width;
+      this.height = height;
+      y = new int[width * height];
+      u = new int[width * height];
+      v = new int[width * height];
+    }
+
+    /** Random 4:2:0 frame: chroma is shared by each 2x2 block. */
+    static Image random420(final Random random, final int width, final int height) {
+      return random(random, width, height, 1);
+    }
+
+    /** Random 4:2:2 frame: chroma is shared by each horizontal pixel pair only. */
+    static Image random422(final Random random, final int width, final int height) {
+      return random(random, width, height, 0);
+    }
+
+    private static Image random(
+        final Random random, final int width, final int height, final int rowShift) {
+      final Image image = new Image(width, height);
+      for (int i = 0; i < width * height; ++i) {
+        image.y[i] = random.nextInt(256);
+      }
+      for (int row = 0; row < height; ++row) {
+        for (int col = 0; col < width; ++col) {
+          final int i = row * width + col;
+          if ((row & ((1 << rowShift) - 1)) != 0) {
+            image.u[i] = image.u[i - width];
+            image.v[i] = image.v[i - width];
+          } else if ((col & 1) != 0) {
+            image.u[i] = image.u[i - 1];
+            image.v[i] = image.v[i - 1];
+          } else {
+            image.u[i] = random.nextInt(256);
+            image.v[i] = random.nextInt(256);
+          }
+        }
+      }
+      return image;
+    }
+
+    /** Per-pixel ARGB, converted with the scalar {@link ImageUtils#YUV2RGB}. */
+    int[] toArgb() {
+      final int[] argb = new int[width * height];
+      for (int i = 0; i < argb.length; ++i) {
+        argb[i] = ImageUtils.YUV2RGB(y[i], u[i], v[i]);
+      }
+      return argb;
+    }
+
+    /** NV21: Y plane, then V/U pairs for each 2x2 block, all with row stride equal to width. */
+    byte[] toNv21() {
+      return toSemiPlanar(true);
+    }
+
+    /** NV12: as NV21 but U/V pairs. */
+    byte[] toNv12() {
+      return toSemiPlanar(false);
+    }
+
+    private byte[] toSemiPlanar(final boolean vFirst) {
+      final byte[] out = new byte[width * height + width * ((height + 1) / 2)];
+      for (int i = 0; i < width * height; ++i) {
+        out[i] = (byte) y[i];
+      }
+      for (int row = 0; row < height; row += 2) {
+        for (int col = 0; col < width; col += 2) {
+          final int i = row * width + col;
+          final int o = width * height + (row / 2) * width + col;
+          out[o] = (byte) (vFirst ? v[i] : u[i]);
+          out[o + 1] = (byte) (vFirst ? u[i] : v[i]);
+        }
+      }
+      return out;
+    }
+
+    /**
+     * YUV_420_888 planes {y, u, v} with the given strides, padding filled with a marker byte. With
+     * uvPixelStride 2 the U and V arrays each hold every other byte, as Camera2's interleaved
+     * planes do.
+     */
+    byte[][] toPlanes(final int yRowStride, final int uvRowStride, final int uvPixelStride) {
+      final int chromaRows = (height + 1) / 2;
+      final byte[] yPlane = new byte[yRowStride * height];
+      final byte[] uPlane = new byte[uvRowStride * chromaRows];
+      final byte[] vPlane = new byte[uvRowStride * chromaRows];
+      Arrays.fill(yPlane, PADDING);
+      Arrays.fill(uPlane, PADDING);
+      Arrays.fill(vPlane, PADDING);
+      for (int row = 0; row < height; ++row) {
+        for (int col = 0; col < width; ++col) {
+          final int i = row * width + col;
+          yPlane[row * yRowStride + col] = (byte) y[i];
+          final int o = (row / 2) * uvRowStride + (col / 2) * uvPixelStride;
+          uPlane[o] = (byte) u[i];
+          vPlane[o] = (byte) v[i];
+        }
+      }
+      return new byte[][] {yPlane, uPlane, vPlane};
+    }
+
+    /** Packed YUYV (Y0 U Y1 V), padding after each row up to rowStride. */
+    byte[] toYuyv(final int rowStride) {
+      final byte[] out = new byte[rowStride * height];
+      Arrays.fill(out, PADDING);
+      for (int row = 0; row < height; ++row) {
+        for (int col = 0; col < width; ++col) {
+          final int i = row * width + col;
+          final int o = row * rowStride + col * 2;
+          out[o] = (byte) y[i];
+          if ((col & 1) == 0) {
+            out[o + 1] = (byte) u[i];
+            out[o + 3] = (byte) v[i];
+          }
+        }
+      }
+      return out;
+    }
+  }
+
+  /** Row-vector 2D affine transform with android.graphics.Matrix's post-concatenation. */
+  static final class Affine {
+    // x' = a*x + b*y + c, y' = d*x + e*y + f
+    private double a = 1, b = 0, c = 0, d = 0, e = 1, f = 0;
+
+    void postTranslate(final double dx, final double dy) {
+      c += dx;
+      f += dy;
+    }
+
+    void postScale(final double sx, final double sy) {
+      a *= sx;
+      b *= sx;
+      c *= sx;
+      d *= sy;
+      e *= sy;
+      f *= sy;
+    }
+
+    void postRotate(final double degrees) {
+      final double radians = Math.toRadians(degrees);
+      // Skia snaps the sine and cosine of right angles to exact 0/1.
+      final double cos = snap(Math.cos(radians));
+      final double sin = snap(Math.sin(radians));
+      final double na = cos * a - sin * d, nb = cos * b - sin * e, nc = cos * c - sin * f;
+      final double nd = sin * a + cos * d, ne = sin * b + cos * e, nf = sin * c + cos * f;
+      a = na;
+      b = nb;
+      c = nc;
+      d = nd;
+      e = ne;
+      f = nf;
+    }
+
+    /** Maps a destination point back into the source, i.e. applies the inverse. */
+    double[] mapInverse(final double x, final double y) {
+      final double det = a * e - b * d;
+      final double dx = x - c;
+      final double dy = y - f;
+      return new double[] {(e * dx - b * dy) / det, (a * dy - d * dx) / det};
+    }
+
+    private static double snap(final double v) {
+      return Math.abs(v) < 1e-9 ? 0 : v;
+    }
+  }
+
+  /** The steps of {@link ImageUtils#getTransformationMatrix}, on {@link Affine}. */
+  static Affine transformationMatrix(
+      final int srcWidth,
+      final int srcHeight,
+      final int dstWidth,
+      final int dstHeight,
+      final int applyRotation,
+      final boolean maintainAspectRatio) {
+    final Affine matrix = new Affine();
+    if (applyRotation != 0) {
+      matrix.postTranslate(-srcWidth / 2.0, -srcHeight / 2.0);
+      matrix.postRotate(applyRotation);
+    }
+    final boolean transpose = (Math.abs(applyRotation) + 90) % 180 == 0;
+    final int inWidth = transpose ? srcHeight : srcWidth;
+    final int inHeight = transpose ? srcWidth : srcHeight;
+    if (inWidth != dstWidth || inHeight != dstHeight) {
+      final double scaleFactorX = dstWidth / (double) inWidth;
+      final double scaleFactorY = dstHeight / (double) inHeight;
+      if (maintainAspectRatio) {
+        final double scaleFactor = Math.max(scaleFactorX, scaleFactorY);
+        matrix.postScale(scaleFactor, scaleFactor);
+      } else {
+        matrix.postScale(scaleFactorX, scaleFactorY);
+      }
+    }
+    if (applyRotation != 0) {
+      matrix.postTranslate(dstWidth / 2.0, dstHeight / 2.0);
+    }
+    return matrix;
+  }
+
+  /**
+   * Asserts that {@code actual} is the crop [cropLeft, cropLeft + cropWidth) x [cropTop, cropTop +
+   * cropHeight) of {@code source} drawn without filtering through the transformation matrix:
+   * each destination pixel takes the source pixel under its centre, or opaque black if that is
+   * outside the crop. Where the centre lands within float rounding of a pixel edge, either
+   * neighbour is accepted.
+   */
+  static void assertNearestSampled(
+      final String message,
+      final int[] source,
+      final int srcWidth,
+      final int cropLeft,
+      final int cropTop,
+      final int cropWidth,
+      final int cropHeight,
+      final Affine matrix,
+      final int dstWidth,
+      final int dstHeight,
+      final int[] actual) {
+    for (int y = 0; y < dstHeight; ++y) {
+      for (int x = 0; x < dstWidth; ++x) {
+        final double[] s = matrix.mapInverse(x + 0.5, y + 0.5);
+        final int got = actual[y * dstWidth + x];
+        boolean matched = false;
+        for (int dy = -1; dy <= 1 && !matched; dy += 2) {
+          for (int dx = -1; dx <= 1 && !matched; dx += 2) {
+            final int sx = (int) Math.floor(s[0] + dx * 1e-3);
+            final int sy = (int) Math.floor(s[1] + dy * 1e-3);
+            final boolean inside = sx >= 0 && sx < cropWidth && sy >= 0 && sy < cropHeight;
+            final int want =
+                inside ? source[(cropTop + sy) * srcWidth + cropLeft + sx] : 0xff000000;
+            matched = got == want;
+          }
+        }
+        if (!matched) {
+          fail(
+              String.format(
+                  "%s: pixel (%d, %d) samples (%.3f, %.3f), got %08x",
+                  message, x, y, s[0], s[1], got));
+        }
+      }
+    }
+  }
+
+  /** Packed RGB bytes, as written for quantized models, back to opaque ARGB. */
+  static int[] rgbBytesToArgb(final byte[] rgb) {
+    final int[] argb = new int[rgb.length / 3];
+    for (int i = 0; i < argb.length; ++i) {
+      argb[i] =
+          0xff000000
+              | (0xff & rgb[3 * i]) << 16
+              | (0xff & rgb[3 * i + 1]) << 8
+              | (0xff & rgb[3 * i + 2]);
+    }
+    return argb;
+  }
+}
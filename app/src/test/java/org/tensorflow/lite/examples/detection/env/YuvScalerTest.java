@@ -0,0 +1,261 @@
+/*
+ * Copyright 2020 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.env;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.tensorflow.lite.examples.detection.env.YuvReference.assertNearestSampled;
+import static org.tensorflow.lite.examples.detection.env.YuvReference.transformationMatrix;
+
+import java.util.Random;
+import org.junit.Test;
+import org.tensorflow.lite.examples.detection.env.YuvReference.Affine;
+import org.tensorflow.lite.examples.detection.env.YuvReference.Image;
+
+/**
+ * Checks the one-pass scaler against converting the whole frame and drawing it through the
+ * frame-to-crop transform, with and without filtering, including the clamped edge rows and
+ * columns.
+ */
+public class YuvScalerTest {
+  // {srcWidth, srcHeight, dstWidth, dstHeight, rotation, maintainAspectRatio}
+  private static final int[][] GEOMETRIES = {
+    {64, 48, 64, 48, 0, 0},
+    {160, 120, 96, 96, 0, 0},
+    {160, 120, 100, 100, 90, 1},
+    {120, 160, 75, 75, 270, 1},
+    {160, 120, 64, 80, 180, 1},
+    {34, 26, 300, 300, 90, 0},
+    {32, 24, 64, 48, 0, 0},
+  };
+  // In the order convertAll() returns them.
+  private static final String[] LAYOUTS = {"nv21", "nv12", "yuv420", "yuyv"};
+  // Per channel. The blend uses 1/256 weights, so Y, U and V can each round one step away from
+  // the exact blend; blue takes 1.16 Y + 2.02 U, so one step on both moves it by up to 4.
+  private static final int BILINEAR_TOLERANCE = 4;
+
+  private final Random random = new Random(23);
+
+  private static YuvScaler scaler(final int[] g, final boolean bilinear) {
+    return new YuvScaler(g[0], g[1], g[2], g[3], g[4], g[5] != 0, bilinear);
+  }
+
+  private static Affine matrix(final int[] g) {
+    return transformationMatrix(g[0], g[1], g[2], g[3], g[4], g[5] != 0);
+  }
+
+  /** All four layouts of the same frame, converted by one scaler. */
+  private static int[][] convertAll(final YuvScaler scaler, final Image image, final int[] g) {
+    final int pixels = g[2] * g[3];
+    final int[][] out = new int[4][pixels];
+    scaler.convertNv21(image.toNv21(), out[0]);
+    scaler.convertNv12(image.toNv12(), out[1]);
+    final int yStride = image.width + 24;
+    final int uvStride = image.width + 24;
+    final byte[][] planes = image.toPlanes(yStride, uvStride, 2);
+    scaler.convertYuv420(planes[0], planes[1], planes[2], yStride, uvStride, 2, out[2]);
+    final int yuyvStride = image.width * 2 + 12;
+    scaler.convertYuyv(image.toYuyv(yuyvStride), yuyvStride, out[3]);
+    return out;
+  }
+
+  @Test
+  public void nearestMatchesUnfilteredDraw() {
+    for (final int[] g : GEOMETRIES) {
+      // 4:2:0 chroma fits every layout; YUYV is checked on true 4:2:2 below.
+      final Image image = Image.random420(random, g[0], g[1]);
+      final int[][] out = convertAll(scaler(g, false), image, g);
+      for (int i = 0; i < LAYOUTS.length; ++i) {
+        assertNearestSampled(
+            LAYOUTS[i], image.toArgb(), g[0], 0, 0, g[0], g[1], matrix(g), g[2], g[3], out[i]);
+      }
+    }
+  }
+
+  @Test
+  public void nearestYuyvKeepsPerRowChroma() {
+    for (final int[] g : GEOMETRIES) {
+      final Image image = Image.random422(random, g[0], g[1]);
+      final int stride = g[0] * 2;
+      final int[] out = new int[g[2] * g[3]];
+      scaler(g, false).convertYuyv(image.toYuyv(stride), stride, out);
+      assertNearestSampled(
+          "yuyv", image.toArgb(), g[0], 0, 0, g[0], g[1], matrix(g), g[2], g[3], out);
+    }
+  }
+
+  @Test
+  public void bilinearMatchesFilteredDraw() {
+    for (final int[] g : GEOMETRIES) {
+      final Image image = Image.random420(random, g[0], g[1]);
+      final int[] expected = bilinearReference(image, g);
+      final int[][] out = convertAll(scaler(g, true), image, g);
+      for (int i = 0; i < LAYOUTS.length; ++i) {
+        assertClose(LAYOUTS[i] + " " + g[0] + "x" + g[1], expected, out[i], g[2]);
+      }
+    }
+  }
+
+  @Test
+  public void bilinearYuyvKeepsPerRowChroma() {
+    for (final int[] g : GEOMETRIES) {
+      final Image image = Image.random422(random, g[0], g[1]);
+      final int stride = g[0] * 2 + 4;
+      final int[] out = new int[g[2] * g[3]];
+      scaler(g, true).convertYuyv(image.toYuyv(stride), stride, out);
+      assertClose("yuyv " + g[0] + "x" + g[1], bilinearReference(image, g), out, g[2]);
+    }
+  }
+
+  @Test
+  public void bilinearAtSameSizeIsExact() {
+    final int[] g = GEOMETRIES[0];
+    final Image image = Image.random420(random, g[0], g[1]);
+    for (final int[] out : convertAll(scaler(g, true), image, g)) {
+      assertArrayEquals(image.toArgb(), out);
+    }
+  }
+
+  @Test
+  public void bilinearClampsEdgeRowsAndColumns() {
+    // 2x upscale: the outer half-pixel ring of the output lies beyond the outermost source pixel
+    // centres, where the blend must clamp to the edge instead of reading past it.
+    final int[] g = {32, 24, 64, 48, 0, 0};
+    final Image image = Image.random420(random, g[0], g[1]);
+    final int[] source = image.toArgb();
+    final int w = g[2];
+    final int h = g[3];
+    for (final int[] out : convertAll(scaler(g, true), image, g)) {
+      assertEquals(source[0], out[0]);
+      assertEquals(source[g[0] - 1], out[w - 1]);
+      assertEquals(source[(g[1] - 1) * g[0]], out[(h - 1) * w]);
+      assertEquals(source[g[1] * g[0] - 1], out[h * w - 1]);
+      // Along the edges only one axis is blended, between neighbours on the edge itself.
+      final int[] expected = bilinearReference(image, g);
+      for (int x = 0; x < w; ++x) {
+        assertPixelClose("top row", expected[x], out[x]);
+        assertPixelClose("bottom row", expected[(h - 1) * w + x], out[(h - 1) * w + x]);
+      }
+      for (int y = 0; y < h; ++y) {
+        assertPixelClose("left column", expected[y * w], out[y * w]);
+        assertPixelClose("right column", expected[y * w + w - 1], out[y * w + w - 1]);
+      }
+    }
+  }
+
+  @Test
+  public void downscaledEdgesStayInsideTheFrame() {
+    // Odd ratios put the last sample right at the frame edge; padding reads would show as the
+    // marker colour.
+    final int[] g = {158, 118, 37, 29, 90, 0};
+    final Image image = Image.random420(random, g[0], g[1]);
+    final int[] expected = bilinearReference(image, g);
+    final int[][] nearest = convertAll(scaler(g, false), image, g);
+    final int[][] bilinear = convertAll(scaler(g, true), image, g);
+    for (int i = 0; i < LAYOUTS.length; ++i) {
+      assertNearestSampled(
+          LAYOUTS[i], image.toArgb(), g[0], 0, 0, g[0], g[1], matrix(g), g[2], g[3], nearest[i]);
+      assertClose(LAYOUTS[i], expected, bilinear[i], g[2]);
+    }
+  }
+
+  /**
+   * Filtered draw in double precision: blend the four nearest Y, U and V samples around the
+   * inverse-mapped pixel centre, clamped to the frame, then convert.
+   */
+  private static int[] bilinearReference(final Image image, final int[] g) {
+    final Affine matrix = matrix(g);
+    final int[] out = new int[g[2] * g[3]];
+    for (int y = 0; y < g[3]; ++y) {
+      for (int x = 0; x < g[2]; ++x) {
+        final double[] s = matrix.mapInverse(x + 0.5, y + 0.5);
+        if (s[0] < 0 || s[0] >= image.width || s[1] < 0 || s[1] >= image.height) {
+          out[y * g[2] + x] = 0xff000000;
+          continue;
+        }
+        final double bx = s[0] - 0.5;
+        final double by = s[1] - 0.5;
+        final int fx = (int) Math.floor(bx);
+        final int fy = (int) Math.floor(by);
+        final double wx = bx - fx;
+        final double wy = by - fy;
+        final int x0 = Math.max(0, fx);
+        final int x1 = Math.min(image.width - 1, fx + 1);
+        final int y0 = Math.max(0, fy);
+        final int y1 = Math.min(image.height - 1, fy + 1);
+        final int i00 = y0 * image.width + x0;
+        final int i01 = y0 * image.width + x1;
+        final int i10 = y1 * image.width + x0;
+        final int i11 = y1 * image.width + x1;
+        out[y * g[2] + x] =
+            ImageUtils.YUV2RGB(
+                blend(image.y, i00, i01, i10, i11, wx, wy),
+                blend(image.u, i00, i01, i10, i11, wx, wy),
+                blend(image.v, i00, i01, i10, i11, wx, wy));
+      }
+    }
+    return out;
+  }
+
+  private static int blend(
+      final int[] plane,
+      final int i00,
+      final int i01,
+      final int i10,
+      final int i11,
+      final double wx,
+      final double wy) {
+    final double top = plane[i00] * (1 - wx) + plane[i01] * wx;
+    final double bottom = plane[i10] * (1 - wx) + plane[i11] * wx;
+    return (int) Math.round(top * (1 - wy) + bottom * wy);
+  }
+
+  private static void assertClose(
+      final String message, final int[] expected, final int[] actual, final int width) {
+    for (int p = 0; p < expected.length; ++p) {
+      if (!close(expected[p], actual[p])) {
+        fail(
+            String.format(
+                "%s: pixel (%d, %d) expected %08x, got %08x",
+                message, p % width, p / width, expected[p], actual[p]));
+      }
+    }
+  }
+
+  private static void assertPixelClose(final String message, final int expected, int actual) {
+    if (!close(expected, actual)) {
+      fail(String.format("%s: expected %08x, got %08x", message, expected, actual));
+    }
+  }
+
+  private static boolean close(final int a, final int b) {
+    for (int shift = 0; shift <= 24; shift += 8) {
+      if (Math.abs((a >> shift & 0xff) - (b >> shift & 0xff)) > BILINEAR_TOLERANCE) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void yuyvRejectsOddWidth() {
+    // The last pixel of an odd row would read its V byte past the end of the row.
+    final int[] g = {65, 48, 64, 64, 0, 0};
+    scaler(g, false).convertYuyv(new byte[g[0] * 2 * g[1]], g[0] * 2, new int[g[2] * g[3]]);
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2020 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.env;
+
+import static org.junit.Assert.assertEquals;
+import static org.tensorflow.lite.examples.detection.env.YuvReference.assertNearestSampled;
+import static org.tensorflow.lite.examples.detection.env.YuvReference.rgbBytesToArgb;
+import static org.tensorflow.lite.examples.detection.env.YuvReference.transformationMatrix;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import org.junit.Test;
+import org.tensorflow.lite.examples.detection.env.YuvReference.Image;
+
+/**
+ * Checks the fused conversion against converting the whole frame and then drawing it through the
+ * frame-to-crop transform, for each input layout the camera paths deliver.
+ */
+public class YuvToTensorTest {
+  // {srcWidth, srcHeight, dstWidth, dstHeight, rotation, maintainAspectRatio}
+  private static final int[][] GEOMETRIES = {
+    {64, 48, 64, 48, 0, 0},
+    {160, 120, 96, 96, 0, 0},
+    {160, 120, 96, 96, 90, 0},
+    {160, 120, 100, 100, 90, 1},
+    {120, 160, 100, 100, 270, 1},
+    {160, 120, 64, 80, 180, 1},
+    {96, 72, 300, 300, -90, 0},
+  };
+
+  private final Random random = new Random(11);
+
+  private static YuvToTensor quantized(final int[] g) {
+    return new YuvToTensor(g[0], g[1], g[2], g[3], g[4], g[5] != 0, true, 0f, 1f);
+  }
+
+  private static int[] convert(final YuvToTensor converter, final Converter conversion) {
+    final ByteBuffer out = ByteBuffer.allocateDirect(converter.getByteSize());
+    conversion.convert(out);
+    final byte[] rgb = new byte[converter.getByteSize()];
+    out.get(rgb);
+    return rgbBytesToArgb(rgb);
+  }
+
+  private interface Converter {
+    void convert(ByteBuffer out);
+  }
+
+  private static void assertMatches(
+      final String message, final Image image, final int[] g, final int[] actual) {
+    assertNearestSampled(
+        message,
+        image.toArgb(),
+        image.width,
+        0,
+        0,
+        image.width,
+        image.height,
+        transformationMatrix(g[0], g[1], g[2], g[3], g[4], g[5] != 0),
+        g[2],
+        g[3],
+        actual);
+  }
+
+  @Test
+  public void nv21MatchesReference() {
+    for (final int[] g : GEOMETRIES) {
+      final Image image = Image.random420(random, g[0], g[1]);
+      final YuvToTensor converter = quantized(g);
+      final byte[] nv21 = image.toNv21();
+      assertMatches("nv21", image, g, convert(converter, out -> converter.convertNv21(nv21, out)));
+    }
+  }
+
+  @Test
+  public void yuv420SemiPlanarWithPaddingMatchesReference() {
+    for (final int[] g : GEOMETRIES) {
+      final Image image = Image.random420(random, g[0], g[1]);
+      final int stride = g[0] + 32;
+      final byte[][] planes = image.toPlanes(stride, stride, 2);
+      final YuvToTensor converter = quantized(g);
+      assertMatches(
+          "yuv420 pixel stride 2",
+          image,
+          g,
+          convert(
+              converter,
+              out ->
+                  converter.convertYuv420(
+                      planes[0], planes[1], planes[2], stride, stride, 2, out)));
+    }
+  }
+
+  @Test
+  public void yuv420PlanarWithPaddingMatchesReference() {
+    for (final int[] g : GEOMETRIES) {
+      final Image image = Image.random420(random, g[0], g[1]);
+      final int yStride = g[0] + 16;
+      final int uvStride = g[0] / 2 + 8;
+      final byte[][] planes = image.toPlanes(yStride, uvStride, 1);
+      final YuvToTensor converter = quantized(g);
+      assertMatches(
+          "yuv420 pixel stride 1",
+          image,
+          g,
+          convert(
+              converter,
+              out ->
+                  converter.convertYuv420(
+                      planes[0], planes[1], planes[2], yStride, uvStride, 1, out)));
+    }
+  }
+
+  @Test
+  public void yuyvMatchesReference() {
+    for (final int[] g : GEOMETRIES) {
+      // 4:2:2 chroma differs between neighbouring rows, so vertical subsampling would show.
+      final Image image = Image.random422(random, g[0], g[1]);
+      final int stride = g[0] * 2 + 8;
+      final byte[] yuyv = image.toYuyv(stride);
+      final YuvToTensor converter = quantized(g);
+      assertMatches(
+          "yuyv", image, g, convert(converter, out -> converter.convertYuyv(yuyv, stride, out)));
+    }
+  }
+
+  @Test
+  public void switchingLayoutsRecomputesOffsets() {
+    final int[] g = GEOMETRIES[3];
+    final Image image = Image.random420(random, g[0], g[1]);
+    final YuvToTensor converter = quantized(g);
+    final byte[] nv21 = image.toNv21();
+    final byte[][] planes = image.toPlanes(g[0] + 8, g[0] + 8, 2);
+    final Image packed = Image.random422(random, g[0], g[1]);
+    final byte[] yuyv = packed.toYuyv(g[0] * 2);
+
+    assertMatches("nv21", image, g, convert(converter, out -> converter.convertNv21(nv21, out)));
+    assertMatches(
+        "planes",
+        image,
+        g,
+        convert(
+            converter,
+            out ->
+                converter.convertYuv420(
+                    planes[0], planes[1], planes[2], g[0] + 8, g[0] + 8, 2, out)));
+    assertMatches(
+        "yuyv", packed, g, convert(converter, out -> converter.convertYuyv(yuyv, g[0] * 2, out)));
+    assertMatches("nv21", image, g, convert(converter, out -> converter.convertNv21(nv21, out)));
+  }
+
+  @Test
+  public void cropMatchesReferenceAndFollowsMoveCrop() {
+    final int srcWidth = 160;
+    final int srcHeight = 120;
+    final Image image = Image.random420(random, srcWidth, srcHeight);
+    final int[] argb = image.toArgb();
+    final byte[] nv21 = image.toNv21();
+    final int cropWidth = 75;
+    final int cropHeight = 50;
+    final YuvToTensor converter =
+        new YuvToTensor(
+            srcWidth, srcHeight, 13, 7, cropWidth, cropHeight, 48, 48, 90, true, true, 0f, 1f);
+    final YuvReference.Affine matrix =
+        transformationMatrix(cropWidth, cropHeight, 48, 48, 90, true);
+
+    // Odd offsets put the crop edge inside a chroma block; the last one runs off the frame.
+    final int[][] origins = {{13, 7}, {0, 0}, {srcWidth - cropWidth, srcHeight - cropHeight}};
+    for (final int[] origin : origins) {
+      converter.moveCrop(origin[0], origin[1]);
+      final int[] actual = convert(converter, out -> converter.convertNv21(nv21, out));
+      assertNearestSampled(
+          "crop at " + origin[0] + "," + origin[1],
+          argb,
+          srcWidth,
+          origin[0],
+          origin[1],
+          cropWidth,
+          cropHeight,
+          matrix,
+          48,
+          48,
+          actual);
+    }
+  }
+
+  @Test
+  public void floatOutputIsNormalized() {
+    final int[] g = GEOMETRIES[1];
+    final Image image = Image.random420(random, g[0], g[1]);
+    final byte[] nv21 = image.toNv21();
+    final float mean = 127.5f;
+    final float std = 127.5f;
+    final YuvToTensor bytes = quantized(g);
+    final YuvToTensor floats =
+        new YuvToTensor(g[0], g[1], g[2], g[3], g[4], g[5] != 0, false, mean, std);
+    final int[] expected = convert(bytes, out -> bytes.convertNv21(nv21, out));
+
+    final ByteBuffer out = ByteBuffer.allocateDirect(floats.getByteSize());
+    out.order(ByteOrder.nativeOrder());
+    floats.convertNv21(nv21, out);
+    final FloatBuffer values = out.asFloatBuffer();
+    for (int p = 0; p < expected.length; ++p) {
+      assertEquals(((expected[p] >> 16 & 0xff) - mean) / std, values.get(3 * p), 0f);
+      assertEquals(((expected[p] >> 8 & 0xff) - mean) / std, values.get(3 * p + 1), 0f);
+      assertEquals(((expected[p] & 0xff) - mean) / std, values.get(3 * p + 2), 0f);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void yuyvRejectsOddWidth() {
+    // The last pixel of an odd row would read its V byte past the end of the row.
+    final int[] g = {65, 48, 64, 64, 0, 0};
+    final YuvToTensor converter = quantized(g);
+    converter.convertYuyv(
+        new byte[g[0] * 2 * g[1]], g[0] * 2, ByteBuffer.allocateDirect(converter.getByteSize()));
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2020 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Checks the class relabelling and candidate selection {@link DenseHeadDecoder#decode} applies. */
+public class DenseHeadDecoderTest {
+  private static final int ANCHORS = 4;
+  // Not idempotent: relabelling an already relabelled id gives a different id.
+  private static final int[] CLASS_MAP = {1, 2, 0, -1};
+
+  /** Head with disjoint boxes that leaves the classes of skipped candidates alone. */
+  private static final class FakeHead extends DenseHeadDecoder {
+    private final float[] boxes = new float[ANCHORS * 4];
+    private float[] frameScores;
+    private int[] frameClasses;
+
+    FakeHead() {
+      super(ANCHORS, 100, ANCHORS);
+      for (int a = 0; a < ANCHORS; ++a) {
+        boxes[a * 4] = a * 0.25f;
+        boxes[a * 4 + 1] = 0f;
+        boxes[a * 4 + 2] = a * 0.25f + 0.2f;
+        boxes[a * 4 + 3] = 0.2f;
+      }
+    }
+
+    void setFrame(final float[] scores, final int[] classes) {
+      frameScores = scores;
+      frameClasses = classes;
+    }
+
+    @Override
+    protected void scoreCandidates() {
+      for (int a = 0; a < ANCHORS; ++a) {
+        scores[a] = frameScores[a];
+        if (frameScores[a] >= scoreThreshold()) {
+          classes[a] = frameClasses[a];
+        }
+      }
+    }
+
+    @Override
+    protected float[] boxes() {
+      return boxes;
+    }
+
+    @Override
+    public int getClassCount() {
+      return CLASS_MAP.length;
+    }
+  }
+
+  @Test
+  public void relabellingLeavesModelClassesAlone() {
+    final FakeHead head = new FakeHead();
+    head.setClassMap(CLASS_MAP);
+    final DetectionBuffer out = new DetectionBuffer();
+    final float[] scores = {0.9f, 0.8f, 0.7f, 0.6f};
+    final int[] classes = {0, 1, 2, 3};
+    head.setFrame(scores, classes);
+
+    for (int frame = 0; frame < 3; ++frame) {
+      head.decode(out);
+      assertArrayEquals("frame " + frame, classes, head.classes);
+      // Class 3 maps to -1 and is dropped.
+      assertEquals(3, out.size());
+      for (int k = 0; k < out.size(); ++k) {
+        assertEquals(CLASS_MAP[classes[out.id(k)]], out.classId(k));
+      }
+    }
+  }
+
+  @Test
+  public void skippedCandidatesKeepTheirModelClass() {
+    final FakeHead head = new FakeHead();
+    head.setClassMap(CLASS_MAP);
+    final DetectionBuffer out = new DetectionBuffer();
+    head.setFrame(new float[] {0.9f, 0.8f, 0.7f, 0f}, new int[] {0, 1, 2, 0});
+    head.decode(out);
+
+    // Anchor 0 is skipped, so the head leaves its class from the previous frame in place.
+    head.setFrame(new float[] {0f, 0.8f, 0.7f, 0f}, new int[] {2, 1, 2, 0});
+    head.decode(out);
+    assertEquals(0, head.classes[0]);
+    assertEquals(2, out.size());
+    head.setFrame(new float[] {0.9f, 0.8f, 0.7f, 0f}, new int[] {0, 1, 2, 0});
+    head.decode(out);
+    assertEquals(3, out.size());
+    assertEquals(0, out.id(0));
+    assertEquals(CLASS_MAP[0], out.classId(0));
+  }
+
+  @Test
+  public void zeroThresholdNeverSelectsDroppedCandidates() {
+    final FakeHead head = new FakeHead();
+    head.setScoreThreshold(0f);
+    final DetectionBuffer out = new DetectionBuffer();
+
+    // Background and skipped candidates the head marks -1, as a grid head does below objectness.
+    head.setFrame(new float[] {0f, 0.5f, 0f, 0.3f}, new int[] {-1, 0, -1, 2});
+    head.decode(out);
+    assertEquals(2, out.size());
+    assertEquals(1, out.id(0));
+    assertEquals(3, out.id(1));
+
+    // Classes the map drops, even with a high score.
+    head.setClassMap(CLASS_MAP);
+    head.setFrame(new float[] {0.9f, 0.6f, 0.2f, 0.7f}, new int[] {3, 0, 1, 3});
+    head.decode(out);
+    assertEquals(2, out.size());
+    for (int k = 0; k < out.size(); ++k) {
+      assertTrue(out.classId(k) >= 0);
+    }
+    assertEquals(1, out.id(0));
+    assertEquals(2, out.id(1));
+  }
+
+  @Test
+  public void perCallThresholdLeavesTheSetOneAlone() {
+    final FakeHead head = new FakeHead();
+    head.setScoreThreshold(0.5f);
+    final DetectionBuffer out = new DetectionBuffer();
+    head.setFrame(new float[] {0.9f, 0.6f, 0.3f, 0.1f}, new int[] {0, 1, 2, 3});
+
+    head.decode(out, 0.2f);
+    assertEquals(3, out.size());
+    assertEquals(0.5f, head.getScoreThreshold(), 0f);
+    head.decode(out);
+    assertEquals(2, out.size());
+  }
+
+  @Test
+  public void withoutMapReportsModelClasses() {
+    final FakeHead head = new FakeHead();
+    final DetectionBuffer out = new DetectionBuffer();
+    head.setFrame(new float[] {0.9f, 0.8f, 0.7f, 0.6f}, new int[] {3, 2, 1, 0});
+    head.decode(out);
+    assertEquals(4, out.size());
+    for (int k = 0; k < out.size(); ++k) {
+      assertEquals(3 - out.id(k), out.classId(k));
+    }
+  }
+}
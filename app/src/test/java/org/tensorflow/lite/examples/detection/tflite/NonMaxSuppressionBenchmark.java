@@ -0,0 +1,97 @@
+/*
+ * Copyright 2020 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Random;
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.RunnerException;
+import org.tensorflow.lite.examples.detection.Benchmarks;
+import org.tensorflow.lite.examples.detection.tflite.NonMaxSuppression.Method;
+import org.tensorflow.lite.examples.detection.tflite.NonMaxSuppressionTest.Frame;
+
+/**
+ * Top-K selection plus each suppression method, versus the sort-everything anchor scan the model
+ * used to run, at an SSD head's anchor count and a large grid head's. Run with {@code -Pjmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+public class NonMaxSuppressionBenchmark {
+  private static final int MAX_DETECTIONS = 50;
+  private static final int CANDIDATES = 1000;
+
+  @Param({"1917", "12000"})
+  public int anchors;
+
+  private Frame frame;
+  private TopKSelector topK;
+  private int[] candidates;
+  private int[] out;
+  private float[] outScores;
+  private NonMaxSuppression greedy;
+  private NonMaxSuppression grid;
+  private NonMaxSuppression soft;
+
+  @Setup
+  public void setUp() {
+    frame = new Frame(new Random(2), anchors, 20, 5);
+    topK = new TopKSelector(Math.min(CANDIDATES, anchors));
+    candidates = new int[topK.capacity()];
+    out = new int[MAX_DETECTIONS];
+    outScores = new float[MAX_DETECTIONS];
+    greedy = NonMaxSuppressionTest.greedy();
+    grid = NonMaxSuppressionTest.greedy().setMethod(Method.GRID);
+    soft = NonMaxSuppressionTest.greedy().setMethod(Method.SOFT);
+  }
+
+  private int select(final NonMaxSuppression nms) {
+    final int n = topK.select(frame.scores, anchors, 0.01f, candidates);
+    return nms.run(
+        frame.boxes, frame.scores, frame.classes, candidates, n, MAX_DETECTIONS, out, outScores);
+  }
+
+  @Benchmark
+  public int[] anchorScan() {
+    return NonMaxSuppressionTest.anchorScanNms(frame.boxes, frame.scores, MAX_DETECTIONS);
+  }
+
+  @Benchmark
+  public int greedy() {
+    return select(greedy);
+  }
+
+  @Benchmark
+  public int grid() {
+    return select(grid);
+  }
+
+  @Benchmark
+  public int soft() {
+    return select(soft);
+  }
+
+  @Test
+  public void run() throws RunnerException {
+    Benchmarks.run(NonMaxSuppressionBenchmark.class);
+  }
+}
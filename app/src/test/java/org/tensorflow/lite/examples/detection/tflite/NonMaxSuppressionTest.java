@@ -0,0 +1,267 @@
+/*
+ * Copyright 2020 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.tensorflow.lite.examples.detection.tflite.NonMaxSuppression.Method;
+
+/** Checks each suppression method against a straightforward reference. */
+public class NonMaxSuppressionTest {
+  private static final float SCORE_THRESHOLD = 0.01f;
+  private static final float IOU_THRESHOLD = 0.5f;
+
+  /** Random frame of clustered boxes, like a dense head firing on a few objects. */
+  static final class Frame {
+    final float[] boxes;
+    final float[] scores;
+    final int[] classes;
+
+    Frame(final float[] boxes, final float[] scores, final int[] classes) {
+      this.boxes = boxes;
+      this.scores = scores;
+      this.classes = classes;
+    }
+
+    Frame(final Random random, final int anchors, final int objects, final int classCount) {
+      boxes = new float[anchors * 4];
+      scores = new float[anchors];
+      classes = new int[anchors];
+      final float[] centres = new float[objects * 2];
+      for (int i = 0; i < centres.length; ++i) {
+        centres[i] = random.nextFloat();
+      }
+      for (int a = 0; a < anchors; ++a) {
+        final int o = random.nextInt(objects);
+        final float cy = centres[2 * o] + (float) random.nextGaussian() * 0.03f;
+        final float cx = centres[2 * o + 1] + (float) random.nextGaussian() * 0.03f;
+        final float h = 0.05f + random.nextFloat() * 0.2f;
+        final float w = 0.05f + random.nextFloat() * 0.2f;
+        boxes[a * 4] = cy - h / 2;
+        boxes[a * 4 + 1] = cx - w / 2;
+        boxes[a * 4 + 2] = cy + h / 2;
+        boxes[a * 4 + 3] = cx + w / 2;
+        final float s = random.nextFloat();
+        scores[a] = s * s;
+        classes[a] = random.nextInt(classCount);
+      }
+    }
+  }
+
+  /** The suppression TFLiteObjectDetectionAPIModel shipped with: sort everything, scan anchors. */
+  static int[] anchorScanNms(final float[] boxes, final float[] scores, int maxOut) {
+    final int anchors = scores.length;
+    final Integer[] idxs = new Integer[anchors];
+    for (int i = 0; i < anchors; ++i) {
+      idxs[i] = i;
+    }
+    Arrays.sort(idxs, (i1, i2) -> Float.compare(scores[i2], scores[i1]));
+    final boolean[] removed = new boolean[anchors];
+    final List<Integer> picks = new ArrayList<>();
+    for (final int id : idxs) {
+      if (scores[id] < SCORE_THRESHOLD) {
+        break;
+      }
+      if (removed[id]) {
+        continue;
+      }
+      picks.add(id);
+      for (int j = 0; j < anchors; ++j) {
+        if (removed[j] || j == id) {
+          continue;
+        }
+        if (NonMaxSuppression.iou(boxes, id * 4, j * 4) > IOU_THRESHOLD) {
+          removed[j] = true;
+        }
+      }
+      if (picks.size() >= maxOut) {
+        break;
+      }
+    }
+    final int[] out = new int[picks.size()];
+    for (int i = 0; i < out.length; ++i) {
+      out[i] = picks.get(i);
+    }
+    return out;
+  }
+
+  static int[] run(
+      final NonMaxSuppression nms, final Frame frame, final int candidateCap, final int maxOut) {
+    final TopKSelector topK = new TopKSelector(Math.min(candidateCap, frame.scores.length));
+    final int[] candidates = new int[topK.capacity()];
+    final int n = topK.select(frame.scores, frame.scores.length, SCORE_THRESHOLD, candidates);
+    final int[] out = new int[maxOut];
+    final float[] outScores = new float[maxOut];
+    final int kept =
+        nms.run(frame.boxes, frame.scores, frame.classes, candidates, n, maxOut, out, outScores);
+    return Arrays.copyOf(out, kept);
+  }
+
+  static NonMaxSuppression greedy() {
+    return new NonMaxSuppression()
+        .setIouThreshold(IOU_THRESHOLD)
+        .setScoreThreshold(SCORE_THRESHOLD);
+  }
+
+  @Test
+  public void greedyMatchesAnchorScan() {
+    final Random random = new Random(3);
+    for (int trial = 0; trial < 50; ++trial) {
+      final Frame frame = new Frame(random, 500 + random.nextInt(3000), 1 + random.nextInt(60), 5);
+      final int maxOut = 1 + random.nextInt(50);
+      assertArrayEquals(
+          "trial " + trial,
+          anchorScanNms(frame.boxes, frame.scores, maxOut),
+          run(greedy(), frame, Integer.MAX_VALUE, maxOut));
+    }
+  }
+
+  @Test
+  public void candidateCapOnlyTruncatesAnchorScan() {
+    final Random random = new Random(4);
+    for (int trial = 0; trial < 50; ++trial) {
+      final Frame frame = new Frame(random, 2000, 1 + random.nextInt(100), 5);
+      final int maxOut = 50;
+      final int[] expected = anchorScanNms(frame.boxes, frame.scores, maxOut);
+      final int[] actual = run(greedy(), frame, 1 + random.nextInt(400), maxOut);
+      assertArrayEquals("trial " + trial, Arrays.copyOf(expected, actual.length), actual);
+    }
+  }
+
+  @Test
+  public void greedyFixedBoxes() {
+    final float[] boxes = {
+      0f, 0f, 1f, 1f, // 0
+      0f, 0.1f, 1f, 1.1f, // 1: IoU 0.82 with 0
+      0f, 0.3f, 1f, 1.3f, // 2: IoU 0.54 with 0, 0.67 with 1
+      2f, 2f, 3f, 3f, // 3: disjoint
+    };
+    final float[] scores = {0.9f, 0.95f, 0.8f, 0.3f};
+    final Frame fixed = new Frame(boxes, scores, new int[4]);
+    // 1 removes 0 and 2; 3 overlaps nothing.
+    assertArrayEquals(new int[] {1, 3}, run(greedy(), fixed, 10, 10));
+    assertArrayEquals(new int[] {1, 3}, anchorScanNms(boxes, scores, 10));
+    assertArrayEquals(new int[] {1}, run(greedy(), fixed, 10, 1));
+  }
+
+  @Test
+  public void classAwareOnlySuppressesSameClass() {
+    final float[] boxes = {0f, 0f, 1f, 1f, 0f, 0.05f, 1f, 1.05f, 0f, 0.1f, 1f, 1.1f};
+    final float[] scores = {0.9f, 0.8f, 0.7f};
+    final Frame fixed = new Frame(boxes, scores, new int[] {0, 1, 0});
+    assertArrayEquals(new int[] {0}, run(greedy(), fixed, 10, 10));
+    assertArrayEquals(new int[] {0, 1}, run(greedy().setClassAware(true), fixed, 10, 10));
+  }
+
+  @Test
+  public void gridMatchesGreedyOnRandomBoxes() {
+    final Random random = new Random(5);
+    for (int trial = 0; trial < 200; ++trial) {
+      final Frame frame = new Frame(random, 100 + random.nextInt(2000), 1 + random.nextInt(80), 3);
+      final int maxOut = 1 + random.nextInt(100);
+      final int cap = 1 + random.nextInt(1500);
+      final boolean classAware = random.nextBoolean();
+      final NonMaxSuppression grid =
+          greedy()
+              .setMethod(Method.GRID)
+              .setGridSize(1 + random.nextInt(16))
+              .setClassAware(classAware);
+      assertArrayEquals(
+          "trial " + trial,
+          run(greedy().setClassAware(classAware), frame, cap, maxOut),
+          run(grid, frame, cap, maxOut));
+    }
+  }
+
+  @Test
+  public void gridHandlesDegenerateExtent() {
+    // All boxes identical: zero-extent grid falls back to greedy.
+    final float[] boxes = {0.2f, 0.2f, 0.2f, 0.2f, 0.2f, 0.2f, 0.2f, 0.2f};
+    final float[] scores = {0.5f, 0.6f};
+    final Frame fixed = new Frame(boxes, scores, new int[2]);
+    assertArrayEquals(new int[] {1, 0}, run(greedy().setMethod(Method.GRID), fixed, 10, 10));
+  }
+
+  @Test
+  public void softDecaysOverlappingScores() {
+    final float[] boxes = {
+      0f, 0f, 1f, 1f, // 0
+      0f, 0.5f, 1f, 1.5f, // 1: IoU 1/3 with 0
+      0f, 0.1f, 1f, 1.1f, // 2: IoU 0.9/1.1 with 0, 0.6/1.4 with 1
+      5f, 5f, 6f, 6f, // 3: disjoint, never decayed
+    };
+    final float[] scores = {0.9f, 0.8f, 0.85f, 0.5f};
+    final Frame fixed = new Frame(boxes, scores, new int[4]);
+    final float sigma = 0.5f;
+    final NonMaxSuppression soft =
+        new NonMaxSuppression().setMethod(Method.SOFT).setSoftSigma(sigma).setScoreThreshold(0f);
+
+    final int[] candidates = {0, 2, 1, 3};
+    final int[] out = new int[4];
+    final float[] outScores = new float[4];
+    assertEquals(4, soft.run(boxes, scores, null, candidates, 4, 4, out, outScores));
+
+    final float iou01 = 1f / 3;
+    final float iou02 = 0.9f / 1.1f;
+    final float iou12 = 0.6f / 1.4f;
+    final float s1 = decay(0.8f, iou01, sigma);
+    final float s2 = decay(0.85f, iou02, sigma);
+    // After 0 is kept, box 1 (0.8 * 0.80) outranks box 2 (0.85 * 0.26); box 3 is untouched.
+    assertArrayEquals(new int[] {0, 1, 3, 2}, out);
+    assertEquals(0.9f, outScores[0], 0f);
+    assertEquals(s1, outScores[1], 1e-6f);
+    assertEquals(0.5f, outScores[2], 0f);
+    assertEquals(decay(s2, iou12, sigma), outScores[3], 1e-6f);
+    assertArrayEquals(new int[] {0, 1, 3}, run(soft, fixed, 4, 3));
+  }
+
+  @Test
+  public void softDropsBoxesDecayedBelowThreshold() {
+    final float[] boxes = {0f, 0f, 1f, 1f, 0f, 0.1f, 1f, 1.1f};
+    final float[] scores = {0.9f, 0.85f};
+    final NonMaxSuppression soft =
+        new NonMaxSuppression().setMethod(Method.SOFT).setSoftSigma(0.5f);
+    final int[] out = new int[2];
+    final float[] outScores = new float[2];
+
+    // 0.85 decays to about 0.22.
+    soft.setScoreThreshold(0.3f);
+    assertEquals(1, soft.run(boxes, scores, null, new int[] {0, 1}, 2, 2, out, outScores));
+    soft.setScoreThreshold(0.2f);
+    assertEquals(2, soft.run(boxes, scores, null, new int[] {0, 1}, 2, 2, out, outScores));
+    assertEquals(decay(0.85f, 0.9f / 1.1f, 0.5f), outScores[1], 1e-6f);
+  }
+
+  @Test
+  public void iouOfKnownBoxes() {
+    final float[] boxes = {0f, 0f, 2f, 2f, 1f, 1f, 3f, 3f, 2f, 2f, 4f, 4f};
+    assertEquals(1f / 7, NonMaxSuppression.iou(boxes, 0, 4), 1e-6f);
+    assertEquals(1f, NonMaxSuppression.iou(boxes, 0, 0), 0f);
+    // Touching edges do not overlap.
+    assertEquals(0f, NonMaxSuppression.iou(boxes, 0, 8), 0f);
+  }
+
+  private static float decay(final float score, final float iou, final float sigma) {
+    return score * (float) Math.exp(-(iou * iou) / sigma);
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2020 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+/** Checks the heap selection against the boxed full sort it replaced. */
+public class TopKSelectorTest {
+
+  /** The selection DenseHeadDecoder used to do: stable descending sort, then a threshold cut. */
+  static int[] sortedTopK(final float[] scores, final int count, final float threshold, int k) {
+    final Integer[] idxs = new Integer[count];
+    for (int i = 0; i < count; ++i) {
+      idxs[i] = i;
+    }
+    Arrays.sort(idxs, (i1, i2) -> Float.compare(scores[i2], scores[i1]));
+    final int[] out = new int[Math.min(k, count)];
+    int n = 0;
+    for (final int id : idxs) {
+      if (n == out.length || scores[id] < threshold) {
+        break;
+      }
+      out[n++] = id;
+    }
+    return Arrays.copyOf(out, n);
+  }
+
+  private static int[] heapTopK(final float[] scores, final int count, float threshold, int k) {
+    final int[] out = new int[k];
+    final int n = new TopKSelector(k).select(scores, count, threshold, out);
+    return Arrays.copyOf(out, n);
+  }
+
+  @Test
+  public void matchesFullSortOnRandomScores() {
+    final Random random = new Random(42);
+    for (int trial = 0; trial < 200; ++trial) {
+      final int count = 1 + random.nextInt(3000);
+      final float[] scores = new float[count];
+      for (int i = 0; i < count; ++i) {
+        scores[i] = random.nextFloat();
+      }
+      final int k = 1 + random.nextInt(400);
+      final float threshold = random.nextFloat() * 0.5f;
+      assertArrayEquals(
+          "trial " + trial,
+          sortedTopK(scores, count, threshold, k),
+          heapTopK(scores, count, threshold, k));
+    }
+  }
+
+  @Test
+  public void tiesKeepAscendingIndexOrder() {
+    final Random random = new Random(7);
+    for (int trial = 0; trial < 200; ++trial) {
+      final int count = 1 + random.nextInt(2000);
+      final float[] scores = new float[count];
+      for (int i = 0; i < count; ++i) {
+        // Quantized model outputs: few distinct levels, lots of ties.
+        scores[i] = random.nextInt(8) / 8f;
+      }
+      final int k = 1 + random.nextInt(300);
+      assertArrayEquals(
+          "trial " + trial, sortedTopK(scores, count, 0.25f, k), heapTopK(scores, count, 0.25f, k));
+    }
+  }
+
+  @Test
+  public void onlyLooksAtTheFirstCountScores() {
+    final float[] scores = {0.1f, 0.9f, 0.5f, 1f, 1f};
+    assertArrayEquals(new int[] {1, 2, 0}, heapTopK(scores, 3, 0f, 5));
+  }
+
+  @Test
+  public void thresholdIsInclusive() {
+    final float[] scores = {0.5f, 0.49f, 0.5f, 0.7f};
+    assertArrayEquals(new int[] {3, 0, 2}, heapTopK(scores, scores.length, 0.5f, 10));
+  }
+
+  @Test
+  public void returnsNothingWhenAllBelowThreshold() {
+    final float[] scores = {0.1f, 0.2f};
+    assertEquals(0, heapTopK(scores, scores.length, 0.3f, 4).length);
+  }
+
+  @Test
+  public void negativeLabelsAreSkippedWhateverTheScore() {
+    final float[] scores = {0f, 0.9f, 0f, 0.4f, 0.95f};
+    final int[] labels = {-1, 2, 0, 1, -1};
+    final TopKSelector selector = new TopKSelector(5);
+    final int[] out = new int[5];
+    assertEquals(3, selector.select(scores, labels, scores.length, 0f, out));
+    assertArrayEquals(new int[] {1, 3, 2}, Arrays.copyOf(out, 3));
+  }
+
+  @Test
+  public void selectorIsReusable() {
+    final TopKSelector selector = new TopKSelector(2);
+    final int[] out = new int[2];
+    assertEquals(2, selector.select(new float[] {0.3f, 0.9f, 0.6f}, 3, 0f, out));
+    assertArrayEquals(new int[] {1, 2}, out);
+    assertEquals(1, selector.select(new float[] {0.2f, 0.8f}, 2, 0.5f, out));
+    assertEquals(1, out[0]);
+  }
+}